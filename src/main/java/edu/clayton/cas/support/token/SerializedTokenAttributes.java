@@ -0,0 +1,47 @@
+package edu.clayton.cas.support.token;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * <p>The serialized form of a {@link TokenAttributes} instance. It starts
+ * with a version number, so that the form can change without breaking the
+ * ticket registries that hold it, followed by the compact form written by
+ * {@link TokenAttributes}. Only the attributes and what is needed to
+ * validate them are written.</p>
+ */
+final class SerializedTokenAttributes implements Externalizable {
+  private static final long serialVersionUID = 5019264773018514562L;
+
+  private static final int VERSION = 1;
+
+  private TokenAttributes attributes;
+
+  /** Used by deserialization. **/
+  public SerializedTokenAttributes() {
+  }
+
+  SerializedTokenAttributes(TokenAttributes attributes) {
+    this.attributes = attributes;
+  }
+
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    this.attributes.writeCompact(out);
+  }
+
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new InvalidObjectException("Unsupported TokenAttributes version " + version);
+    }
+    this.attributes = TokenAttributes.readCompact(in);
+  }
+
+  private Object readResolve() {
+    return this.attributes;
+  }
+}
@@ -2,11 +2,13 @@ package edu.clayton.cas.support.token;
 
 import edu.clayton.cas.support.token.keystore.Key;
 import edu.clayton.cas.support.token.util.Crypto;
+import edu.clayton.cas.support.token.util.DecryptionBuffer;
 import org.apache.commons.codec.binary.Base64;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +29,15 @@ import java.util.Map;
  *   </li>
  * </ul>
  *
+ * <p>Legacy tokens are AES/CBC encrypted with the IV prefixed to the
+ * cipher text. Versioned tokens start with
+ * {@link Crypto#VERSIONED_TOKEN_PREFIX} and carry a version byte that selects
+ * the format; {@link Crypto#VERSION_AES_GCM} tokens are authenticated, so a
+ * tampered token is rejected before its JSON is parsed, and
+ * {@link Crypto#VERSION_AES_GCM_KEY_ID} tokens also name the key they were
+ * encrypted with. See {@link Token#getVersion()} and
+ * {@link Token#getKeyId()}.</p>
+ *
  * <p>Initially, the {@linkplain Token} is not decrypted. Decryption will be
  * attempted when either the
  * {@link edu.clayton.cas.support.token.Token#getGenerated()} or
@@ -38,14 +49,22 @@ import java.util.Map;
 public class Token {
   private final static Logger log = LoggerFactory.getLogger(Token.class);
 
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
   private Key key;
   private String tokenData;
+  private String keyId;
+  private boolean keyIdRead = false;
   private boolean isDecoded = false;
+  private boolean isExpired = false;
+  private int maxDrift = -1;
 
   private long generated;
+  private long fingerprint;
   private TokenAttributes attributes;
   private List requiredTokenAttributes;
   private Map tokenAttributesMap;
+  private TokenAttributePolicy policy;
 
   /**
    * Initializes a {@linkplain Token} object from a
@@ -105,6 +124,68 @@ public class Token {
     return returnDate;
   }
 
+  /**
+   * Return the encoded token data, as received from the client.
+   *
+   * @return The encoded data.
+   */
+  public String getData() {
+    return this.tokenData;
+  }
+
+  /**
+   * Return the id of the key the token was encrypted with, for tokens that
+   * carry one. This does not require the {@linkplain Token} to be
+   * decrypted. See {@link Crypto#keyIdOf(String)}.
+   *
+   * @return The key id, or {@code null} if the token does not name its key.
+   */
+  public String getKeyId() {
+    if (!this.keyIdRead) {
+      this.keyId = Crypto.keyIdOf(this.tokenData);
+      this.keyIdRead = true;
+    }
+    return this.keyId;
+  }
+
+  /**
+   * Check that the token data could be decrypted, without decrypting it.
+   * See {@link Crypto#isWellFormed(String)}.
+   *
+   * @return {@code false} if the token data is malformed.
+   */
+  public boolean isWellFormed() {
+    return Crypto.isWellFormed(this.tokenData);
+  }
+
+  /**
+   * Return the format version of the token data. This does not require
+   * the {@linkplain Token} to be decrypted.
+   *
+   * @return One of the {@link Crypto} version constants, or -1 if the
+   *         version cannot be read.
+   */
+  public int getVersion() {
+    return Crypto.versionOf(this.tokenData);
+  }
+
+  /**
+   * Return a fingerprint of the decrypted token, as computed by
+   * {@link Crypto#fingerprint(byte[], int, int)} over its JSON object.
+   * Because it is computed from the plain text rather than the encoded or
+   * encrypted bytes, neither re-encoding a token (line breaks, URL safe
+   * alphabet) nor appending cipher blocks to a legacy token changes its
+   * fingerprint.
+   *
+   * @return The fingerprint, or 0 if the token has not been decrypted.
+   */
+  public long getFingerprint() {
+    if (!this.isDecoded) {
+      this.getAttributes();
+    }
+    return this.fingerprint;
+  }
+
   /**
    * Define the crypto key that will be used to decode the {@linkplain Token}
    * data.
@@ -117,38 +198,106 @@ public class Token {
 
   public void setRequiredTokenAttributes(List requiredTokenAttributes) {
     this.requiredTokenAttributes = requiredTokenAttributes;
+    this.policy = null;
   }
 
   public void setTokenAttributesMap(Map tokenAttributesMap) {
     this.tokenAttributesMap = tokenAttributesMap;
+    this.policy = null;
+  }
+
+  /**
+   * Define the compiled {@link TokenAttributePolicy} that the decrypted
+   * {@link TokenAttributes} will be validated against. This takes the
+   * place of {@link Token#setRequiredTokenAttributes(java.util.List)} and
+   * {@link Token#setTokenAttributesMap(java.util.Map)}, which compile a
+   * new policy for every token.
+   *
+   * @param policy A compiled policy shared by many tokens.
+   */
+  public void setPolicy(TokenAttributePolicy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Define the number of seconds (+/-) that the {@code generated} timestamp
+   * may differ from the current time. When it is set, decryption stops as
+   * soon as an out of range timestamp is read, and
+   * {@link Token#isExpired()} will return {@code true}. By default there
+   * is no limit.
+   *
+   * @param maxDrift The allowed drift in seconds, or a negative number for
+   *                 no limit.
+   */
+  public void setMaxDrift(int maxDrift) {
+    this.maxDrift = maxDrift;
+  }
+
+  /**
+   * Whether decryption stopped early because the {@code generated}
+   * timestamp is outside of the window set by
+   * {@link Token#setMaxDrift(int)}. An expired token has no
+   * {@link TokenAttributes}.
+   *
+   * @return {@code true} if the token is expired.
+   */
+  public boolean isExpired() {
+    return this.isExpired;
   }
 
   private void decryptData() throws Exception {
     try {
-      log.debug(
-          "Decrypting token with key = `{}`",
-          new String(this.key.data())
-      );
-      String decryptedString = Crypto.decryptEncodedStringWithKey(
+      log.debug("Decrypting token with key named `{}`", this.key.name());
+      DecryptionBuffer buffer = Crypto.decryptEncodedStringIntoBuffer(
           this.tokenData,
           this.key
       );
-      JSONObject jsonObject = new JSONObject(decryptedString);
-      log.debug("Decrypted token:");
-      log.debug(jsonObject.toString());
-
-      this.generated = jsonObject.getLong("generated");
-      this.attributes = new TokenAttributes(
-          jsonObject.getJSONObject("credentials").toString(),
-          this.requiredTokenAttributes,
-          this.tokenAttributesMap
-      );
+      if (log.isDebugEnabled()) {
+        log.debug("Decrypted token:");
+        log.debug(new String(buffer.output(), 0, buffer.outputLength(), UTF8));
+      }
+
+      long earliest = Long.MIN_VALUE;
+      long latest = Long.MAX_VALUE;
+      if (this.maxDrift >= 0) {
+        long now = System.currentTimeMillis();
+        earliest = now - this.maxDrift * 1000L;
+        latest = now + this.maxDrift * 1000L;
+      }
+
+      if (this.policy == null) {
+        this.policy = TokenAttributePolicy.compile(
+            this.requiredTokenAttributes,
+            this.tokenAttributesMap
+        );
+      }
+
+      TokenAttributes tokenAttributes = new TokenAttributes(this.policy);
+      TokenParser parser = new TokenParser(buffer.output(), 0, buffer.outputLength());
+      boolean complete = parser.parse(tokenAttributes, earliest, latest);
+      this.key.confirm();
+
+      this.generated = parser.generated();
+      if (complete) {
+        this.fingerprint = Crypto.fingerprint(buffer.output(), 0, parser.objectEnd());
+        tokenAttributes.trimToSize();
+        this.attributes = tokenAttributes;
+        log.debug("Token successfully decrypted.");
+      } else {
+        this.isExpired = true;
+        log.debug("Token generated at {} is outside of the allowed drift.", this.generated);
+      }
       this.isDecoded = true;
 
-      log.debug("Token successfully decrypted.");
+      // The key is not needed again; don't keep it for the credential's life.
+      this.key = null;
     } catch (Exception e) {
       log.error("There was a problem decrypting the token data!");
       log.debug(e.toString());
+      if (this.key != null) {
+        // A key on trial that does not decrypt the token is not kept.
+        this.key.discard();
+      }
       throw e;
     }
   }
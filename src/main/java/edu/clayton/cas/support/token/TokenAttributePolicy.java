@@ -0,0 +1,204 @@
+package edu.clayton.cas.support.token;
+
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The compiled form of a required attributes list and an attributes
+ * mapping (see {@link TokenAttributes#setRequiredTokenAttributes(java.util.List)}
+ * and {@link TokenAttributes#setTokenAttributesMap(java.util.Map)}).</p>
+ *
+ * <p>A policy is immutable, so one instance is compiled when the
+ * authentication handler is configured and then shared by every
+ * {@link Token}. Each required attribute is given a bit; a
+ * {@link TokenAttributes} instance sets the bit as the attribute is added,
+ * so checking for the required attributes is a single mask comparison
+ * rather than a lookup per attribute.</p>
+ */
+public final class TokenAttributePolicy implements Serializable {
+  private static final long serialVersionUID = 8145913020536411877L;
+
+  /** The most required attributes a policy can check. **/
+  public static final int MAX_REQUIRED_ATTRIBUTES = 64;
+
+  /** Requires only the username, with the default attribute names. **/
+  public static final TokenAttributePolicy DEFAULT_POLICY = new TokenAttributePolicy(null, null);
+
+  private final TokenAttributeSchema schema;
+  private final String[] requiredNames;
+  private final long requiredMask;
+
+  private transient HashMap<String, Long> requiredBits;
+
+  private TokenAttributePolicy(List<String> requiredTokenAttributes, Map<String, String> tokenAttributesMap) {
+    this.schema = TokenAttributeSchema.forMap(tokenAttributesMap);
+
+    LinkedHashMap<String, Long> bits = new LinkedHashMap<String, Long>();
+    if (requiredTokenAttributes != null) {
+      for (String name : requiredTokenAttributes) {
+        Assert.notNull(name, "required attribute names cannot be null");
+        if (!bits.containsKey(name)) {
+          bits.put(this.schema.share(name), 1L << bits.size());
+        }
+      }
+    }
+
+    this.requiredNames = bits.keySet().toArray(new String[bits.size()]);
+    this.requiredMask = (bits.size() == MAX_REQUIRED_ATTRIBUTES) ? -1L : (1L << bits.size()) - 1;
+    this.requiredBits = bits;
+  }
+
+  /**
+   * Compile a required attributes list and an attributes mapping.
+   *
+   * @param requiredTokenAttributes The names of the attributes that must be
+   *                                present, or {@code null}.
+   * @param tokenAttributesMap The attributes mapping, or {@code null}.
+   * @return The compiled {@linkplain TokenAttributePolicy}.
+   * @throws IllegalArgumentException If more than
+   *         {@link #MAX_REQUIRED_ATTRIBUTES} attributes are required, or
+   *         a name or mapping is not a string.
+   */
+  @SuppressWarnings("unchecked")
+  public static TokenAttributePolicy compile(List requiredTokenAttributes, Map tokenAttributesMap) {
+    if ((requiredTokenAttributes == null || requiredTokenAttributes.isEmpty()) &&
+        (tokenAttributesMap == null || tokenAttributesMap.isEmpty())) {
+      return DEFAULT_POLICY;
+    }
+
+    Assert.isTrue(
+        requiredTokenAttributes == null || requiredTokenAttributes.size() <= MAX_REQUIRED_ATTRIBUTES,
+        "no more than " + MAX_REQUIRED_ATTRIBUTES + " attributes can be required"
+    );
+
+    // The settings come from Spring as raw collections; check their
+    // contents here so the casts below are safe.
+    if (requiredTokenAttributes != null) {
+      for (Object name : requiredTokenAttributes) {
+        Assert.isTrue(name == null || name instanceof String, "required attribute names must be strings");
+      }
+    }
+    if (tokenAttributesMap != null) {
+      for (Object entry : tokenAttributesMap.entrySet()) {
+        Object key = ((Map.Entry) entry).getKey();
+        Object value = ((Map.Entry) entry).getValue();
+        Assert.isTrue(key instanceof String && (value == null || value instanceof String),
+            "the attributes mapping must map strings to strings");
+      }
+    }
+
+    return new TokenAttributePolicy(
+        (List<String>) requiredTokenAttributes,
+        (Map<String, String>) tokenAttributesMap
+    );
+  }
+
+  /** The schema that resolves the well known property names. */
+  TokenAttributeSchema schema() {
+    return this.schema;
+  }
+
+  /**
+   * The bit assigned to an attribute name.
+   *
+   * @param name An attribute name.
+   * @return The attribute's bit, or 0 if it is not required.
+   */
+  long requiredBit(String name) {
+    if (this.requiredNames.length == 0) {
+      return 0L;
+    }
+
+    Long bit = this.requiredBits.get(name);
+    return (bit == null) ? 0L : bit;
+  }
+
+  /**
+   * Whether the attributes described by a mask include every required
+   * attribute.
+   *
+   * @param mask The bits of the attributes that are present.
+   * @return {@code true} if all required attributes are present.
+   */
+  boolean isSatisfiedBy(long mask) {
+    return (mask & this.requiredMask) == this.requiredMask;
+  }
+
+  /**
+   * The attribute names a policy knows of: the names of the well known
+   * properties, in slot order, followed by the required names. Both ends
+   * of a stream written with {@link #writeCompact(java.io.ObjectOutput)}
+   * agree on it, so a name in it can be written as its index.
+   *
+   * @return The attribute names.
+   */
+  String[] nameTable() {
+    String[] names = new String[TokenAttributeSchema.PROPERTY_COUNT + this.requiredNames.length];
+    for (int i = 0; i < TokenAttributeSchema.PROPERTY_COUNT; i += 1) {
+      names[i] = this.schema.propertyName(i);
+    }
+    System.arraycopy(this.requiredNames, 0, names, TokenAttributeSchema.PROPERTY_COUNT, this.requiredNames.length);
+    return names;
+  }
+
+  /**
+   * Write the attribute names that define the policy, or a single byte
+   * for the {@link #DEFAULT_POLICY}.
+   */
+  void writeCompact(ObjectOutput out) throws IOException {
+    if (this == DEFAULT_POLICY) {
+      out.writeBoolean(true);
+      return;
+    }
+
+    out.writeBoolean(false);
+    for (int i = 0; i < TokenAttributeSchema.PROPERTY_COUNT; i += 1) {
+      out.writeUTF(this.schema.propertyName(i));
+    }
+    out.writeByte(this.requiredNames.length);
+    for (String name : this.requiredNames) {
+      out.writeUTF(name);
+    }
+  }
+
+  /**
+   * Read a policy written by {@link #writeCompact(java.io.ObjectOutput)}.
+   * Equal mappings share a schema, as they do when compiled.
+   */
+  static TokenAttributePolicy readCompact(ObjectInput in) throws IOException {
+    if (in.readBoolean()) {
+      return DEFAULT_POLICY;
+    }
+
+    String[] propertyNames = new String[TokenAttributeSchema.PROPERTY_COUNT];
+    for (int i = 0; i < propertyNames.length; i += 1) {
+      propertyNames[i] = in.readUTF();
+    }
+    int count = in.readUnsignedByte();
+    ArrayList<String> required = new ArrayList<String>(count);
+    for (int i = 0; i < count; i += 1) {
+      required.add(in.readUTF());
+    }
+
+    return TokenAttributePolicy.compile(required, TokenAttributeSchema.mappingFor(propertyNames));
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+
+    this.requiredBits = new HashMap<String, Long>();
+    for (int i = 0; i < this.requiredNames.length; i += 1) {
+      this.requiredBits.put(this.requiredNames[i], 1L << i);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package edu.clayton.cas.support.token;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Describes the attribute names used by a family of
+ * {@link TokenAttributes} instances that share the same attributes
+ * mapping (see {@link TokenAttributes#setTokenAttributesMap(java.util.Map)}).</p>
+ *
+ * <p>A schema resolves the names of the well known properties (username,
+ * email, first name and last name) once, instead of on every getter call,
+ * and keeps a table of attribute names so that every
+ * {@linkplain TokenAttributes} instance refers to the same {@link String}
+ * objects rather than holding its own copies.</p>
+ */
+public final class TokenAttributeSchema implements Serializable {
+  private static final long serialVersionUID = -3161437150939536225L;
+
+  static final int USERNAME = 0;
+  static final int EMAIL = 1;
+  static final int FIRST_NAME = 2;
+  static final int LAST_NAME = 3;
+  static final int PROPERTY_COUNT = 4;
+
+  /** The {@linkplain TokenAttributes} property names, in slot order. **/
+  private static final String[] PROPERTIES = {"username", "email", "firstName", "lastName"};
+
+  /** Limits how many names a schema will share, since names come from clients. **/
+  private static final int MAX_SHARED_NAMES = 1024;
+
+  /** Limits how many distinct attribute mappings are remembered. **/
+  private static final int MAX_SCHEMAS = 64;
+
+  private static final TokenAttributeSchema DEFAULT_SCHEMA = new TokenAttributeSchema(null);
+
+  private static final ConcurrentHashMap<Map<String, String>, TokenAttributeSchema> schemas =
+      new ConcurrentHashMap<Map<String, String>, TokenAttributeSchema>();
+
+  private final String[] propertyNames = new String[PROPERTY_COUNT];
+
+  private transient ConcurrentHashMap<String, String> sharedNames;
+
+  private TokenAttributeSchema(Map<String, String> tokenAttributesMap) {
+    for (int i = 0; i < PROPERTY_COUNT; i += 1) {
+      // .toLowerCase() because the original methods were not camel cased.
+      String name = PROPERTIES[i].toLowerCase();
+
+      if (tokenAttributesMap != null) {
+        String mapped = tokenAttributesMap.get(PROPERTIES[i]);
+        name = (mapped == null) ? name : mapped;
+      }
+
+      this.propertyNames[i] = name;
+    }
+
+    this.initSharedNames();
+  }
+
+  /**
+   * Retrieve the schema for an attributes mapping. Equal mappings share
+   * a single schema.
+   *
+   * @param tokenAttributesMap The attributes mapping, or {@code null} for
+   *                           the default property names.
+   * @return The {@linkplain TokenAttributeSchema} for the mapping.
+   */
+  public static TokenAttributeSchema forMap(Map<String, String> tokenAttributesMap) {
+    if (tokenAttributesMap == null || tokenAttributesMap.isEmpty()) {
+      return DEFAULT_SCHEMA;
+    }
+
+    TokenAttributeSchema schema = schemas.get(tokenAttributesMap);
+    if (schema == null) {
+      Map<String, String> copy = new HashMap<String, String>(tokenAttributesMap);
+      schema = new TokenAttributeSchema(copy);
+
+      if (schemas.size() < MAX_SCHEMAS) {
+        TokenAttributeSchema existing = schemas.putIfAbsent(copy, schema);
+        schema = (existing == null) ? schema : existing;
+      }
+    }
+
+    return schema;
+  }
+
+  /**
+   * The attribute name that holds one of the well known properties.
+   *
+   * @param slot One of the property slot constants.
+   * @return The attribute name.
+   */
+  String propertyName(int slot) {
+    return this.propertyNames[slot];
+  }
+
+  /**
+   * Find the property slot for an attribute name.
+   *
+   * @param name An attribute name.
+   * @return The property slot, or -1 if the attribute is not a well known
+   *         property.
+   */
+  int slotOf(String name) {
+    for (int i = 0; i < PROPERTY_COUNT; i += 1) {
+      if (this.propertyNames[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return the schema's shared instance of an attribute name.
+   *
+   * @param name An attribute name.
+   * @return An equal {@link String}, shared when possible.
+   */
+  String share(String name) {
+    String shared = this.sharedNames.get(name);
+
+    if (shared == null) {
+      shared = name;
+      if (this.sharedNames.size() < MAX_SHARED_NAMES) {
+        String existing = this.sharedNames.putIfAbsent(name, name);
+        shared = (existing == null) ? name : existing;
+      }
+    }
+
+    return shared;
+  }
+
+  private void initSharedNames() {
+    this.sharedNames = new ConcurrentHashMap<String, String>();
+    for (String name : this.propertyNames) {
+      this.sharedNames.put(name, name);
+    }
+  }
+
+  /**
+   * Build the attributes mapping that gives the well known properties
+   * the names of a schema.
+   *
+   * @param propertyNames The attribute names, in slot order.
+   * @return The mapping, or {@code null} if the names are the default
+   *         ones.
+   */
+  static Map<String, String> mappingFor(String[] propertyNames) {
+    for (int i = 0; i < PROPERTY_COUNT; i += 1) {
+      if (!propertyNames[i].equals(DEFAULT_SCHEMA.propertyNames[i])) {
+        Map<String, String> mapping = new HashMap<String, String>(PROPERTY_COUNT);
+        for (int j = 0; j < PROPERTY_COUNT; j += 1) {
+          mapping.put(PROPERTIES[j], propertyNames[j]);
+        }
+        return mapping;
+      }
+    }
+    return null;
+  }
+
+  private Object readResolve() {
+    return TokenAttributeSchema.forMap(TokenAttributeSchema.mappingFor(this.propertyNames));
+  }
+}
@@ -1,26 +1,69 @@
 package edu.clayton.cas.support.token;
 
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
- * Defines the object encoded in a {@link Token}'s "credentials" property.
+ * <p>Defines the object encoded in a {@link Token}'s "credentials" property.</p>
+ *
+ * <p>A {@linkplain TokenAttributes} instance usually holds a handful of
+ * attributes and lives as long as the user's session, so it is stored as a
+ * flat array of name/value pairs rather than a hash table. Attribute names
+ * are shared through a {@link TokenAttributeSchema}, and the positions of
+ * the username, email, first name and last name attributes are kept so the
+ * getters do not have to search for them.</p>
+ *
+ * <p>Reads never lock: every change publishes a new, immutable view of the
+ * array. Like the {@link java.util.concurrent.ConcurrentHashMap} this class
+ * used to extend, {@code null} names and values are not allowed.</p>
+ *
+ * <p>An instance is serialized in a compact, versioned binary form (see
+ * {@link SerializedTokenAttributes}) in which the names known to its
+ * {@link TokenAttributePolicy} take a single byte each.</p>
  */
-public class TokenAttributes extends ConcurrentHashMap<String, Object> {
+public class TokenAttributes extends AbstractMap<String, Object> implements Serializable {
+  private static final long serialVersionUID = -2478392733151960466L;
+
   private final static Logger log = LoggerFactory.getLogger(TokenAttributes.class);
 
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
   private List<String> requiredTokenAttributes;
   private Map<String, String> tokenAttributesMap;
 
+  private TokenAttributePolicy policy;
+  private transient volatile Entries entries;
+  private boolean frozen = false;
+
+  /** Value tags of the compact serialized form. **/
+  private static final int STRING_VALUE = 0;
+  private static final int LIST_VALUE = 1;
+  private static final int OBJECT_VALUE = 2;
+
+  /** Marks a name that is not in the policy's name table. **/
+  private static final int LITERAL_NAME = 0xff;
+
+  /** The longest string written with writeUTF, which is limited to 65535 bytes. **/
+  private static final int MAX_UTF_LENGTH = 65535 / 3;
+
   /**
    * Initialize a {@linkplain TokenAttributes} object from a JSON
    * encoded string.
@@ -42,37 +85,32 @@ public class TokenAttributes extends ConcurrentHashMap<String, Object> {
    */
   public TokenAttributes(String data, List requiredTokenAttributes, Map tokenAttributesMap)
   {
-    Assert.notNull(data);
+    this(TokenAttributePolicy.compile(requiredTokenAttributes, tokenAttributesMap));
     this.requiredTokenAttributes = requiredTokenAttributes;
     this.tokenAttributesMap = tokenAttributesMap;
+    Assert.notNull(data);
 
-    JSONObject jsonObject;
     try {
-      jsonObject= new JSONObject(data);
-
-      String[] keys = JSONObject.getNames(jsonObject);
-
-      for (String k : keys) {
-        Object entry = jsonObject.get(k);
-        if (entry instanceof JSONArray) {
-          this.put(k, toList( (JSONArray) entry));
-        } else {
-          this.put(k, entry.toString());
-        } 
-      }
-
+      byte[] bytes = data.getBytes(UTF8);
+      new TokenParser(bytes, 0, bytes.length).parseObject(this);
+      this.trimToSize();
     } catch (JSONException e) {
       log.error("Could not parse TokenAttributes data!");
       log.debug(e.toString());
     }
   }
 
-  private List toList(JSONArray array) throws JSONException {
-    List list = new ArrayList();
-    for (int i = 0; i < array.length(); i++) {
-      list.add(array.get(i).toString());
-    }
-    return list;
+  /**
+   * Initialize an empty {@linkplain TokenAttributes} object, governed by
+   * a compiled {@link TokenAttributePolicy}, that a {@link TokenParser}
+   * will fill in.
+   *
+   * @param policy The policy that names and validates the attributes.
+   */
+  TokenAttributes(TokenAttributePolicy policy) {
+    Assert.notNull(policy);
+    this.policy = policy;
+    this.entries = Entries.EMPTY;
   }
 
   /**
@@ -84,8 +122,10 @@ public class TokenAttributes extends ConcurrentHashMap<String, Object> {
    *
    * @param attributes A {@link List} of required attributes.
    */
-  public void setRequiredTokenAttributes(List<String> attributes) {
+  public synchronized void setRequiredTokenAttributes(List<String> attributes) {
+    this.checkModifiable();
     this.requiredTokenAttributes = attributes;
+    this.setPolicy(TokenAttributePolicy.compile(attributes, this.tokenAttributesMap));
   }
 
   /**
@@ -110,8 +150,23 @@ public class TokenAttributes extends ConcurrentHashMap<String, Object> {
    *
    * @param attributesMap A {@link Map} of attribute names.
    */
-  public void setTokenAttributesMap(Map<String, String> attributesMap) {
+  public synchronized void setTokenAttributesMap(Map<String, String> attributesMap) {
+    this.checkModifiable();
     this.tokenAttributesMap = attributesMap;
+    this.setPolicy(TokenAttributePolicy.compile(this.requiredTokenAttributes, attributesMap));
+  }
+
+  /**
+   * Replace the {@link TokenAttributePolicy} that names and validates the
+   * attributes.
+   *
+   * @param policy The compiled policy.
+   */
+  private void setPolicy(TokenAttributePolicy policy) {
+    this.policy = policy;
+
+    Entries current = this.entries;
+    this.entries = current.copy(current.size, policy);
   }
 
   /**
@@ -122,73 +177,416 @@ public class TokenAttributes extends ConcurrentHashMap<String, Object> {
    * @return {@code true} if all required attributes are present
    */
   public boolean isValid() {
-    boolean result = true;
+    Entries current = this.entries;
 
     // The username attribute will always be required.
-    result = (this.getUsername() != null);
-
-    if (result == true && this.requiredTokenAttributes != null) {
-      for (String attr : this.requiredTokenAttributes) {
-        if (this.get(attr) == null) {
-          result = false;
-          break;
-        }
-      }
-    }
-
-    return result;
+    return current.property(TokenAttributeSchema.USERNAME) != null &&
+        this.policy.isSatisfiedBy(current.requiredMask);
   }
 
   public String getEmail() {
-    return (String) this.get(this.lookupAttributeName("email"));
+    return (String) this.entries.property(TokenAttributeSchema.EMAIL);
   }
 
   public void setEmail(String email) {
-    this.put(this.lookupAttributeName("email"), email);
+    this.put(this.policy.schema().propertyName(TokenAttributeSchema.EMAIL), email);
   }
 
   public String getFirstName() {
-    return (String) this.get(this.lookupAttributeName("firstName"));
+    return (String) this.entries.property(TokenAttributeSchema.FIRST_NAME);
   }
 
   public void setFirstName(String firstName) {
-    this.put(this.lookupAttributeName("firstName"), firstName);
+    this.put(this.policy.schema().propertyName(TokenAttributeSchema.FIRST_NAME), firstName);
   }
 
   public String getLastName() {
-    return (String) this.get(this.lookupAttributeName("lastName"));
+    return (String) this.entries.property(TokenAttributeSchema.LAST_NAME);
   }
 
   public void setLastName(String lastName) {
-    this.put(this.lookupAttributeName("lastName"), lastName);
+    this.put(this.policy.schema().propertyName(TokenAttributeSchema.LAST_NAME), lastName);
   }
 
   public String getUsername() {
-    return (String) this.get(this.lookupAttributeName("username"));
+    return (String) this.entries.property(TokenAttributeSchema.USERNAME);
   }
 
   public void setUsername(String username) {
-    this.put(this.lookupAttributeName("username"), username);
+    this.put(this.policy.schema().propertyName(TokenAttributeSchema.USERNAME), username);
+  }
+
+  @Override
+  public int size() {
+    return this.entries.size;
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    return this.entries.indexOf(name) >= 0;
+  }
+
+  @Override
+  public Object get(Object name) {
+    Entries current = this.entries;
+    int index = current.indexOf(name);
+    return (index < 0) ? null : current.table[2 * index + 1];
+  }
+
+  @Override
+  public synchronized Object put(String name, Object value) {
+    if (name == null || value == null) {
+      throw new NullPointerException();
+    }
+    this.checkModifiable();
+
+    Entries current = this.entries;
+    int index = current.indexOf(name);
+
+    if (index >= 0) {
+      Object previous = current.table[2 * index + 1];
+      Entries copy = current.copy(current.size, this.policy);
+      copy.table[2 * index + 1] = value;
+      this.entries = copy;
+      return previous;
+    }
+
+    this.entries = current.append(this.policy.schema().share(name), value, this.policy);
+    return null;
+  }
+
+  @Override
+  public synchronized Object remove(Object name) {
+    this.checkModifiable();
+    Entries current = this.entries;
+    int index = current.indexOf(name);
+
+    if (index < 0) {
+      return null;
+    }
+
+    Object previous = current.table[2 * index + 1];
+    this.entries = current.without(index, this.policy);
+    return previous;
+  }
+
+  @Override
+  public synchronized void clear() {
+    this.checkModifiable();
+    this.entries = Entries.EMPTY;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new EntrySet();
   }
 
   /**
-   * Used to lookup the name of an attribute based on whether or not
-   * there is an alternate mapping supplied by
-   * {@link TokenAttributes#tokenAttributesMap}.
-   *
-   * @param attribute The name of the {@linkplain TokenAttributes} property to lookup.
-   * @return The mapped name, or the passed in name.
+   * Drop any spare capacity left over from building the instance. This
+   * is invoked once an instance has been filled from a token.
+   */
+  synchronized void trimToSize() {
+    Entries current = this.entries;
+    if (current.table.length > 2 * current.size) {
+      this.entries = current.copy(current.size, this.policy);
+    }
+  }
+
+  /**
+   * Make the instance unmodifiable. This is done once the user has been
+   * authenticated, so that the attributes can be shared with the principal.
+   */
+  public synchronized void freeze() {
+    this.frozen = true;
+  }
+
+  /**
+   * @return {@code true} if {@link TokenAttributes#freeze()} has been
+   *         invoked.
+   */
+  public synchronized boolean isFrozen() {
+    return this.frozen;
+  }
+
+  private void checkModifiable() {
+    if (this.frozen) {
+      throw new UnsupportedOperationException("TokenAttributes are frozen");
+    }
+  }
+
+  /**
+   * Write the instance in its compact form: the policy, which is all that
+   * is needed to validate the attributes, and the name/value pairs. Names
+   * in the policy's name table are written as their index. The attribute
+   * settings the policy was compiled from are not written.
+   */
+  synchronized void writeCompact(ObjectOutput out) throws IOException {
+    Entries current = this.entries;
+
+    this.policy.writeCompact(out);
+    out.writeBoolean(this.frozen);
+
+    String[] names = this.policy.nameTable();
+    out.writeInt(current.size);
+    for (int i = 0; i < current.size; i += 1) {
+      String name = (String) current.table[2 * i];
+      int index = TokenAttributes.indexOf(names, name);
+      if (index < 0) {
+        out.writeByte(LITERAL_NAME);
+        out.writeUTF(name);
+      } else {
+        out.writeByte(index);
+      }
+      TokenAttributes.writeValue(out, current.table[2 * i + 1]);
+    }
+  }
+
+  /**
+   * Read an instance written by {@link #writeCompact(java.io.ObjectOutput)}.
+   */
+  static TokenAttributes readCompact(ObjectInput in) throws IOException, ClassNotFoundException {
+    TokenAttributes attributes = new TokenAttributes(TokenAttributePolicy.readCompact(in));
+    boolean frozen = in.readBoolean();
+
+    String[] names = attributes.policy.nameTable();
+    int size = in.readInt();
+    Entries read = Entries.EMPTY;
+    for (int i = 0; i < size; i += 1) {
+      int index = in.readUnsignedByte();
+      String name = (index == LITERAL_NAME) ?
+          attributes.policy.schema().share(in.readUTF()) :
+          names[index];
+      read = read.append(name, TokenAttributes.readValue(in), attributes.policy);
+    }
+    attributes.entries = read.copy(read.size, attributes.policy);
+    attributes.frozen = frozen;
+    return attributes;
+  }
+
+  private static int indexOf(String[] names, String name) {
+    for (int i = 0; i < names.length && i < LITERAL_NAME; i += 1) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Write a value parsed from a token: strings and lists are tagged;
+   * anything else is left to the stream.
+   */
+  private static void writeValue(ObjectOutput out, Object value) throws IOException {
+    if (value instanceof String && ((String) value).length() <= MAX_UTF_LENGTH) {
+      out.writeByte(STRING_VALUE);
+      out.writeUTF((String) value);
+    } else if (value instanceof List) {
+      List list = (List) value;
+      out.writeByte(LIST_VALUE);
+      out.writeInt(list.size());
+      for (Object element : list) {
+        TokenAttributes.writeValue(out, element);
+      }
+    } else {
+      out.writeByte(OBJECT_VALUE);
+      out.writeObject(value);
+    }
+  }
+
+  private static Object readValue(ObjectInput in) throws IOException, ClassNotFoundException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case STRING_VALUE:
+        return in.readUTF();
+      case LIST_VALUE:
+        int size = in.readInt();
+        ArrayList<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i += 1) {
+          list.add(TokenAttributes.readValue(in));
+        }
+        return list;
+      case OBJECT_VALUE:
+        return in.readObject();
+      default:
+        throw new InvalidObjectException("Unknown TokenAttributes value tag " + tag);
+    }
+  }
+
+  private Object writeReplace() {
+    return new SerializedTokenAttributes(this);
+  }
+
+  /**
+   * Instances are only ever written as a {@link SerializedTokenAttributes};
+   * a stream that holds the class itself has been forged or corrupted.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    throw new InvalidObjectException("proxy required");
+  }
+
+  /**
+   * An immutable view of the attributes: {@code size} name/value pairs at
+   * the start of {@code table}, the index of each well known property, and
+   * the bits of the required attributes that are present. Slots after
+   * {@code size} may be filled by a later {@link #append}, which publishes
+   * a new view that shares the same table.
    */
-  private String lookupAttributeName(String attribute) {
-    // .toLowerCase() because the original methods were not camel cased.
-    String result = attribute.toLowerCase();
-    String tmp;
+  private static final class Entries {
+    static final Entries EMPTY = new Entries(new Object[0], 0, noProperties(), 0L);
 
-    if (this.tokenAttributesMap != null) {
-      tmp = this.tokenAttributesMap.get(attribute);
-      result = (tmp == null) ? result : tmp;
+    final Object[] table;
+    final int size;
+    final int[] properties;
+    final long requiredMask;
+
+    Entries(Object[] table, int size, int[] properties, long requiredMask) {
+      this.table = table;
+      this.size = size;
+      this.properties = properties;
+      this.requiredMask = requiredMask;
     }
 
-    return result;
+    static int[] noProperties() {
+      int[] properties = new int[TokenAttributeSchema.PROPERTY_COUNT];
+      for (int i = 0; i < properties.length; i += 1) {
+        properties[i] = -1;
+      }
+      return properties;
+    }
+
+    Object property(int slot) {
+      int index = this.properties[slot];
+      return (index < 0) ? null : this.table[2 * index + 1];
+    }
+
+    int indexOf(Object name) {
+      for (int i = 0; i < this.size; i += 1) {
+        if (this.table[2 * i] == name) {
+          return i;
+        }
+      }
+      if (name != null) {
+        for (int i = 0; i < this.size; i += 1) {
+          if (name.equals(this.table[2 * i])) {
+            return i;
+          }
+        }
+      }
+      return -1;
+    }
+
+    Entries append(String name, Object value, TokenAttributePolicy policy) {
+      Entries target = this;
+
+      // Appends are only made to the newest view, under the instance's
+      // lock, so the spare capacity is not visible to any older view.
+      if (2 * this.size + 2 > this.table.length) {
+        target = this.copy(Math.max(4, this.size * 2), policy);
+      }
+
+      target.table[2 * this.size] = name;
+      target.table[2 * this.size + 1] = value;
+
+      int[] properties = target.properties;
+      int slot = policy.schema().slotOf(name);
+      if (slot >= 0) {
+        properties = properties.clone();
+        properties[slot] = this.size;
+      }
+
+      return new Entries(
+          target.table,
+          this.size + 1,
+          properties,
+          target.requiredMask | policy.requiredBit(name)
+      );
+    }
+
+    Entries without(int index, TokenAttributePolicy policy) {
+      Object[] newTable = new Object[2 * (this.size - 1)];
+      System.arraycopy(this.table, 0, newTable, 0, 2 * index);
+      System.arraycopy(
+          this.table, 2 * index + 2,
+          newTable, 2 * index,
+          2 * (this.size - index - 1)
+      );
+      return Entries.describe(newTable, this.size - 1, policy);
+    }
+
+    Entries copy(int capacity, TokenAttributePolicy policy) {
+      Object[] newTable = new Object[2 * capacity];
+      System.arraycopy(this.table, 0, newTable, 0, 2 * this.size);
+      return Entries.describe(newTable, this.size, policy);
+    }
+
+    static Entries describe(Object[] table, int size, TokenAttributePolicy policy) {
+      int[] properties = noProperties();
+      long requiredMask = 0L;
+
+      for (int i = 0; i < size; i += 1) {
+        String name = (String) table[2 * i];
+        int slot = policy.schema().slotOf(name);
+        if (slot >= 0) {
+          properties[slot] = i;
+        }
+        requiredMask |= policy.requiredBit(name);
+      }
+
+      return new Entries(table, size, properties, requiredMask);
+    }
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+    private final Entries snapshot = TokenAttributes.this.entries;
+
+    @Override
+    public int size() {
+      return this.snapshot.size;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> iterator() {
+      return new Iterator<Map.Entry<String, Object>>() {
+        private int next = 0;
+        private String last = null;
+
+        public boolean hasNext() {
+          return this.next < snapshot.size;
+        }
+
+        public Map.Entry<String, Object> next() {
+          if (!this.hasNext()) {
+            throw new NoSuchElementException();
+          }
+
+          this.last = (String) snapshot.table[2 * this.next];
+          Object value = snapshot.table[2 * this.next + 1];
+          this.next += 1;
+          return new AttributeEntry(this.last, value);
+        }
+
+        public void remove() {
+          if (this.last == null) {
+            throw new IllegalStateException();
+          }
+          TokenAttributes.this.remove(this.last);
+          this.last = null;
+        }
+      };
+    }
+  }
+
+  private final class AttributeEntry extends AbstractMap.SimpleEntry<String, Object> {
+    private static final long serialVersionUID = 6371583417001525497L;
+
+    AttributeEntry(String name, Object value) {
+      super(name, value);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      TokenAttributes.this.put(this.getKey(), value);
+      return super.setValue(value);
+    }
   }
 }
\ No newline at end of file
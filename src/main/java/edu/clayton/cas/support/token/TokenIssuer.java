@@ -0,0 +1,165 @@
+package edu.clayton.cas.support.token;
+
+import edu.clayton.cas.support.token.keystore.Key;
+import edu.clayton.cas.support.token.keystore.Keystore;
+import edu.clayton.cas.support.token.util.Crypto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Mints tokens for the services in a {@link Keystore}, so that trusted
+ * services can have tokens made for them rather than each keeping a copy
+ * of the encryption code. A single instance may be used by any number of
+ * threads.</p>
+ *
+ * <p>Tokens are {@link Crypto#VERSION_AES_GCM} tokens (with the key's id,
+ * if it has one) encrypted with the service's primary key. The JSON is
+ * written into a buffer kept by each thread, and the ciphers and nonce
+ * generators are those cached by {@link Crypto}, so minting a token only
+ * allocates the token itself. See {@link TokenIssuerServer} for an HTTP
+ * front end.</p>
+ */
+public class TokenIssuer {
+  private static final Logger log = LoggerFactory.getLogger(TokenIssuer.class);
+
+  /** The largest buffer a thread keeps between tokens. **/
+  private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+  private final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(256);
+    }
+  };
+
+  private Keystore keystore;
+
+  private final AtomicLong issued = new AtomicLong();
+
+  /**
+   * Mint a token.
+   *
+   * @param service The name of the service whose key encrypts the token.
+   * @param credentials The token's "credentials" object; values may be
+   *                    strings, numbers, booleans, collections, maps or
+   *                    {@code null}.
+   * @return The encoded token, or {@code null} if the service has no key
+   *         that is valid now.
+   * @throws GeneralSecurityException If the token cannot be encrypted.
+   * @throws IllegalArgumentException If a value cannot be written as JSON.
+   */
+  public String issue(String service, Map<String, ?> credentials) throws GeneralSecurityException {
+    Assert.notNull(this.keystore, "keystore is required");
+    Assert.notNull(credentials, "credentials cannot be null");
+
+    long now = System.currentTimeMillis();
+    Key key = this.keystore.getKeyNamed(service);
+    if (key == null || !key.isValidAt(now)) {
+      log.warn("No valid key to issue a token for {}", service);
+      return null;
+    }
+
+    StringBuilder json = this.buffers.get();
+    if (json.capacity() > MAX_RETAINED_BUFFER) {
+      json = new StringBuilder(256);
+      this.buffers.set(json);
+    }
+    json.setLength(0);
+    json.append("{\"generated\":").append(now).append(",\"credentials\":");
+    TokenIssuer.writeValue(json, credentials);
+    json.append('}');
+
+    String token = Crypto.encryptWithKeyUsingGcm(json.toString(), key);
+    // The service was named by a trusted caller, so a key on trial may be kept.
+    key.confirm();
+    this.issued.incrementAndGet();
+    return token;
+  }
+
+  private static void writeValue(StringBuilder json, Object value) {
+    if (value == null) {
+      json.append("null");
+    } else if (value instanceof Boolean) {
+      json.append(((Boolean) value).booleanValue());
+    } else if (value instanceof Number) {
+      double number = ((Number) value).doubleValue();
+      Assert.isTrue(!Double.isNaN(number) && !Double.isInfinite(number), "numbers must be finite");
+      json.append(value.toString());
+    } else if (value instanceof Map) {
+      json.append('{');
+      Iterator<? extends Map.Entry<?, ?>> entries = ((Map<?, ?>) value).entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<?, ?> entry = entries.next();
+        TokenIssuer.writeString(json, String.valueOf(entry.getKey()));
+        json.append(':');
+        TokenIssuer.writeValue(json, entry.getValue());
+        if (entries.hasNext()) {
+          json.append(',');
+        }
+      }
+      json.append('}');
+    } else if (value instanceof Collection) {
+      json.append('[');
+      Iterator<?> elements = ((Collection<?>) value).iterator();
+      while (elements.hasNext()) {
+        TokenIssuer.writeValue(json, elements.next());
+        if (elements.hasNext()) {
+          json.append(',');
+        }
+      }
+      json.append(']');
+    } else {
+      TokenIssuer.writeString(json, value.toString());
+    }
+  }
+
+  private static void writeString(StringBuilder json, String string) {
+    json.append('"');
+    for (int i = 0, j = string.length(); i < j; i += 1) {
+      char c = string.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+
+  /**
+   * @param keystore The {@link Keystore} that holds the services' keys.
+   */
+  public void setKeystore(Keystore keystore) {
+    this.keystore = keystore;
+  }
+
+  /** The number of tokens that have been issued. */
+  public long getIssued() {
+    return this.issued.get();
+  }
+}
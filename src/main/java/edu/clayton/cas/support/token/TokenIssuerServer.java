@@ -0,0 +1,360 @@
+package edu.clayton.cas.support.token;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * <p>An embedded HTTP endpoint for a {@link TokenIssuer}, for trusted
+ * services that need tokens minted for their users.</p>
+ *
+ * <p>A service POSTs a form ({@code application/x-www-form-urlencoded})
+ * with a {@code token_service} field and the fields of the token's
+ * "credentials" object, such as {@code username}; a field that is repeated
+ * becomes a list. The request must carry one of the configured access
+ * tokens as {@code Authorization: Bearer <accessToken>}, and each access
+ * token may only have tokens issued for the services it is allowed (see
+ * {@link TokenIssuerServer#setAccessTokens(Map)}). The answer is the encoded
+ * token as {@code text/plain}, {@code 404} if the service has no valid
+ * key, {@code 403} if the access token is not allowed the service, or
+ * {@code 400}, {@code 401}, {@code 405} or {@code 413} for bad
+ * requests.</p>
+ *
+ * <p>The endpoint listens on the loopback interface unless
+ * {@link TokenIssuerServer#setBindAddress(String)} says otherwise. Access
+ * tokens and issued tokens must not cross the network in the clear, so any
+ * other address is refused unless an {@link SSLContext} is set with
+ * {@link TokenIssuerServer#setSslContext(SSLContext)}, in which case the
+ * endpoint speaks HTTPS.</p>
+ */
+public class TokenIssuerServer implements InitializingBean, DisposableBean {
+  private static final Logger log = LoggerFactory.getLogger(TokenIssuerServer.class);
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The largest request body that is read. **/
+  private static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+  /** Allows an access token every service. **/
+  public static final String ANY_SERVICE = "*";
+
+  private TokenIssuer issuer;
+  private String bindAddress = "127.0.0.1";
+  private int port = 8444;
+  private String path = "/token";
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private List<Grant> grants;
+  private SSLContext sslContext;
+
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * Start listening. Spring invokes this once the properties are set.
+   *
+   * @throws IOException If the port cannot be bound.
+   */
+  public void afterPropertiesSet() throws IOException {
+    Assert.notNull(this.issuer, "issuer is required");
+    Assert.notEmpty(this.grants, "accessTokens are required");
+    Assert.state(
+        this.sslContext != null || InetAddress.getByName(this.bindAddress).isLoopbackAddress(),
+        "an sslContext is required to listen on " + this.bindAddress
+    );
+
+    final AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "TokenIssuerServer-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    InetSocketAddress address = new InetSocketAddress(this.bindAddress, this.port);
+    if (this.sslContext == null) {
+      this.server = HttpServer.create(address, 0);
+    } else {
+      HttpsServer https = HttpsServer.create(address, 0);
+      https.setHttpsConfigurator(new HttpsConfigurator(this.sslContext));
+      this.server = https;
+    }
+    this.server.createContext(this.path, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          TokenIssuerServer.this.handle(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    this.server.setExecutor(this.executor);
+    this.server.start();
+    log.info("Issuing tokens at {}://{}:{}{}", new Object[] {
+        (this.sslContext == null) ? "http" : "https", this.bindAddress, this.getPort(), this.path
+    });
+  }
+
+  /** Stop listening. */
+  public void destroy() {
+    if (this.server != null) {
+      this.server.stop(0);
+      this.server = null;
+    }
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+      this.executor = null;
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Allow", "POST");
+      this.respond(exchange, 405, "POST required");
+      return;
+    }
+    Grant grant = this.findGrant(exchange.getRequestHeaders().getFirst("Authorization"));
+    if (grant == null) {
+      this.respond(exchange, 401, "Unauthorized");
+      return;
+    }
+
+    byte[] body = TokenIssuerServer.readBody(exchange.getRequestBody());
+    if (body == null) {
+      this.respond(exchange, 413, "Request too large");
+      return;
+    }
+
+    LinkedHashMap<String, Object> credentials;
+    try {
+      credentials = TokenIssuerServer.parseForm(new String(body, UTF8));
+    } catch (IllegalArgumentException e) {
+      // URLDecoder rejects a malformed % escape this way.
+      this.respond(exchange, 400, "Malformed form");
+      return;
+    }
+    Object service = credentials.remove("token_service");
+    if (!(service instanceof String) || credentials.get("username") == null) {
+      this.respond(exchange, 400, "token_service and username are required");
+      return;
+    }
+    if (!grant.allows((String) service)) {
+      this.respond(exchange, 403, "token_service not allowed");
+      return;
+    }
+
+    try {
+      String token = this.issuer.issue((String) service, credentials);
+      if (token == null) {
+        this.respond(exchange, 404, "Unknown token_service");
+      } else {
+        this.respond(exchange, 200, token);
+      }
+    } catch (GeneralSecurityException e) {
+      log.error("Could not issue token for {}!", service);
+      log.debug(e.toString());
+      this.respond(exchange, 500, "Could not issue token");
+    }
+  }
+
+  /**
+   * @return The grant of the presented access token, or {@code null} if it
+   *         is not one of the configured tokens.
+   */
+  private Grant findGrant(String authorization) {
+    if (authorization == null || !authorization.startsWith("Bearer ")) {
+      return null;
+    }
+    byte[] presented = authorization.substring(7).getBytes(UTF8);
+
+    // Every token is compared, so the time taken does not tell which matched.
+    Grant found = null;
+    for (Grant grant : this.grants) {
+      if (MessageDigest.isEqual(grant.accessToken, presented)) {
+        found = grant;
+      }
+    }
+    return found;
+  }
+
+  private void respond(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] bytes = text.getBytes(UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  /**
+   * @return The body, or {@code null} if it is longer than
+   *         {@link #MAX_REQUEST_LENGTH}.
+   */
+  private static byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+      if (out.size() > MAX_REQUEST_LENGTH) {
+        return null;
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static LinkedHashMap<String, Object> parseForm(String form) throws IOException {
+    LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+    for (String pair : form.split("&")) {
+      if (pair.length() == 0) {
+        continue;
+      }
+      int equals = pair.indexOf('=');
+      String name = URLDecoder.decode((equals < 0) ? pair : pair.substring(0, equals), "UTF-8");
+      String value = (equals < 0) ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+
+      Object previous = fields.get(name);
+      if (previous == null) {
+        fields.put(name, value);
+      } else if (previous instanceof List) {
+        ((List<String>) previous).add(value);
+      } else {
+        List<String> values = new ArrayList<String>();
+        values.add((String) previous);
+        values.add(value);
+        fields.put(name, values);
+      }
+    }
+    return fields;
+  }
+
+  /** The port the endpoint listens on. */
+  public int getPort() {
+    return (this.server == null) ? this.port : this.server.getAddress().getPort();
+  }
+
+  /**
+   * @param issuer The {@link TokenIssuer} that mints the tokens.
+   */
+  public void setIssuer(TokenIssuer issuer) {
+    this.issuer = issuer;
+  }
+
+  /**
+   * @param bindAddress The address to listen on (default 127.0.0.1).
+   */
+  public void setBindAddress(String bindAddress) {
+    this.bindAddress = bindAddress;
+  }
+
+  /**
+   * @param port The port to listen on (default 8444), or 0 for any free
+   *             port.
+   */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  /**
+   * @param path The path of the endpoint (default /token).
+   */
+  public void setPath(String path) {
+    this.path = path;
+  }
+
+  /**
+   * @param threads The number of threads serving requests (default: the
+   *                number of processors).
+   */
+  public void setThreads(int threads) {
+    Assert.isTrue(threads > 0, "threads must be positive");
+    this.threads = threads;
+  }
+
+  /**
+   * @param accessToken A single secret that services must present to have
+   *                    tokens issued, allowed every service. Use
+   *                    {@link #setAccessTokens(Map)} to give each service
+   *                    its own secret.
+   */
+  public void setAccessToken(String accessToken) {
+    Assert.hasLength(accessToken, "accessToken cannot be empty");
+    List<Grant> grants = new ArrayList<Grant>();
+    grants.add(new Grant(accessToken, null));
+    this.grants = grants;
+  }
+
+  /**
+   * @param accessTokens The secrets that services must present to have
+   *                     tokens issued, each with the token_service names
+   *                     it may have tokens issued for; {@link #ANY_SERVICE}
+   *                     allows every service.
+   */
+  public void setAccessTokens(Map<String, ? extends Collection<String>> accessTokens) {
+    List<Grant> grants = new ArrayList<Grant>();
+    for (Map.Entry<String, ? extends Collection<String>> entry : accessTokens.entrySet()) {
+      Assert.hasLength(entry.getKey(), "accessToken cannot be empty");
+      Assert.notNull(entry.getValue(), "services are required for every accessToken");
+      Set<String> services = new HashSet<String>(entry.getValue());
+      grants.add(new Grant(entry.getKey(), services.contains(ANY_SERVICE) ? null : services));
+    }
+    this.grants = grants;
+  }
+
+  /**
+   * @param sslContext The {@link SSLContext} to serve HTTPS with. It is
+   *                   required unless the endpoint listens on a loopback
+   *                   address.
+   */
+  public void setSslContext(SSLContext sslContext) {
+    this.sslContext = sslContext;
+  }
+
+  /** An access token and the services it may have tokens issued for. **/
+  private static final class Grant {
+    private final byte[] accessToken;
+    /** {@code null} for every service. **/
+    private final Set<String> services;
+
+    private Grant(String accessToken, Set<String> services) {
+      this.accessToken = accessToken.getBytes(UTF8);
+      this.services = services;
+    }
+
+    private boolean allows(String service) {
+      return this.services == null || this.services.contains(service);
+    }
+  }
+}
@@ -0,0 +1,420 @@
+package edu.clayton.cas.support.token;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Reads a decrypted {@link Token} in a single pass over its UTF-8 bytes.
+ * The {@code generated} timestamp is read as a number, and the members of
+ * the {@code credentials} object are put straight into a {@link Map}
+ * (normally a {@link TokenAttributes}), so no intermediate JSON object
+ * trees or strings are built.</p>
+ *
+ * <p>Values are converted the same way {@link TokenAttributes} has always
+ * converted them: strings are kept as they are, arrays become a
+ * {@link List} of strings, and any other value (numbers, booleans,
+ * {@code null} or nested objects) is kept as its JSON text.</p>
+ *
+ * <p>When {@code generated} comes before {@code credentials} and lies
+ * outside of the allowed window, parsing stops right away. See
+ * {@link TokenParser#parse(Map, long, long)}.</p>
+ */
+final class TokenParser {
+  private final byte[] data;
+  private final int end;
+  private int position;
+
+  private final StringBuilder text = new StringBuilder(64);
+
+  private long generated;
+  private boolean hasGenerated = false;
+  private int objectEnd = -1;
+
+  /**
+   * Prepare to read a token from a range of a byte array.
+   *
+   * @param data The UTF-8 encoded JSON.
+   * @param offset The index of the first byte.
+   * @param length The number of bytes.
+   */
+  TokenParser(byte[] data, int offset, int length) {
+    this.data = data;
+    this.position = offset;
+    this.end = offset + length;
+  }
+
+  /** The {@code generated} timestamp, once it has been read. */
+  long generated() {
+    return this.generated;
+  }
+
+  /** Whether the {@code generated} timestamp has been read. */
+  boolean hasGenerated() {
+    return this.hasGenerated;
+  }
+
+  /**
+   * The index just past the closing brace of the token object, once
+   * {@link TokenParser#parse(Map, long, long)} has read the whole token.
+   */
+  int objectEnd() {
+    return this.objectEnd;
+  }
+
+  /**
+   * Read a whole token: an object with a {@code generated} timestamp and
+   * a {@code credentials} object. Other members are skipped. Nothing but
+   * whitespace may follow the object, so that bytes appended to a token
+   * cannot make it look like a different one.
+   *
+   * @param credentials The map to fill with the credentials' members.
+   * @param earliest The earliest acceptable {@code generated} time.
+   * @param latest The latest acceptable {@code generated} time.
+   * @return {@code false} if reading stopped because {@code generated}
+   *         is outside of {@code [earliest, latest]}, {@code true} otherwise.
+   * @throws JSONException If the data is not a valid token.
+   */
+  boolean parse(Map<String, Object> credentials, long earliest, long latest)
+      throws JSONException
+  {
+    boolean hasCredentials = false;
+
+    this.expect('{');
+    if (this.peek() != '}') {
+      do {
+        String name = this.readString();
+        this.expect(':');
+
+        if ("generated".equals(name)) {
+          this.generated = this.readLong();
+          this.hasGenerated = true;
+          if (this.generated < earliest || this.generated > latest) {
+            return false;
+          }
+        } else if ("credentials".equals(name)) {
+          this.readObject(credentials);
+          hasCredentials = true;
+        } else {
+          this.skipValue();
+        }
+      } while (this.next(',', '}'));
+    } else {
+      this.position += 1;
+    }
+
+    if (!this.hasGenerated) {
+      throw this.error("JSONObject[\"generated\"] not found.");
+    }
+    if (!hasCredentials) {
+      throw this.error("JSONObject[\"credentials\"] not found.");
+    }
+
+    this.objectEnd = this.position;
+    while (this.position < this.end) {
+      byte c = this.data[this.position];
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        throw this.error("Unexpected data after the token object");
+      }
+      this.position += 1;
+    }
+
+    return true;
+  }
+
+  /**
+   * Read a single JSON object into a map.
+   *
+   * @param target The map to fill with the object's members.
+   * @throws JSONException If the data is not a valid JSON object.
+   */
+  void parseObject(Map<String, Object> target) throws JSONException {
+    this.readObject(target);
+  }
+
+  private void readObject(Map<String, Object> target) throws JSONException {
+    this.expect('{');
+    if (this.peek() == '}') {
+      this.position += 1;
+      return;
+    }
+
+    do {
+      String name = this.readString();
+      this.expect(':');
+
+      int c = this.peek();
+      if (c == '"') {
+        target.put(name, this.readString());
+      } else if (c == '[') {
+        target.put(name, this.readList());
+      } else {
+        target.put(name, this.readRawValue());
+      }
+    } while (this.next(',', '}'));
+  }
+
+  private List<String> readList() throws JSONException {
+    List<String> list = new ArrayList<String>();
+
+    this.expect('[');
+    if (this.peek() == ']') {
+      this.position += 1;
+      return list;
+    }
+
+    do {
+      if (this.peek() == '"') {
+        list.add(this.readString());
+      } else {
+        list.add(this.readRawValue());
+      }
+    } while (this.next(',', ']'));
+
+    return list;
+  }
+
+  /** Read any value other than a string and return its JSON text. */
+  private String readRawValue() throws JSONException {
+    this.peek();
+    int start = this.position;
+    this.skipValue();
+
+    this.text.setLength(0);
+    this.decode(start, this.position);
+    return this.text.toString();
+  }
+
+  private long readLong() throws JSONException {
+    int c = this.peek();
+    String number = (c == '"') ? this.readString() : this.readRawValue();
+
+    try {
+      return Long.parseLong(number);
+    } catch (NumberFormatException e) {
+      try {
+        return (long) Double.parseDouble(number);
+      } catch (NumberFormatException nested) {
+        throw this.error("JSONObject[\"generated\"] is not a number.");
+      }
+    }
+  }
+
+  private String readString() throws JSONException {
+    this.expect('"');
+    this.text.setLength(0);
+
+    int start = this.position;
+    while (true) {
+      if (this.position >= this.end) {
+        throw this.error("Unterminated string");
+      }
+
+      byte b = this.data[this.position];
+      if (b == '"') {
+        this.decode(start, this.position);
+        this.position += 1;
+        return this.text.toString();
+      }
+
+      if (b == '\\') {
+        this.decode(start, this.position);
+        this.position += 1;
+        this.readEscape();
+        start = this.position;
+      } else {
+        this.position += 1;
+      }
+    }
+  }
+
+  private void readEscape() throws JSONException {
+    if (this.position >= this.end) {
+      throw this.error("Unterminated string");
+    }
+
+    byte b = this.data[this.position++];
+    switch (b) {
+      case 'b':
+        this.text.append('\b');
+        break;
+      case 't':
+        this.text.append('\t');
+        break;
+      case 'n':
+        this.text.append('\n');
+        break;
+      case 'f':
+        this.text.append('\f');
+        break;
+      case 'r':
+        this.text.append('\r');
+        break;
+      case 'u':
+        if (this.position + 4 > this.end) {
+          throw this.error("Illegal escape.");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i += 1) {
+          int digit = Character.digit(this.data[this.position++], 16);
+          if (digit < 0) {
+            throw this.error("Illegal escape.");
+          }
+          value = (value << 4) | digit;
+        }
+        this.text.append((char) value);
+        break;
+      case '"':
+      case '\\':
+      case '/':
+        this.text.append((char) b);
+        break;
+      default:
+        throw this.error("Illegal escape.");
+    }
+  }
+
+  /** Append the UTF-8 bytes in {@code [start, stop)} to the text buffer. */
+  private void decode(int start, int stop) {
+    int i = start;
+    while (i < stop) {
+      int b = this.data[i] & 0xFF;
+
+      if (b < 0x80) {
+        this.text.append((char) b);
+        i += 1;
+        continue;
+      }
+
+      int extra;
+      int codePoint;
+      if (b >= 0xF0 && b < 0xF8) {
+        extra = 3;
+        codePoint = b & 0x07;
+      } else if (b >= 0xE0) {
+        extra = (b < 0xF0) ? 2 : -1;
+        codePoint = b & 0x0F;
+      } else if (b >= 0xC0) {
+        extra = 1;
+        codePoint = b & 0x1F;
+      } else {
+        extra = -1;
+        codePoint = 0;
+      }
+
+      boolean valid = (extra > 0 && i + extra < stop);
+      for (int k = 1; valid && k <= extra; k += 1) {
+        int next = this.data[i + k] & 0xFF;
+        valid = ((next & 0xC0) == 0x80);
+        codePoint = (codePoint << 6) | (next & 0x3F);
+      }
+
+      if (valid && Character.isValidCodePoint(codePoint)) {
+        this.text.appendCodePoint(codePoint);
+        i += extra + 1;
+      } else {
+        this.text.append('\uFFFD');
+        i += 1;
+      }
+    }
+  }
+
+  private void skipValue() throws JSONException {
+    int c = this.peek();
+
+    if (c == '"') {
+      this.skipString();
+    } else if (c == '{' || c == '[') {
+      this.skipNested();
+    } else {
+      int start = this.position;
+      while (this.position < this.end) {
+        byte b = this.data[this.position];
+        if (b == ',' || b == '}' || b == ']' || (b >= 0 && b <= ' ')) {
+          break;
+        }
+        this.position += 1;
+      }
+      if (this.position == start) {
+        throw this.error("Missing value");
+      }
+    }
+  }
+
+  private void skipString() throws JSONException {
+    this.position += 1;
+    while (this.position < this.end) {
+      byte b = this.data[this.position++];
+      if (b == '\\') {
+        this.position += 1;
+      } else if (b == '"') {
+        return;
+      }
+    }
+    throw this.error("Unterminated string");
+  }
+
+  private void skipNested() throws JSONException {
+    int depth = 0;
+    while (this.position < this.end) {
+      byte b = this.data[this.position];
+      if (b == '"') {
+        this.skipString();
+        continue;
+      }
+
+      this.position += 1;
+      if (b == '{' || b == '[') {
+        depth += 1;
+      } else if (b == '}' || b == ']') {
+        depth -= 1;
+        if (depth == 0) {
+          return;
+        }
+      }
+    }
+    throw this.error("Unterminated object or array");
+  }
+
+  /**
+   * Consume the separator after a member or element.
+   *
+   * @return {@code true} for the separator, {@code false} for the closer.
+   */
+  private boolean next(char separator, char closer) throws JSONException {
+    int c = this.peek();
+    this.position += 1;
+
+    if (c == separator) {
+      return true;
+    }
+    if (c == closer) {
+      return false;
+    }
+    throw this.error("Expected a '" + separator + "' or '" + closer + "'");
+  }
+
+  private void expect(char expected) throws JSONException {
+    if (this.peek() != expected) {
+      throw this.error("Expected '" + expected + "'");
+    }
+    this.position += 1;
+  }
+
+  /** Skip white space and return the next byte without consuming it. */
+  private int peek() throws JSONException {
+    while (this.position < this.end && this.data[this.position] <= ' ' && this.data[this.position] >= 0) {
+      this.position += 1;
+    }
+    if (this.position >= this.end) {
+      throw this.error("Unexpected end of token data");
+    }
+    return this.data[this.position];
+  }
+
+  private JSONException error(String message) {
+    return new JSONException(message + " at character " + this.position);
+  }
+}
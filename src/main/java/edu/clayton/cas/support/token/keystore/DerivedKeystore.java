@@ -0,0 +1,279 @@
+package edu.clayton.cas.support.token.keystore;
+
+import edu.clayton.cas.support.token.util.Crypto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A {@link Keystore} that derives each service's key from a master
+ * secret and the service's name (see
+ * {@link Crypto#deriveAes128Key(byte[], String)}), so that no key has to be
+ * stored per service. The key to hand to a service's owner is printed by
+ * {@link edu.clayton.cas.support.token.util.KeyGenCLI} with its
+ * {@code -master} option.</p>
+ *
+ * <p>Any name has a key, so a derived key is handed out on trial (see
+ * {@link Key#isProvisional()}): it is not cached, by this store or by
+ * {@link Crypto}, until a token has decrypted under it, and it is wiped at
+ * once if none does. A client sending made up service names therefore costs
+ * one derivation per request and leaves nothing behind. Confirmed keys are
+ * kept in a bounded cache, least recently used first out, so each real
+ * service's key is derived about once per node. Keys stored in an
+ * optional backing keystore (see {@link DerivedKeystore#setKeystore(Keystore)})
+ * take precedence over derived ones, so that services with keys of their
+ * own keep working.</p>
+ */
+public class DerivedKeystore implements Keystore {
+  private static final Logger log = LoggerFactory.getLogger(DerivedKeystore.class);
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The shortest master secret, in UTF-8 bytes, that is accepted. **/
+  public static final int MIN_MASTER_KEY_LENGTH = 16;
+
+  private volatile byte[] masterKey;
+  private Keystore keystore;
+  private int cacheSize = 1024;
+
+  private LinkedHashMap<String, Key> derived = this.newCache();
+
+  private volatile long derivations = 0;
+
+  /**
+   * Retrieve the keys of the backing keystore. Derived keys are not
+   * listed, since any name has one.
+   *
+   * @return The stored keys.
+   */
+  public ArrayList<Key> keys() {
+    return (this.keystore == null) ? new ArrayList<Key>() : this.keystore.keys();
+  }
+
+  /**
+   * Retrieve the number of keys in the backing keystore.
+   *
+   * @return The number of stored keys.
+   */
+  public int size() {
+    return (this.keystore == null) ? 0 : this.keystore.size();
+  }
+
+  /**
+   * Retrieve the keys of the backing keystore, without copying them.
+   *
+   * @return An unmodifiable collection of the stored keys.
+   */
+  public Collection<Key> snapshot() {
+    return (this.keystore == null) ? Collections.<Key>emptyList() : this.keystore.snapshot();
+  }
+
+  /**
+   * Pass each key of the backing keystore to a visitor.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor) {
+    if (this.keystore != null) {
+      this.keystore.forEachKey(visitor);
+    }
+  }
+
+  /**
+   * Store a key in the backing keystore, where it takes precedence over
+   * the derived key of the same name.
+   *
+   * @param key The {@linkplain Key} to add.
+   * @throws UnsupportedOperationException If there is no backing keystore.
+   */
+  public void addKey(Key key) {
+    if (this.keystore == null) {
+      throw new UnsupportedOperationException("DerivedKeystore has no backing keystore");
+    }
+    this.keystore.addKey(key);
+  }
+
+  /**
+   * Store several keys in the backing keystore.
+   *
+   * @param keys The {@linkplain Key}s to add.
+   * @throws UnsupportedOperationException If there is no backing keystore.
+   */
+  public void addKeys(Collection<Key> keys) {
+    if (this.keystore == null) {
+      throw new UnsupportedOperationException("DerivedKeystore has no backing keystore");
+    }
+    this.keystore.addKeys(keys);
+  }
+
+  /**
+   * Remove keys from the backing keystore, so that the names fall back to
+   * their derived keys.
+   *
+   * @param names The key names to remove.
+   * @throws UnsupportedOperationException If there is no backing keystore.
+   */
+  public void removeKeys(Collection<String> names) {
+    if (this.keystore == null) {
+      throw new UnsupportedOperationException("DerivedKeystore has no backing keystore");
+    }
+    this.keystore.removeKeys(names);
+  }
+
+  /**
+   * Retrieve a named key from the keystore.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @return The stored or derived {@linkplain Key}.
+   */
+  public Key getKeyNamed(String name) {
+    return this.getKey(name, null);
+  }
+
+  /**
+   * Retrieve a key from the keystore by its name and id. A key with an id
+   * is derived from its name and id together, so a service's keys can be
+   * rotated by changing the id.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null}.
+   * @return The stored or derived {@linkplain Key}, or {@code null} if no
+   *         master secret is set.
+   */
+  public Key getKey(String name, String id) {
+    if (this.keystore != null) {
+      Key stored = (id == null) ? this.keystore.getKeyNamed(name) : this.keystore.getKey(name, id);
+      if (stored != null) {
+        return stored;
+      }
+    }
+    byte[] masterKey = this.masterKey;
+    if (masterKey == null) {
+      return null;
+    }
+
+    String qualifiedName = (id == null) ? name : name + "#" + id;
+    Key key;
+    synchronized (this) {
+      key = this.derived.get(qualifiedName);
+    }
+    if (key != null) {
+      return key;
+    }
+
+    key = this.derive(masterKey, name, id, qualifiedName);
+    if (key != null) {
+      key.setProvisional(this, masterKey);
+    }
+    return key;
+  }
+
+  /**
+   * Cache a derived key that a token has decrypted under; see
+   * {@link Key#confirm()}.
+   *
+   * @param key The confirmed key.
+   * @param masterKey The master secret the key was derived from.
+   */
+  void admit(Key key, Object masterKey) {
+    boolean cached = false;
+    synchronized (this) {
+      if (masterKey == this.masterKey && !this.derived.containsKey(key.qualifiedName())) {
+        this.derived.put(key.qualifiedName(), key);
+        cached = true;
+      }
+    }
+    if (!cached) {
+      // Another login got there first, or the master key changed.
+      key.retire();
+    }
+  }
+
+  private Key derive(byte[] masterKey, String name, String id, String qualifiedName) {
+    try {
+      String data = Crypto.deriveAes128Key(masterKey, qualifiedName);
+      Key key = new Key(name, data.getBytes(UTF8));
+      key.setId(id);
+      this.derivations += 1;
+      return key;
+    } catch (GeneralSecurityException e) {
+      log.error("Could not derive key!");
+      log.debug(e.toString());
+    } catch (IllegalArgumentException e) {
+      log.error("Invalid key id!");
+      log.debug(e.toString());
+    }
+    return null;
+  }
+
+  private synchronized void clearCache() {
+    for (Key key : this.derived.values()) {
+      key.retire();
+    }
+    this.derived = this.newCache();
+  }
+
+  private LinkedHashMap<String, Key> newCache() {
+    final int capacity = this.cacheSize;
+    return new LinkedHashMap<String, Key>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+        if (this.size() > capacity) {
+          // Derived keys belong to this keystore, so drop the cipher
+          // state built from them, and wipe them once no login can
+          // still be using them.
+          eldest.getValue().retire();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param masterKey The secret every service's key is derived from, of at
+   *                  least {@link #MIN_MASTER_KEY_LENGTH} bytes.
+   */
+  public synchronized void setMasterKey(String masterKey) {
+    byte[] bytes = masterKey.getBytes(UTF8);
+    Assert.isTrue(bytes.length >= MIN_MASTER_KEY_LENGTH,
+        "master key must be at least " + MIN_MASTER_KEY_LENGTH + " bytes");
+    this.masterKey = bytes;
+    this.clearCache();
+    Crypto.invalidateAllKeys();
+  }
+
+  /**
+   * @param keystore A keystore whose keys are used instead of derived ones.
+   */
+  public void setKeystore(Keystore keystore) {
+    this.keystore = keystore;
+  }
+
+  /**
+   * @param cacheSize The number of derived keys to keep (default 1024).
+   */
+  public synchronized void setCacheSize(int cacheSize) {
+    Assert.isTrue(cacheSize > 0, "cacheSize must be positive");
+    this.cacheSize = cacheSize;
+    this.clearCache();
+  }
+
+  /** The number of keys that have been derived. */
+  public long getDerivations() {
+    return this.derivations;
+  }
+
+  /** The number of derived keys in the cache. */
+  public synchronized int getCachedKeys() {
+    return this.derived.size();
+  }
+}
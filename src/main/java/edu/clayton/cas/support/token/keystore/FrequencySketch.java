@@ -0,0 +1,85 @@
+package edu.clayton.cas.support.token.keystore;
+
+/**
+ * <p>Estimates how often each key has been asked for recently, for the
+ * TinyLFU admission policy of {@link TieredKeystore}. It is a count-min
+ * sketch: every key increments one small counter in each of four rows,
+ * and its estimate is the least of those counters, so collisions can only
+ * overestimate.</p>
+ *
+ * <p>Counters stop at 15, and once ten times the cache's capacity has
+ * been counted every counter is halved, so that keys that were popular
+ * long ago give way to keys that are popular now.</p>
+ *
+ * <p>Not thread safe; the caller synchronizes.</p>
+ */
+final class FrequencySketch {
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+
+  private static final long[] SEEDS = {
+      0x97CB3127E8F3B2F1L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x9E3779B97F4A7C15L
+  };
+
+  private final byte[][] counters;
+  private final int mask;
+  private final int sampleSize;
+  private int additions = 0;
+
+  /**
+   * @param capacity The number of entries in the cache.
+   */
+  FrequencySketch(int capacity) {
+    int width = Integer.highestOneBit(Math.max(64, capacity * 4 - 1)) << 1;
+    this.counters = new byte[DEPTH][width];
+    this.mask = width - 1;
+    this.sampleSize = Math.max(10, capacity * 10);
+  }
+
+  void increment(String key) {
+    int hash = key.hashCode();
+    boolean added = false;
+
+    for (int i = 0; i < DEPTH; i += 1) {
+      int index = this.indexOf(hash, i);
+      if (this.counters[i][index] < MAX_COUNT) {
+        this.counters[i][index] += 1;
+        added = true;
+      }
+    }
+
+    if (added) {
+      this.additions += 1;
+      if (this.additions >= this.sampleSize) {
+        this.age();
+      }
+    }
+  }
+
+  int frequency(String key) {
+    int hash = key.hashCode();
+    int frequency = MAX_COUNT;
+
+    for (int i = 0; i < DEPTH; i += 1) {
+      frequency = Math.min(frequency, this.counters[i][this.indexOf(hash, i)]);
+    }
+    return frequency;
+  }
+
+  private void age() {
+    for (byte[] row : this.counters) {
+      for (int i = 0; i < row.length; i += 1) {
+        row[i] = (byte) (row[i] >>> 1);
+      }
+    }
+    this.additions /= 2;
+  }
+
+  private int indexOf(int hash, int row) {
+    long mixed = (hash ^ SEEDS[row]) * 0xFF51AFD7ED558CCDL;
+    mixed ^= mixed >>> 33;
+    mixed *= 0xC4CEB9FE1A85EC53L;
+    mixed ^= mixed >>> 33;
+    return (int) mixed & this.mask;
+  }
+}
@@ -0,0 +1,478 @@
+package edu.clayton.cas.support.token.keystore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A read-only {@link Keystore} whose keys are served over HTTP, in the
+ * same JSON format as a {@link JSONKeystore} file.</p>
+ *
+ * <p>A background thread polls the URL every
+ * {@link HttpKeystore#setPollInterval(int)} seconds with a conditional GET
+ * ({@code If-None-Match} and {@code If-Modified-Since}), so a key set that
+ * has not changed costs a single {@code 304 Not Modified}. A new key set
+ * is parsed on that thread and replaces the previous one with a single
+ * volatile write; if it cannot be fetched or parsed, the previous keys stay
+ * in use.</p>
+ *
+ * <p>When a cache file is set (see {@link HttpKeystore#setCacheFile(java.io.File)}),
+ * every key set that was loaded is saved to it, and it is read at startup
+ * so that CAS can start, and start quickly, while the server is away. The
+ * key set's {@code ETag} and {@code Last-Modified} are saved beside it, in
+ * a file named after it with a {@code .validators} suffix, so the first
+ * poll after a restart is conditional too.</p>
+ *
+ * <p>A response, or cache file, larger than
+ * {@link HttpKeystore#setMaxBodySize(int)} bytes is refused rather than
+ * read into memory.</p>
+ */
+public class HttpKeystore implements Keystore, InitializingBean, DisposableBean {
+  private static final Logger log = LoggerFactory.getLogger(HttpKeystore.class);
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  private URL url;
+  private File cacheFile;
+  private int pollInterval = 60;
+  private int timeout = 10000;
+  private int maxBodySize = 1024 * 1024;
+
+  private volatile KeySnapshot keys = new KeySnapshot();
+
+  /** Validators of the loaded key set; only touched under the lock of {@link #poll()}, or before polling starts. **/
+  private String etag;
+  private String lastModified;
+
+  private ScheduledExecutorService poller;
+
+  private volatile long lastUpdateTime = 0;
+  private volatile long pollCount = 0;
+  private volatile long notModifiedCount = 0;
+  private volatile long pollFailures = 0;
+
+  /**
+   * Load the cache file, if there is one, and start polling. When there is
+   * no cached key set the first poll is made before this returns. Spring
+   * invokes this once the properties are set.
+   */
+  public void afterPropertiesSet() {
+    Assert.notNull(this.url, "url is required");
+
+    boolean cached = this.cacheFile != null && this.cacheFile.exists() && this.loadCacheFile();
+    if (!cached) {
+      this.poll();
+    }
+
+    if (this.pollInterval > 0) {
+      this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "HttpKeystore-poller");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.poller.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          HttpKeystore.this.poll();
+        }
+      }, cached ? 0 : this.pollInterval, this.pollInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Stop polling. */
+  public void destroy() {
+    if (this.poller != null) {
+      this.poller.shutdownNow();
+      this.poller = null;
+    }
+  }
+
+  /**
+   * Retrieve the keys of the last key set that was loaded.
+   *
+   * @return The stored keys.
+   */
+  public ArrayList<Key> keys() {
+    return this.keys.all();
+  }
+
+  /**
+   * Retrieve the number of keys in the last key set that was loaded.
+   *
+   * @return The number of keys.
+   */
+  public int size() {
+    return this.keys.size();
+  }
+
+  /**
+   * Retrieve the last key set that was loaded, without copying it.
+   *
+   * @return An unmodifiable collection of the keys.
+   */
+  public Collection<Key> snapshot() {
+    return this.keys.view();
+  }
+
+  /**
+   * Pass each key of the last key set that was loaded to a visitor.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor) {
+    this.keys.forEach(visitor);
+  }
+
+  /**
+   * An {@linkplain HttpKeystore} is read-only; change the keys on the
+   * server instead.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void addKey(Key key) {
+    throw new UnsupportedOperationException("HttpKeystore is read-only");
+  }
+
+  /**
+   * An {@linkplain HttpKeystore} is read-only; change the keys on the
+   * server instead.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void addKeys(Collection<Key> keys) {
+    throw new UnsupportedOperationException("HttpKeystore is read-only");
+  }
+
+  /**
+   * An {@linkplain HttpKeystore} is read-only; change the keys on the
+   * server instead.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void removeKeys(Collection<String> names) {
+    throw new UnsupportedOperationException("HttpKeystore is read-only");
+  }
+
+  /**
+   * Retrieve a named key from the keystore.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @return The name's primary {@linkplain Key} or {@code null} if it
+   *         doesn't exist.
+   */
+  public Key getKeyNamed(String name) {
+    return this.keys.get(name, null);
+  }
+
+  /**
+   * Retrieve a key from the keystore by its name and id.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null} for the
+   *           name's primary key.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
+   */
+  public Key getKey(String name, String id) {
+    return this.keys.get(name, id);
+  }
+
+  /**
+   * Fetch the key set if it has changed since it was last loaded. The
+   * polling thread calls this.
+   *
+   * @return {@code true} if the server was reached and the keys are
+   *         current.
+   */
+  public synchronized boolean poll() {
+    this.pollCount += 1;
+
+    try {
+      HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+      try {
+        connection.setConnectTimeout(this.timeout);
+        connection.setReadTimeout(this.timeout);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept", "application/json");
+        if (this.etag != null) {
+          connection.setRequestProperty("If-None-Match", this.etag);
+        }
+        if (this.lastModified != null) {
+          connection.setRequestProperty("If-Modified-Since", this.lastModified);
+        }
+
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+          this.notModifiedCount += 1;
+          return true;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+          log.error("HttpKeystore server answered {} for {}", status, this.url);
+          this.pollFailures += 1;
+          return false;
+        }
+
+        long length = connection.getContentLengthLong();
+        if (length > this.maxBodySize) {
+          throw new IOException("Key set of " + length + " bytes is larger than " + this.maxBodySize);
+        }
+        byte[] body = HttpKeystore.readFully(connection.getInputStream(), this.maxBodySize);
+        this.publish(HttpKeystore.parse(body));
+        this.etag = connection.getHeaderField("ETag");
+        this.lastModified = connection.getHeaderField("Last-Modified");
+
+        if (this.cacheFile != null) {
+          this.saveCacheFile(body);
+        }
+        return true;
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      log.error("Could not fetch HttpKeystore keys! Keeping the previously loaded keys.");
+      log.debug(e.toString());
+    } catch (JSONException e) {
+      log.error("Error parsing JSON! Keeping the previously loaded keys.");
+      log.debug(e.toString());
+    } catch (IllegalArgumentException e) {
+      log.error("Invalid key definition! Keeping the previously loaded keys.");
+      log.debug(e.toString());
+    }
+
+    this.pollFailures += 1;
+    return false;
+  }
+
+  private boolean loadCacheFile() {
+    try {
+      InputStream in = new FileInputStream(this.cacheFile);
+      byte[] body;
+      try {
+        body = HttpKeystore.readFully(in, this.maxBodySize);
+      } finally {
+        in.close();
+      }
+
+      this.publish(HttpKeystore.parse(body));
+      this.loadValidators();
+      log.debug("Loaded cached keys from {}", this.cacheFile);
+      return true;
+    } catch (IOException e) {
+      log.error("Could not read HttpKeystore cache file!");
+      log.debug(e.toString());
+    } catch (JSONException e) {
+      log.error("Error parsing HttpKeystore cache file!");
+      log.debug(e.toString());
+    } catch (IllegalArgumentException e) {
+      log.error("Invalid key definition in HttpKeystore cache file!");
+      log.debug(e.toString());
+    }
+    return false;
+  }
+
+  /**
+   * Read the validators saved with the cache file. Without them, the
+   * first poll fetches the whole key set.
+   */
+  private void loadValidators() {
+    File file = this.validatorsFile();
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      InputStream in = new FileInputStream(file);
+      Properties validators = new Properties();
+      try {
+        validators.load(in);
+      } finally {
+        in.close();
+      }
+      this.etag = validators.getProperty("ETag");
+      this.lastModified = validators.getProperty("Last-Modified");
+    } catch (IOException e) {
+      log.error("Could not read HttpKeystore validators file!");
+      log.debug(e.toString());
+    } catch (IllegalArgumentException e) {
+      log.error("Invalid HttpKeystore validators file!");
+      log.debug(e.toString());
+    }
+  }
+
+  /**
+   * Save a key set to the cache file, and its validators beside it. The
+   * old validators are removed first, so that they are never paired with
+   * a key set they do not describe.
+   */
+  private void saveCacheFile(byte[] body) {
+    File validatorsFile = this.validatorsFile();
+    try {
+      if (validatorsFile.exists() && !validatorsFile.delete()) {
+        throw new IOException("Could not delete " + validatorsFile);
+      }
+      HttpKeystore.replaceFile(this.cacheFile, body);
+
+      Properties validators = new Properties();
+      if (this.etag != null) {
+        validators.setProperty("ETag", this.etag);
+      }
+      if (this.lastModified != null) {
+        validators.setProperty("Last-Modified", this.lastModified);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      validators.store(out, null);
+      HttpKeystore.replaceFile(validatorsFile, out.toByteArray());
+    } catch (IOException e) {
+      log.error("Could not write HttpKeystore cache file!");
+      log.debug(e.toString());
+    }
+  }
+
+  private File validatorsFile() {
+    return new File(this.cacheFile.getPath() + ".validators");
+  }
+
+  /**
+   * Replace a file through a temporary file, so that a crash cannot leave
+   * a partial copy behind.
+   */
+  private static void replaceFile(File file, byte[] contents) throws IOException {
+    File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(contents);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+
+      try {
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp = null;
+    } finally {
+      if (temp != null) {
+        temp.delete();
+      }
+    }
+  }
+
+  private void publish(KeySnapshot loaded) {
+    KeySnapshot previous = this.keys;
+    this.keys = loaded;
+    loaded.retire(previous);
+    this.lastUpdateTime = System.currentTimeMillis();
+  }
+
+  private static KeySnapshot parse(byte[] body) throws JSONException {
+    JSONArray array = new JSONArray(new JSONTokener(new String(body, UTF8)));
+    KeySnapshot loaded = new KeySnapshot();
+    for (int i = 0, j = array.length(); i < j; i += 1) {
+      loaded.put(JSONKeystore.fromJSON(array.getJSONObject(i)));
+    }
+    return loaded;
+  }
+
+  /**
+   * Read a stream to its end.
+   *
+   * @throws IOException If it holds more than {@code limit} bytes.
+   */
+  private static byte[] readFully(InputStream in, int limit) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      if (out.size() + read > limit) {
+        in.close();
+        throw new IOException("Key set is larger than " + limit + " bytes");
+      }
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * @param url The URL of the key set.
+   */
+  public void setUrl(URL url) {
+    this.url = url;
+  }
+
+  /**
+   * @param cacheFile A file in which to keep the last key set that was
+   *                  loaded, or {@code null} for none.
+   */
+  public void setCacheFile(File cacheFile) {
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * @param pollInterval The number of seconds between polls (default 60),
+   *                     or 0 to only fetch the key set once.
+   */
+  public void setPollInterval(int pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * @param timeout The connect and read timeout, in milliseconds (default
+   *                10000).
+   */
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * @param maxBodySize The largest key set, in bytes, that will be read
+   *                    from the server or the cache file (default 1 MiB).
+   */
+  public void setMaxBodySize(int maxBodySize) {
+    Assert.isTrue(maxBodySize > 0, "maxBodySize must be positive");
+    this.maxBodySize = maxBodySize;
+  }
+
+  /** The time, in milliseconds, at which a key set was last loaded. */
+  public long getLastUpdateTime() {
+    return this.lastUpdateTime;
+  }
+
+  /** The number of times the server has been polled. */
+  public long getPollCount() {
+    return this.pollCount;
+  }
+
+  /** The number of polls answered with {@code 304 Not Modified}. */
+  public long getNotModifiedCount() {
+    return this.notModifiedCount;
+  }
+
+  /** The number of polls that did not load a key set. */
+  public long getPollFailures() {
+    return this.pollFailures;
+  }
+}
@@ -0,0 +1,758 @@
+package edu.clayton.cas.support.token.keystore;
+
+import edu.clayton.cas.support.token.util.Crypto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A {@link Keystore} backed by a database table. The whole table is
+ * loaded when the bean is initialized and kept in memory, so logins never
+ * wait on the database.</p>
+ *
+ * <p>A background thread refreshes the keys ahead of time, every
+ * {@link JDBCKeystore#setRefreshInterval(int)} seconds. A refresh only
+ * reads rows whose {@code updated} column is no more than
+ * {@link JDBCKeystore#setRefreshOverlap(int)} seconds older than the newest
+ * one already seen. {@code updated} comes from the clock of whichever node
+ * wrote the row, so the overlap lets a refresh catch rows committed late
+ * with an older timestamp: clock skew between nodes, writes in the same
+ * millisecond, long transactions. Rows that are read again unchanged keep
+ * the key already in use. Every {@link JDBCKeystore#setFullRefreshEvery(int)}
+ * refreshes the whole table is read again instead, which also drops
+ * deleted rows. The table is read without holding any lock; only the
+ * swap of the new snapshot is locked, and changes made while the table was
+ * being read are applied on top of it. When the database cannot be
+ * reached, the last good snapshot stays in use.</p>
+ *
+ * <p>A name that is not in memory is read through from the database, at
+ * most once per refresh interval, so new services are usable at once. At
+ * most {@link JDBCKeystore#setMaxReadThroughs(int)} read-throughs run at a
+ * time; a lookup beyond that is answered as missing rather than queued
+ * behind the database. Keys that were read through are kept beside the
+ * snapshot until the next refresh folds them in, so a read-through does
+ * not copy the snapshot.</p>
+ *
+ * <p>The table must have these columns:</p>
+ *
+ * <pre>
+ * name       VARCHAR   the key name (token_service)
+ * key_id     VARCHAR   the key id, or NULL
+ * data       VARCHAR   the key data
+ * not_before BIGINT    milliseconds, or NULL
+ * not_after  BIGINT    milliseconds, or NULL
+ * rate_limit INTEGER   tokens per second, or NULL
+ * burst      INTEGER   or NULL
+ * updated    BIGINT    milliseconds at which the row last changed
+ * </pre>
+ */
+public class JDBCKeystore implements Keystore, InitializingBean, DisposableBean {
+  private static final Logger log = LoggerFactory.getLogger(JDBCKeystore.class);
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final String COLUMNS = "name, key_id, data, not_before, not_after, rate_limit, burst, updated";
+
+  /** Limits how many missing names are remembered between refreshes. **/
+  private static final int MAX_MISSING_NAMES = 4096;
+
+  /** The default number of read-throughs that may run at once. **/
+  public static final int DEFAULT_MAX_READ_THROUGHS = 4;
+
+  private DataSource dataSource;
+  private String tableName = "token_keys";
+  private int refreshInterval = 60;
+  private int fullRefreshEvery = 10;
+  private int refreshOverlap = 300;
+
+  private volatile KeySnapshot keys = new KeySnapshot();
+  private volatile long newestUpdate = Long.MIN_VALUE;
+  private int refreshesSinceFull = 0;
+
+  /** Keys read through since the last refresh, by name. **/
+  private final ConcurrentHashMap<String, ReadThrough> readThroughs = new ConcurrentHashMap<String, ReadThrough>();
+
+  /** Names that were not found by a read-through, and until when; the oldest is dropped first. **/
+  private final Map<String, Long> missingNames = Collections.synchronizedMap(
+      new LinkedHashMap<String, Long>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return this.size() > MAX_MISSING_NAMES;
+        }
+      }
+  );
+
+  private volatile Semaphore readThroughPermits = new Semaphore(DEFAULT_MAX_READ_THROUGHS);
+
+  /** Only one refresh reads the table at a time. **/
+  private final Object refreshLock = new Object();
+
+  /** Changes made while a refresh reads the table, or {@code null}. Guarded by this. **/
+  private ArrayList<Change> changesDuringRefresh;
+
+  private ScheduledExecutorService refresher;
+
+  private volatile long lastRefreshTime = 0;
+  private volatile long refreshCount = 0;
+  private volatile long refreshFailures = 0;
+  private volatile long readThroughCount = 0;
+
+  /**
+   * Load the whole table and start refreshing it. Spring invokes this
+   * once the properties are set.
+   */
+  public void afterPropertiesSet() {
+    Assert.notNull(this.dataSource, "dataSource is required");
+
+    this.refresh(true);
+
+    if (this.refreshInterval > 0) {
+      this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "JDBCKeystore-refresher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.refresher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          JDBCKeystore.this.refresh();
+        }
+      }, this.refreshInterval, this.refreshInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Stop refreshing the keys. */
+  public void destroy() {
+    if (this.refresher != null) {
+      this.refresher.shutdownNow();
+      this.refresher = null;
+    }
+  }
+
+  /**
+   * Retrieve the keys that are in memory.
+   *
+   * @return The stored keys.
+   */
+  public ArrayList<Key> keys() {
+    return this.keys.all();
+  }
+
+  /**
+   * Retrieve the number of keys that are in memory.
+   *
+   * @return The number of keys.
+   */
+  public int size() {
+    return this.keys.size();
+  }
+
+  /**
+   * Retrieve the keys that are in memory, without copying them.
+   *
+   * @return An unmodifiable collection of the keys.
+   */
+  public Collection<Key> snapshot() {
+    return this.keys.view();
+  }
+
+  /**
+   * Pass each key that is in memory to a visitor.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor) {
+    this.keys.forEach(visitor);
+  }
+
+  /**
+   * Insert or update a key's row, and put the key in memory.
+   *
+   * @param key The {@linkplain Key} to add.
+   */
+  public void addKey(Key key) {
+    this.addKeys(Collections.singletonList(key));
+  }
+
+  /**
+   * Insert or update the rows of several keys in one transaction, and put
+   * the keys in memory once it has committed.
+   *
+   * @param keys The {@linkplain Key}s to add.
+   */
+  public void addKeys(Collection<Key> keys) {
+    long updated = System.currentTimeMillis();
+
+    try {
+      Connection connection = this.dataSource.getConnection();
+      try {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+          for (Key key : keys) {
+            this.storeKey(connection, key, updated);
+          }
+          connection.commit();
+        } catch (SQLException e) {
+          connection.rollback();
+          throw e;
+        } finally {
+          connection.setAutoCommit(autoCommit);
+        }
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      log.error("Could not store keys in JDBCKeystore!");
+      log.debug(e.toString());
+      return;
+    }
+
+    this.publish(keys);
+  }
+
+  /**
+   * Delete the rows of the keys with the given names, and remove the keys
+   * from memory.
+   *
+   * @param names The key names to remove.
+   */
+  public void removeKeys(Collection<String> names) {
+    try {
+      Connection connection = this.dataSource.getConnection();
+      try {
+        PreparedStatement delete = connection.prepareStatement(
+            "DELETE FROM " + this.tableName + " WHERE name = ?"
+        );
+        try {
+          for (String name : names) {
+            delete.setString(1, name);
+            delete.addBatch();
+          }
+          delete.executeBatch();
+        } finally {
+          delete.close();
+        }
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      log.error("Could not remove keys from JDBCKeystore!");
+      log.debug(e.toString());
+      return;
+    }
+
+    synchronized (this) {
+      KeySnapshot copy = new KeySnapshot(this.keys);
+      ArrayList<Key> removed = new ArrayList<Key>();
+      for (String name : names) {
+        ArrayList<Key> named = copy.remove(name);
+        ReadThrough read = this.readThroughs.remove(name);
+        if (read != null) {
+          named.addAll(read.keys.all());
+        }
+        if (!named.isEmpty()) {
+          removed.addAll(named);
+          Crypto.invalidateKey(name);
+        }
+        if (this.changesDuringRefresh != null) {
+          this.changesDuringRefresh.add(new Change(name, null));
+        }
+      }
+      this.keys = copy;
+      for (Key key : removed) {
+        key.retire();
+      }
+    }
+  }
+
+  private void storeKey(Connection connection, Key key, long updated) throws SQLException {
+    String idClause = (key.id() == null) ? "key_id IS NULL" : "key_id = ?";
+
+    PreparedStatement update = connection.prepareStatement(
+        "UPDATE " + this.tableName + " SET data = ?, not_before = ?, not_after = ?, " +
+        "rate_limit = ?, burst = ?, updated = ? WHERE name = ? AND " + idClause
+    );
+    int rows;
+    try {
+      this.bindKey(update, key, updated, 1);
+      update.setString(7, key.name());
+      if (key.id() != null) {
+        update.setString(8, key.id());
+      }
+      rows = update.executeUpdate();
+    } finally {
+      update.close();
+    }
+
+    if (rows == 0) {
+      PreparedStatement insert = connection.prepareStatement(
+          "INSERT INTO " + this.tableName + " (data, not_before, not_after, rate_limit, burst, updated, name, key_id) " +
+          "VALUES (?, ?, ?, ?, ?, ?, ?, ?)"
+      );
+      try {
+        this.bindKey(insert, key, updated, 1);
+        insert.setString(7, key.name());
+        insert.setString(8, key.id());
+        insert.executeUpdate();
+      } finally {
+        insert.close();
+      }
+    }
+  }
+
+  /**
+   * Retrieve a named key from the keystore.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @return The name's primary {@linkplain Key} or {@code null} if it
+   *         doesn't exist.
+   */
+  public Key getKeyNamed(String name) {
+    return this.getKey(name, null);
+  }
+
+  /**
+   * Retrieve a key from the keystore by its name and id, reading it
+   * through from the database if it is not in memory.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null} for the
+   *           name's primary key.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
+   */
+  public Key getKey(String name, String id) {
+    Key key = this.keys.get(name, id);
+    if (key == null) {
+      ReadThrough read = this.readThroughs.get(name);
+      if (read != null) {
+        key = read.keys.get(name, id);
+      }
+    }
+    if (key == null && this.dataSource != null) {
+      key = this.readThrough(name, id);
+    }
+    return key;
+  }
+
+  /**
+   * Read the rows changed since the last refresh, or the whole table when
+   * a full refresh is due. The background thread calls this.
+   *
+   * @return {@code true} if the database was read.
+   */
+  public boolean refresh() {
+    boolean full;
+    synchronized (this) {
+      this.refreshesSinceFull += 1;
+      full = (this.refreshesSinceFull >= this.fullRefreshEvery);
+    }
+    return this.refresh(full);
+  }
+
+  private boolean refresh(boolean full) {
+    synchronized (this.refreshLock) {
+      long started = System.currentTimeMillis();
+      long since;
+      synchronized (this) {
+        since = full ? Long.MIN_VALUE : this.newestUpdate;
+        this.changesDuringRefresh = new ArrayList<Change>();
+      }
+
+      ArrayList<Key> rows = new ArrayList<Key>();
+      long newest = since;
+      long from = (since == Long.MIN_VALUE) ? since : since - this.refreshOverlap * 1000L;
+      try {
+        Connection connection = this.dataSource.getConnection();
+        try {
+          PreparedStatement select = connection.prepareStatement(
+              "SELECT " + COLUMNS + " FROM " + this.tableName + (full ? "" : " WHERE updated >= ?")
+          );
+          try {
+            if (!full) {
+              select.setLong(1, from);
+            }
+
+            ResultSet results = select.executeQuery();
+            try {
+              while (results.next()) {
+                rows.add(this.readKey(results));
+                newest = Math.max(newest, results.getLong(8));
+              }
+            } finally {
+              results.close();
+            }
+          } finally {
+            select.close();
+          }
+        } finally {
+          connection.close();
+        }
+      } catch (SQLException e) {
+        log.error("Could not refresh JDBCKeystore! Keeping the previously loaded keys.");
+        log.debug(e.toString());
+        return this.refreshFailed();
+      } catch (IllegalArgumentException e) {
+        log.error("Invalid key definition in JDBCKeystore! Keeping the previously loaded keys.");
+        log.debug(e.toString());
+        return this.refreshFailed();
+      }
+
+      this.swap(rows, newest, full, started);
+      log.debug("Read {} keys from {}", rows.size(), this.tableName);
+
+      this.lastRefreshTime = System.currentTimeMillis();
+      this.refreshCount += 1;
+      return true;
+    }
+  }
+
+  /**
+   * Publish the rows read by a refresh, with the changes made while they
+   * were being read applied on top, and fold in the keys read through
+   * since the last refresh.
+   */
+  private synchronized void swap(ArrayList<Key> rows, long newest, boolean full, long started) {
+    KeySnapshot previous = this.keys;
+    KeySnapshot loaded = full ? new KeySnapshot() : new KeySnapshot(previous);
+    for (Key key : rows) {
+      Key current = previous.get(key.name(), key.id());
+      if (current != null && JDBCKeystore.sameDefinition(current, key)) {
+        // Unchanged, or read again from the overlap: keep the key in use.
+        loaded.put(current);
+        key.destroy();
+      } else {
+        loaded.put(key);
+      }
+    }
+    for (Change change : this.changesDuringRefresh) {
+      change.applyTo(loaded);
+    }
+    this.changesDuringRefresh = null;
+
+    // A full refresh saw the rows of names read through before it began.
+    ArrayList<Key> dropped = new ArrayList<Key>();
+    for (ReadThrough read : this.readThroughs.values()) {
+      for (Key key : read.keys.all()) {
+        Key current = loaded.get(key.name(), key.id());
+        if (current == null && (!full || read.readAt >= started)) {
+          loaded.put(key);
+        } else if (current != key) {
+          dropped.add(key);
+        }
+      }
+    }
+    this.readThroughs.clear();
+
+    this.keys = loaded;
+    this.newestUpdate = newest;
+    loaded.retire(previous);
+    for (Key key : dropped) {
+      Key current = loaded.get(key.name(), key.id());
+      if (current == null || !current.dataEquals(key)) {
+        Crypto.invalidateKey(key.name());
+      }
+      key.retire();
+    }
+    if (full) {
+      this.refreshesSinceFull = 0;
+    }
+    this.missingNames.clear();
+  }
+
+  private synchronized boolean refreshFailed() {
+    this.changesDuringRefresh = null;
+    this.refreshFailures += 1;
+    return false;
+  }
+
+  private Key readThrough(String name, String id) {
+    long now = System.currentTimeMillis();
+    Long missingUntil = this.missingNames.get(name);
+    if (missingUntil != null && missingUntil > now) {
+      return null;
+    }
+
+    Semaphore permits = this.readThroughPermits;
+    if (!permits.tryAcquire()) {
+      log.debug("Too many read-throughs in progress, not looking up {}", name);
+      return null;
+    }
+    try {
+      this.readThroughCount += 1;
+      KeySnapshot found = new KeySnapshot();
+      try {
+        Connection connection = this.dataSource.getConnection();
+        try {
+          PreparedStatement select = connection.prepareStatement(
+              "SELECT " + COLUMNS + " FROM " + this.tableName + " WHERE name = ?"
+          );
+          try {
+            select.setString(1, name);
+            ResultSet results = select.executeQuery();
+            try {
+              while (results.next()) {
+                found.put(this.readKey(results));
+              }
+            } finally {
+              results.close();
+            }
+          } finally {
+            select.close();
+          }
+        } finally {
+          connection.close();
+        }
+      } catch (SQLException e) {
+        log.error("Could not read key from JDBCKeystore!");
+        log.debug(e.toString());
+        found = null;
+      } catch (IllegalArgumentException e) {
+        log.error("Invalid key definition in JDBCKeystore!");
+        log.debug(e.toString());
+        found = null;
+      }
+
+      Key key = null;
+      if (found != null && found.size() > 0) {
+        key = this.publishReadThrough(name, found, now).get(name, id);
+      }
+      if (key == null) {
+        this.missingNames.put(name, now + Math.max(1, this.refreshInterval) * 1000L);
+      }
+      return key;
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Keep the keys read through for a name until the next refresh. The
+   * keys of a name that is already in the snapshot are not replaced.
+   *
+   * @return The keys that are now visible for the name.
+   */
+  private synchronized KeySnapshot publishReadThrough(String name, KeySnapshot found, long readAt) {
+    if (this.keys.get(name, null) != null) {
+      KeySnapshot existing = new KeySnapshot();
+      for (Key key : found.all()) {
+        Key current = this.keys.get(key.name(), key.id());
+        existing.put(current != null ? current : key);
+      }
+      found = existing;
+    }
+
+    ReadThrough previous = this.readThroughs.put(name, new ReadThrough(found, readAt));
+    this.missingNames.remove(name);
+    if (this.changesDuringRefresh != null) {
+      for (Key key : found.all()) {
+        this.changesDuringRefresh.add(new Change(name, key));
+      }
+    }
+
+    if (previous != null) {
+      for (Key old : previous.keys.all()) {
+        Key current = found.get(old.name(), old.id());
+        if (current == old) {
+          continue;
+        }
+        if (current == null || !current.dataEquals(old)) {
+          Crypto.invalidateKey(old.name());
+        }
+        old.retire();
+      }
+    }
+    return found;
+  }
+
+  private synchronized void publish(Collection<Key> keys) {
+    KeySnapshot copy = new KeySnapshot(this.keys);
+    for (Key key : keys) {
+      Key previous = copy.put(key);
+      this.missingNames.remove(key.name());
+      if (this.changesDuringRefresh != null) {
+        this.changesDuringRefresh.add(new Change(key.name(), key));
+      }
+
+      if (previous == null) {
+        ReadThrough read = this.readThroughs.get(key.name());
+        previous = (read == null) ? null : read.keys.get(key.name(), key.id());
+      }
+      if (previous != null && previous != key) {
+        if (!previous.dataEquals(key)) {
+          Crypto.invalidateKey(key.name());
+        }
+        previous.retire();
+      }
+    }
+    this.keys = copy;
+  }
+
+  private static boolean sameDefinition(Key a, Key b) {
+    return a.dataEquals(b) &&
+        a.notBefore() == b.notBefore() &&
+        a.notAfter() == b.notAfter() &&
+        a.rateLimit() == b.rateLimit() &&
+        a.burst() == b.burst();
+  }
+
+  private Key readKey(ResultSet results) throws SQLException {
+    Key key = new Key(results.getString(1), results.getString(3).getBytes(UTF8));
+    key.setId(results.getString(2));
+
+    long notBefore = results.getLong(4);
+    if (results.wasNull()) {
+      notBefore = Long.MIN_VALUE;
+    }
+    long notAfter = results.getLong(5);
+    if (results.wasNull()) {
+      notAfter = Long.MAX_VALUE;
+    }
+    if (notBefore != Long.MIN_VALUE || notAfter != Long.MAX_VALUE) {
+      key.setValidity(notBefore, notAfter);
+    }
+
+    int rateLimit = results.getInt(6);
+    if (rateLimit > 0) {
+      key.setRateLimit(rateLimit, results.getInt(7));
+    }
+    return key;
+  }
+
+  private void bindKey(PreparedStatement statement, Key key, long updated, int index) throws SQLException {
+    statement.setString(index, new String(key.data(), UTF8));
+    if (key.notBefore() == Long.MIN_VALUE) {
+      statement.setNull(index + 1, Types.BIGINT);
+    } else {
+      statement.setLong(index + 1, key.notBefore());
+    }
+    if (key.notAfter() == Long.MAX_VALUE) {
+      statement.setNull(index + 2, Types.BIGINT);
+    } else {
+      statement.setLong(index + 2, key.notAfter());
+    }
+    statement.setInt(index + 3, key.rateLimit());
+    statement.setInt(index + 4, key.burst());
+    statement.setLong(index + 5, updated);
+  }
+
+  public void setDataSource(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * @param tableName The table that holds the keys (default
+   *                  {@code token_keys}).
+   */
+  public void setTableName(String tableName) {
+    Assert.isTrue(tableName.matches("[A-Za-z0-9_.]+"), "invalid table name");
+    this.tableName = tableName;
+  }
+
+  /**
+   * @param refreshInterval The number of seconds between refreshes
+   *                        (default 60), or 0 to only load the table once.
+   */
+  public void setRefreshInterval(int refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * @param fullRefreshEvery Read the whole table on every nth refresh
+   *                         (default 10), so that deleted rows are dropped.
+   */
+  public void setFullRefreshEvery(int fullRefreshEvery) {
+    this.fullRefreshEvery = Math.max(1, fullRefreshEvery);
+  }
+
+  /**
+   * @param refreshOverlap How many seconds before the newest {@code updated}
+   *                       value already seen a refresh reads from again
+   *                       (default 300). It should cover the clock skew
+   *                       between the nodes that write the table and the
+   *                       longest transaction that writes it.
+   */
+  public void setRefreshOverlap(int refreshOverlap) {
+    Assert.isTrue(refreshOverlap >= 0, "refreshOverlap cannot be negative");
+    this.refreshOverlap = refreshOverlap;
+  }
+
+  /** The time, in milliseconds, of the last successful refresh. */
+  public long getLastRefreshTime() {
+    return this.lastRefreshTime;
+  }
+
+  /** The number of successful refreshes. */
+  public long getRefreshCount() {
+    return this.refreshCount;
+  }
+
+  /** The number of refreshes that could not read the database. */
+  public long getRefreshFailures() {
+    return this.refreshFailures;
+  }
+
+  /** The number of lookups that went to the database. */
+  public long getReadThroughCount() {
+    return this.readThroughCount;
+  }
+
+  /**
+   * @param maxReadThroughs The number of read-throughs that may query the
+   *                        database at once (default 4).
+   */
+  public void setMaxReadThroughs(int maxReadThroughs) {
+    this.readThroughPermits = new Semaphore(Math.max(1, maxReadThroughs));
+  }
+
+  /** The keys of one name, read through from the database. **/
+  private static final class ReadThrough {
+    private final KeySnapshot keys;
+    private final long readAt;
+
+    private ReadThrough(KeySnapshot keys, long readAt) {
+      this.keys = keys;
+      this.readAt = readAt;
+    }
+  }
+
+  /** A key stored, or a name removed, while a refresh read the table. **/
+  private static final class Change {
+    private final String name;
+    private final Key key;
+
+    private Change(String name, Key key) {
+      this.name = name;
+      this.key = key;
+    }
+
+    private void applyTo(KeySnapshot snapshot) {
+      if (this.key == null) {
+        snapshot.remove(this.name);
+      } else {
+        snapshot.put(this.key);
+      }
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package edu.clayton.cas.support.token.keystore;
 
+import edu.clayton.cas.support.token.util.Crypto;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -8,14 +9,66 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * <p>A {@link Keystore} backed by a JSON file. See the README for the file's
+ * format.</p>
+ *
+ * <p>The keys are held in an immutable snapshot that is replaced, with a
+ * single volatile write, whenever the store changes, so
+ * {@link JSONKeystore#getKeyNamed(String)} never locks. When a watch
+ * interval is set (see {@link JSONKeystore#setWatchInterval(int)}), the
+ * store file is watched with a {@link WatchService}, falling back to
+ * polling its modification time, and is reloaded off the request path. If
+ * the changed file cannot be parsed, the previous snapshot stays in use.</p>
+ *
+ * <p>Changes made through {@link JSONKeystore#addKey(Key)} and
+ * {@link JSONKeystore#removeKeyNamed(String)} can be made durable with a
+ * journal (see {@link JSONKeystore#setJournalFile(java.io.File)}), which is
+ * appended to instead of rewriting the store file. Concurrent changes are
+ * committed together with a single sync. Once the journal holds
+ * {@link JSONKeystore#setCompactThreshold(int)} changes, or when
+ * {@link JSONKeystore#saveStoreFile()} is called, the store file is
+ * rewritten to a temporary file that is then renamed over it, and the
+ * journal is emptied.</p>
+ */
 public class JSONKeystore implements Keystore {
   private static final Logger log = LoggerFactory.getLogger(JSONKeystore.class);
 
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
   private File storeFile;
-  private ConcurrentHashMap<String, Key> keys;
+  private volatile KeySnapshot keys;
+
+  private File journalFile;
+  private KeyJournal journal;
+  private int compactThreshold = 1000;
+
+  private int watchInterval = 0;
+  private Watcher watcher;
+
+  private volatile long loadedModified;
+  private volatile long loadedLength;
+
+  private volatile long reloadCount = 0;
+  private volatile long reloadFailures = 0;
+  private volatile long lastReloadNanos = 0;
+  private volatile long lastReloadLatencyMillis = 0;
 
   /**
    * Initialize and empty keystore. Use
@@ -34,12 +87,12 @@ public class JSONKeystore implements Keystore {
    * @param storeFile The JSON file to load.
    */
   public JSONKeystore(File storeFile) {
+    // Might as well start with an empty store.
+    this.keys = new KeySnapshot();
+
     if (storeFile != null && storeFile.exists()) {
       this.storeFile = storeFile;
       this.loadStoreFile();
-    } else {
-      // Might as well create an empty store.
-      this.keys = new ConcurrentHashMap<String, Key>(0);
     }
   }
 
@@ -49,60 +102,172 @@ public class JSONKeystore implements Keystore {
    * @return The stored keys.
    */
   public ArrayList<Key> keys() {
-    return new ArrayList<Key>(this.keys.values());
+    return this.keys.all();
+  }
+
+  /**
+   * Retrieve the number of keys in the store.
+   *
+   * @return The number of stored keys.
+   */
+  public int size() {
+    return this.keys.size();
+  }
+
+  /**
+   * Retrieve the keys in the store as they are now. The collection is
+   * built once per change to the store and shared, not copied per call.
+   *
+   * @return An unmodifiable collection of the stored keys.
+   */
+  public Collection<Key> snapshot() {
+    return this.keys.view();
+  }
+
+  /**
+   * Pass each key in the store, as it is now, to a visitor.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor) {
+    this.keys.forEach(visitor);
   }
 
   /**
-   * Store a new key in the keystore.
+   * Store a new key in the keystore. A key with an id is added alongside
+   * the name's other keys, replacing only the key with the same id.
    *
    * @param key The {@linkplain Key} to add.
    */
   public void addKey(Key key) {
-    this.keys.put(key.name(), key);
+    this.addKeys(Collections.singletonList(key));
+  }
+
+  /**
+   * Store several keys in the keystore, publishing them together and
+   * journaling them with a single sync.
+   *
+   * @param keys The {@linkplain Key}s to add.
+   */
+  public void addKeys(Collection<Key> keys) {
+    long sequence = 0;
+
+    synchronized (this) {
+      KeySnapshot copy = new KeySnapshot(this.keys);
+      for (Key key : keys) {
+        Key previous = copy.put(key);
+        if (previous != null && previous != key) {
+          Crypto.invalidateKey(key.name());
+          previous.retire();
+        }
+        sequence = Math.max(sequence, this.appendToJournal("add", JSONKeystore.toJSON(key)));
+      }
+      this.keys = copy;
+    }
+
+    this.commitJournal(sequence);
   }
 
   /**
    * Retrieve a named key from the keystore.
    *
    * @param name The name of the {@linkplain Key}.
-   * @return
+   * @return The name's primary {@linkplain Key} or {@code null} if it
+   *         doesn't exist.
    */
   public Key getKeyNamed(String name) {
-    return this.keys.get(name);
+    return this.keys.get(name, null);
   }
 
   /**
-   * Read the instance's associated keystore file into memory.
+   * Retrieve a key from the keystore by its name and id.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null} for the
+   *           name's primary key.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
    */
-  public void loadStoreFile() {
+  public Key getKey(String name, String id) {
+    return this.keys.get(name, id);
+  }
+
+  /**
+   * Read the instance's associated keystore file into memory. The file is
+   * parsed completely before the new keys replace the old ones; if it
+   * cannot be read or parsed, the old keys are kept.
+   *
+   * @return {@code true} if the keys were replaced.
+   */
+  public synchronized boolean loadStoreFile() {
+    long start = System.nanoTime();
+    long modified = this.storeFile.lastModified();
+    long length = this.storeFile.length();
+
     try {
       BufferedInputStream bis = new BufferedInputStream(
           new FileInputStream(this.storeFile)
       );
-      JSONTokener jsonTokener = new JSONTokener(new InputStreamReader(bis));
-      JSONArray array = new JSONArray(jsonTokener);
-
-      bis.close();
+      JSONArray array;
+      try {
+        JSONTokener jsonTokener = new JSONTokener(new InputStreamReader(bis));
+        array = new JSONArray(jsonTokener);
+      } finally {
+        bis.close();
+      }
 
-      // Init our keys array with the correct size.
-      this.keys = new ConcurrentHashMap<String, Key>(array.length());
+      KeySnapshot loaded = new KeySnapshot();
 
       for (int i = 0, j = array.length(); i < j; i += 1) {
-        JSONObject obj = array.getJSONObject(i);
-        Key key = new Key(obj.getString("name"), obj.getString("data"));
-        log.debug("Adding {} key to keystore.", key.name());
-        this.addKey(key);
+        Key key = JSONKeystore.fromJSON(array.getJSONObject(i));
+        log.debug("Adding {} key to keystore.", key.qualifiedName());
+        loaded.put(key);
+      }
+
+      if (this.journalFile != null) {
+        // Replay the changes made since the store file was written.
+        for (JSONObject record : KeyJournal.read(this.journalFile)) {
+          if ("add".equals(record.getString("op"))) {
+            Key replaced = loaded.put(JSONKeystore.fromJSON(record.getJSONObject("key")));
+            if (replaced != null) {
+              replaced.destroy();
+            }
+          } else {
+            for (Key removed : loaded.remove(record.getString("name"))) {
+              removed.destroy();
+            }
+          }
+        }
       }
+
+      KeySnapshot previous = this.keys;
+      this.keys = loaded;
+
+      // Only drop the cipher state of keys that went away or changed.
+      loaded.retire(previous);
+
+      this.lastReloadNanos = System.nanoTime() - start;
+      this.lastReloadLatencyMillis = System.currentTimeMillis() - modified;
+      this.reloadCount += 1;
+      return true;
     } catch (FileNotFoundException e) {
       log.error("Could not find JSONKeystore file!");
       log.debug(e.toString());
     } catch (JSONException e) {
-      log.error("Error parsing JSON!");
+      log.error("Error parsing JSON! Keeping the previously loaded keys.");
+      log.debug(e.toString());
+    } catch (IllegalArgumentException e) {
+      log.error("Invalid key definition! Keeping the previously loaded keys.");
       log.debug(e.toString());
     } catch (IOException e) {
-      log.error("Could not close JSONKeystore file!");
+      log.error("Could not read JSONKeystore file!");
       log.debug(e.toString());
+    } finally {
+      this.loadedModified = modified;
+      this.loadedLength = length;
     }
+
+    this.reloadFailures += 1;
+    return false;
   }
 
   /**
@@ -113,34 +278,94 @@ public class JSONKeystore implements Keystore {
    * @param name The key name to remove.
    */
   public void removeKeyNamed(String name) {
-    this.keys.remove(name);
+    this.removeKeys(Collections.singletonList(name));
+  }
+
+  /**
+   * Remove the keys with the given names from the keystore, along with
+   * all of their ids.
+   *
+   * @param names The key names to remove.
+   */
+  public void removeKeys(Collection<String> names) {
+    long sequence = 0;
+
+    synchronized (this) {
+      KeySnapshot copy = new KeySnapshot(this.keys);
+      ArrayList<Key> removed = new ArrayList<Key>();
+      for (String name : names) {
+        ArrayList<Key> named = copy.remove(name);
+        if (!named.isEmpty()) {
+          removed.addAll(named);
+          Crypto.invalidateKey(name);
+          sequence = Math.max(sequence, this.appendToJournal("remove", name));
+        }
+      }
+      if (!removed.isEmpty()) {
+        this.keys = copy;
+        for (Key key : removed) {
+          key.retire();
+        }
+      }
+    }
+
+    this.commitJournal(sequence);
   }
 
   /**
    * Writes the {@linkplain JSONKeystore}, as it is in memory, to the
-   * keystore file associated with the instance.
+   * keystore file associated with the instance. The keys are written to
+   * a temporary file that replaces the store file only once it is
+   * complete, after which the journal, if any, is emptied.
    */
-  public void saveStoreFile() {
-    JSONArray array = new JSONArray(this.keys.values());
+  public synchronized void saveStoreFile() {
+    final JSONArray array = new JSONArray();
+    this.keys.forEach(new KeyVisitor() {
+      public void visit(Key key) {
+        array.put(JSONKeystore.toJSON(key));
+      }
+    });
 
+    File directory = this.storeFile.getAbsoluteFile().getParentFile();
+    File temp = null;
     try {
-      if (this.storeFile.exists()) {
-        this.storeFile.delete();
-        this.storeFile.createNewFile();
+      temp = File.createTempFile(this.storeFile.getName(), ".tmp", directory);
+      FileOutputStream fos = new FileOutputStream(temp);
+      try {
+        OutputStreamWriter osw = new OutputStreamWriter(new BufferedOutputStream(fos), UTF8);
+        osw.write(array.toString());
+        osw.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
       }
 
-      BufferedOutputStream bos = new BufferedOutputStream(
-          new FileOutputStream(this.storeFile)
-      );
-      OutputStreamWriter osw = new OutputStreamWriter(bos);
-      osw.write(array.toString());
-      osw.close();
+      try {
+        Files.move(temp.toPath(), this.storeFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), this.storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp = null;
+      JSONKeystore.syncDirectory(directory);
+
+      if (this.journal != null) {
+        this.journal.reset();
+      }
+
+      // Our own write is not a change for the watcher to reload.
+      this.loadedModified = this.storeFile.lastModified();
+      this.loadedLength = this.storeFile.length();
     } catch (FileNotFoundException e) {
       log.error("Could not find JSONKeystore file!");
       log.debug(e.toString());
     } catch (IOException e) {
       log.error("Could not create new JSONKeystore file!");
       log.debug(e.toString());
+    } finally {
+      if (temp != null) {
+        temp.delete();
+      }
     }
   }
 
@@ -152,8 +377,294 @@ public class JSONKeystore implements Keystore {
    *
    * @param file The JSON file.
    */
-  public void setStoreFile(File file) {
+  public synchronized void setStoreFile(File file) {
     this.storeFile = file;
     this.loadStoreFile();
+    this.configureWatcher();
+  }
+
+  /**
+   * Record the changes made to the keystore in a journal file, so that
+   * they survive a restart without rewriting the store file. The journal
+   * is replayed on top of the store file whenever the store file is
+   * loaded.
+   *
+   * @param file The journal file, or {@code null} to stop journaling.
+   */
+  public synchronized void setJournalFile(File file) {
+    if (this.journal != null) {
+      this.journal.close();
+      this.journal = null;
+    }
+    this.journalFile = file;
+
+    if (file != null) {
+      try {
+        this.journal = new KeyJournal(file);
+      } catch (IOException e) {
+        log.error("Could not open JSONKeystore journal!");
+        log.debug(e.toString());
+      }
+    }
+    if (this.storeFile != null) {
+      this.loadStoreFile();
+    }
+  }
+
+  /**
+   * @param compactThreshold The number of journaled changes after which the
+   *                         store file is rewritten and the journal
+   *                         emptied (default 1000).
+   */
+  public void setCompactThreshold(int compactThreshold) {
+    this.compactThreshold = Math.max(1, compactThreshold);
+  }
+
+  /**
+   * Watch the keystore file and reload it when it changes. The file is
+   * checked at least this often even where file change notifications are
+   * not available.
+   *
+   * @param watchInterval The number of seconds between checks, or 0 (the
+   *                      default) to stop watching.
+   */
+  public synchronized void setWatchInterval(int watchInterval) {
+    this.watchInterval = watchInterval;
+    this.configureWatcher();
+  }
+
+  /**
+   * Stop watching the keystore file. This is suitable as a Spring
+   * {@code destroy-method}.
+   */
+  public synchronized void stopWatching() {
+    if (this.watcher != null) {
+      this.watcher.stop();
+      this.watcher = null;
+    }
+  }
+
+  /** The number of times the store file has been loaded. */
+  public long getReloadCount() {
+    return this.reloadCount;
+  }
+
+  /** The number of times the store file could not be loaded. */
+  public long getReloadFailures() {
+    return this.reloadFailures;
+  }
+
+  /** The time, in nanoseconds, it took to read and publish the store file the last time it was loaded. */
+  public long getLastReloadNanos() {
+    return this.lastReloadNanos;
+  }
+
+  /** The time, in milliseconds, between the store file's last modification and its keys being published. */
+  public long getLastReloadLatencyMillis() {
+    return this.lastReloadLatencyMillis;
+  }
+
+  /** The number of times the journal has been synced to disk. */
+  public long getJournalSyncs() {
+    KeyJournal journal = this.journal;
+    return (journal == null) ? 0 : journal.syncs();
+  }
+
+  /** Whether the store file has changed since it was last loaded. */
+  boolean storeFileChanged() {
+    return this.storeFile.lastModified() != this.loadedModified ||
+        this.storeFile.length() != this.loadedLength;
+  }
+
+  /**
+   * Queue a change in the journal. The caller must hold the instance's
+   * lock, so that the journal's order matches the order of the snapshots.
+   *
+   * @return The change's sequence number, or 0 if there is no journal.
+   */
+  private long appendToJournal(String op, Object value) {
+    if (this.journal == null) {
+      return 0;
+    }
+
+    try {
+      JSONObject record = new JSONObject();
+      record.put("op", op);
+      record.put("add".equals(op) ? "key" : "name", value);
+      return this.journal.append(record);
+    } catch (JSONException e) {
+      log.error("Could not journal JSONKeystore change!");
+      log.debug(e.toString());
+      return 0;
+    }
+  }
+
+  /**
+   * Wait for a journaled change to be synced, outside the instance's lock
+   * so that concurrent changes share the sync, and compact the journal if
+   * it has grown too long.
+   */
+  private void commitJournal(long sequence) {
+    KeyJournal journal = this.journal;
+    if (sequence == 0 || journal == null) {
+      return;
+    }
+
+    try {
+      journal.commit(sequence);
+    } catch (IOException e) {
+      log.error("Could not write JSONKeystore journal!");
+      log.debug(e.toString());
+      return;
+    }
+
+    if (journal.records() >= this.compactThreshold && this.storeFile != null) {
+      this.saveStoreFile();
+    }
+  }
+
+  static Key fromJSON(JSONObject obj) throws JSONException {
+    Key key = new Key(obj.getString("name"), obj.getString("data"));
+    if (obj.has("id")) {
+      key.setId(obj.getString("id"));
+    }
+    if (obj.has("notBefore") || obj.has("notAfter")) {
+      key.setValidity(
+          obj.optLong("notBefore", Long.MIN_VALUE),
+          obj.optLong("notAfter", Long.MAX_VALUE)
+      );
+    }
+    if (obj.has("rateLimit")) {
+      key.setRateLimit(obj.getInt("rateLimit"), obj.optInt("burst", 0));
+    }
+    return key;
+  }
+
+  static JSONObject toJSON(Key key) {
+    JSONObject obj = new JSONObject();
+    try {
+      obj.put("name", key.name());
+      obj.put("data", new String(key.data()));
+      if (key.id() != null) {
+        obj.put("id", key.id());
+      }
+      if (key.notBefore() != Long.MIN_VALUE) {
+        obj.put("notBefore", key.notBefore());
+      }
+      if (key.notAfter() != Long.MAX_VALUE) {
+        obj.put("notAfter", key.notAfter());
+      }
+      if (key.rateLimit() > 0) {
+        obj.put("rateLimit", key.rateLimit());
+        obj.put("burst", key.burst());
+      }
+    } catch (JSONException e) {
+      // Only thrown for non-finite numbers, which a key does not have.
+      throw new IllegalStateException(e);
+    }
+    return obj;
+  }
+
+  /** Make a rename in a directory durable, where the platform allows it. */
+  static void syncDirectory(File directory) {
+    try {
+      FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      log.debug("Could not sync directory {}: {}", directory, e.toString());
+    }
+  }
+
+  private void configureWatcher() {
+    this.stopWatching();
+
+    if (this.watchInterval > 0 && this.storeFile != null) {
+      this.watcher = new Watcher(this.storeFile, this.watchInterval * 1000L);
+      Thread thread = new Thread(this.watcher, "JSONKeystore-watcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Waits for the store file's directory to change, or for the interval
+   * to pass, and reloads the store file if it changed.
+   */
+  private final class Watcher implements Runnable {
+    private final File file;
+    private final long intervalMillis;
+    private volatile boolean stopped = false;
+    private volatile Thread thread;
+
+    Watcher(File file, long intervalMillis) {
+      this.file = file;
+      this.intervalMillis = intervalMillis;
+    }
+
+    void stop() {
+      this.stopped = true;
+      Thread thread = this.thread;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    public void run() {
+      this.thread = Thread.currentThread();
+      WatchService service = this.register();
+
+      try {
+        while (!this.stopped) {
+          if (service != null) {
+            WatchKey key = service.poll(this.intervalMillis, TimeUnit.MILLISECONDS);
+            if (key != null) {
+              key.pollEvents();
+              key.reset();
+            }
+          } else {
+            Thread.sleep(this.intervalMillis);
+          }
+
+          if (!this.stopped && storeFileChanged()) {
+            log.info("Reloading changed JSONKeystore file {}", this.file);
+            loadStoreFile();
+          }
+        }
+      } catch (InterruptedException e) {
+        log.debug("JSONKeystore watcher stopped.");
+      } finally {
+        if (service != null) {
+          try {
+            service.close();
+          } catch (IOException e) {
+            log.debug(e.toString());
+          }
+        }
+      }
+    }
+
+    private WatchService register() {
+      try {
+        Path directory = this.file.getAbsoluteFile().getParentFile().toPath();
+        WatchService service = FileSystems.getDefault().newWatchService();
+        directory.register(
+            service,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY
+        );
+        return service;
+      } catch (IOException e) {
+        log.warn("Could not watch JSONKeystore file; polling it instead.");
+        log.debug(e.toString());
+      } catch (UnsupportedOperationException e) {
+        log.warn("Could not watch JSONKeystore file; polling it instead.");
+        log.debug(e.toString());
+      }
+      return null;
+    }
   }
-}
\ No newline at end of file
+}
@@ -1,16 +1,70 @@
 package edu.clayton.cas.support.token.keystore;
 
+import edu.clayton.cas.support.token.util.Crypto;
 import org.springframework.util.Assert;
 
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Defines a key to be used in encrypting/decrypting data. Keys can be
- * identified by a name.
+ * identified by a name. A service may have several keys at once, told
+ * apart by a short key id (see {@link Key#setId(String)}), each valid for
+ * its own window of time (see {@link Key#setValidity(long, long)}). A key
+ * may also carry a rate limit for the service that uses it; see
+ * {@link Key#setRateLimit(int, int)}.
+ *
+ * <p>The key data is kept in a direct buffer, outside of the Java heap,
+ * and is only handed out as copies (see {@link Key#data()}) or as a
+ * {@link SecretKeySpec} (see {@link Key#secretKeySpec(String)}). The direct
+ * buffer is not the only copy while the key is in use, though: the
+ * {@link edu.clayton.cas.support.token.util.CipherCache} keeps the key's
+ * {@linkplain SecretKeySpec}, which holds the data on the heap, and
+ * {@link javax.crypto.Cipher}s that hold its expanded key schedule. Neither
+ * can be overwritten; they are dropped, to be collected, when the key is
+ * retired or destroyed or is evicted from the cache.</p>
+ *
+ * <p>A key store calls {@link Key#retire()} when it drops a key that it
+ * has handed out, which drops the cached state at once and destroys the key
+ * once the requests that may still hold it are done; {@link Key#destroy()}
+ * overwrites the data at once.</p>
+ *
+ * <p>A key store may hand out a key on trial (see
+ * {@link Key#isProvisional()}) when it cannot tell a real key from one made
+ * up for a name a client sent. Such a key is not cached anywhere until
+ * {@link Key#confirm()} says a token has decrypted under it, and
+ * {@link Key#discard()} wipes it if none has.</p>
  */
 public class Key {
+  /** The longest key id, in UTF-8 bytes, that a token can carry. **/
+  public static final int MAX_ID_LENGTH = 255;
+
+  /** How long, in milliseconds, a retired key stays usable by default. **/
+  public static final long DEFAULT_RETIREMENT_DELAY = 60000L;
+
+  /** How long a retired key stays usable; changed by tests. **/
+  static volatile long retirementDelay = DEFAULT_RETIREMENT_DELAY;
+
   private String name;
-  private byte[] data;
+  private final ByteBuffer data;
+  private volatile boolean destroyed = false;
+  private volatile boolean provisional = false;
+  /** The key store to tell when a provisional key is confirmed. **/
+  private volatile DerivedKeystore trial;
+  /** What the key store derived the key from, to tell it back. **/
+  private Object trialContext;
+  private String id;
+  private String qualifiedName;
+  private long notBefore = Long.MIN_VALUE;
+  private long notAfter = Long.MAX_VALUE;
+  private int rateLimit = 0;
+  private int burst = 0;
 
   /**
    * Create a {@linkplain Key} using a {@link String} for both the name
@@ -33,7 +87,9 @@ public class Key {
   }
 
   /**
-   * Create a {@linkplain Key} with a given name and key data.
+   * Create a {@linkplain Key} with a given name and key data. The data is
+   * copied; the caller may overwrite its array afterwards.
+   *
    * @param name The name of the key.
    * @param data A byte array to use as the key data.
    */
@@ -41,12 +97,152 @@ public class Key {
     Assert.notNull(name, "key name cannot be null");
     Assert.notNull(data, "key data cannot be null");
     this.name = name;
-    this.data = data;
+    this.data = ByteBuffer.allocateDirect(data.length);
+    this.data.put(data, 0, data.length);
+    this.qualifiedName = name;
   }
 
-  /** Get the key's data. */
+  /**
+   * Get a copy of the key's data. Callers that do not need the data for
+   * long should overwrite the copy when they are done with it.
+   */
   public byte[] data() {
-    return this.data;
+    byte[] copy = new byte[this.data.capacity()];
+    for (int i = 0; i < copy.length; i += 1) {
+      copy[i] = this.data.get(i);
+    }
+    return copy;
+  }
+
+  /** Get the length of the key's data in bytes. */
+  public int length() {
+    return this.data.capacity();
+  }
+
+  /**
+   * Build a {@link SecretKeySpec} from the key's data. The temporary copy
+   * made for it is overwritten, but the spec keeps a copy of its own on the
+   * heap for as long as it is reachable, and cannot be wiped.
+   *
+   * @param algorithm The key algorithm, e.g. "AES".
+   * @return A new {@linkplain SecretKeySpec}.
+   * @throws IllegalStateException If the key has been destroyed.
+   */
+  public SecretKeySpec secretKeySpec(String algorithm) {
+    if (this.destroyed) {
+      throw new IllegalStateException("key " + this.qualifiedName + " has been destroyed");
+    }
+
+    byte[] copy = this.data();
+    try {
+      return new SecretKeySpec(copy, algorithm);
+    } finally {
+      Arrays.fill(copy, (byte) 0);
+    }
+  }
+
+  /**
+   * Whether this key has the same data as another, compared without
+   * copying either and in time that does not depend on where they differ.
+   * A destroyed key has no data, and matches no key.
+   *
+   * @param key The {@linkplain Key} to compare against.
+   * @return {@code true} if both keys have the same data.
+   */
+  public boolean dataEquals(Key key) {
+    if (this.destroyed || key.destroyed || this.data.capacity() != key.data.capacity()) {
+      return false;
+    }
+
+    int difference = 0;
+    for (int i = 0, j = this.data.capacity(); i < j; i += 1) {
+      difference |= this.data.get(i) ^ key.data.get(i);
+    }
+    return difference == 0;
+  }
+
+  /**
+   * Overwrite the key's data, and drop the cipher state that was built
+   * from it. A destroyed key cannot be used to encrypt or decrypt, so key
+   * stores call this only for keys that no request can still hold, and
+   * {@link Key#retire()} for the others.
+   */
+  public void destroy() {
+    this.destroyed = true;
+    // The cached spec and ciphers cannot be wiped; make them unreachable.
+    Crypto.invalidateKey(this);
+    for (int i = 0, j = this.data.capacity(); i < j; i += 1) {
+      this.data.put(i, (byte) 0);
+    }
+  }
+
+  /**
+   * Take a key out of service. Its cipher state is dropped now, so that
+   * new requests do not find it, and the key is destroyed after a grace
+   * period, so that a login that looked the key up just before it was
+   * replaced or evicted can still finish.
+   */
+  public void retire() {
+    Crypto.invalidateKey(this);
+    final Key retired = this;
+    Retirement.executor.schedule(new Runnable() {
+      public void run() {
+        retired.destroy();
+      }
+    }, retirementDelay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Put the key on trial: it is not cached until it is confirmed.
+   *
+   * @param keystore The key store to hand the key back to once it is
+   *                 confirmed.
+   * @param context Handed back to the key store along with the key.
+   */
+  void setProvisional(DerivedKeystore keystore, Object context) {
+    this.provisional = true;
+    this.trialContext = context;
+    this.trial = keystore;
+  }
+
+  /**
+   * Whether the key was handed out on trial and has not been confirmed.
+   * Caches must not keep a provisional key or anything built from it.
+   */
+  public boolean isProvisional() {
+    return this.provisional;
+  }
+
+  /**
+   * Record that a token has been decrypted, or encrypted, with this key,
+   * so the key store that handed it out on trial may now cache it. Does
+   * nothing for a key that is not provisional.
+   */
+  public void confirm() {
+    DerivedKeystore keystore = this.trial;
+    if (this.provisional && keystore != null) {
+      this.trial = null;
+      this.provisional = false;
+      keystore.admit(this, this.trialContext);
+      this.trialContext = null;
+    }
+  }
+
+  /**
+   * Wipe a provisional key that no token has been decrypted with. Does
+   * nothing for a key that is not provisional.
+   */
+  public void discard() {
+    if (this.provisional && !this.destroyed) {
+      this.trial = null;
+      this.trialContext = null;
+      this.destroy();
+    }
+  }
+
+  /** Whether {@link Key#destroy()} has been called. */
+  public boolean isDestroyed() {
+    return this.destroyed;
   }
 
   /** Get the key's name. */
@@ -54,6 +250,95 @@ public class Key {
     return this.name;
   }
 
+  /** Get the key's id, or {@code null} if it has none. */
+  public String id() {
+    return this.id;
+  }
+
+  /**
+   * Get a name that is unique to this key among all of a service's keys:
+   * the key's name, followed by {@code #} and its id if it has one.
+   */
+  public String qualifiedName() {
+    return this.qualifiedName;
+  }
+
+  /** Get the time, in milliseconds, from which the key may be used. */
+  public long notBefore() {
+    return this.notBefore;
+  }
+
+  /** Get the time, in milliseconds, after which the key may no longer be used. */
+  public long notAfter() {
+    return this.notAfter;
+  }
+
+  /**
+   * Whether the key may be used at a given time.
+   *
+   * @param time A time in milliseconds.
+   * @return {@code true} if the time is within the key's validity window.
+   */
+  public boolean isValidAt(long time) {
+    return time >= this.notBefore && time <= this.notAfter;
+  }
+
+  /**
+   * Give the key an id, so that it can be told apart from the service's
+   * other keys. Tokens encrypted with a key that has an id carry the id.
+   *
+   * @param id A short id of at most {@link #MAX_ID_LENGTH} UTF-8 bytes, or
+   *           {@code null}.
+   */
+  public void setId(String id) {
+    if (id != null) {
+      Assert.hasLength(id, "key id cannot be empty");
+      Assert.isTrue(
+          id.getBytes(Charset.forName("UTF-8")).length <= MAX_ID_LENGTH,
+          "key id cannot be longer than " + MAX_ID_LENGTH + " bytes"
+      );
+    }
+    this.id = id;
+    this.qualifiedName = (id == null) ? this.name : this.name + "#" + id;
+  }
+
+  /**
+   * Limit the time during which the key may be used.
+   *
+   * @param notBefore The time, in milliseconds, from which the key may be
+   *                  used.
+   * @param notAfter The time, in milliseconds, after which the key may no
+   *                 longer be used.
+   */
+  public void setValidity(long notBefore, long notAfter) {
+    Assert.isTrue(notBefore <= notAfter, "notBefore cannot be after notAfter");
+    this.notBefore = notBefore;
+    this.notAfter = notAfter;
+  }
+
+  /** Get the number of tokens per second the key may be used for, or 0 for no limit. */
+  public int rateLimit() {
+    return this.rateLimit;
+  }
+
+  /** Get the number of tokens that may be used at once before the rate limit applies. */
+  public int burst() {
+    return this.burst;
+  }
+
+  /**
+   * Limit the rate at which tokens encrypted with this key are accepted.
+   *
+   * @param rateLimit The number of tokens per second, or 0 for no limit.
+   * @param burst The number of tokens that may arrive together. If it is
+   *              less than 1, one second's worth of tokens is allowed.
+   */
+  public void setRateLimit(int rateLimit, int burst) {
+    Assert.isTrue(rateLimit >= 0, "rate limit cannot be negative");
+    this.rateLimit = rateLimit;
+    this.burst = (burst < 1) ? Math.max(1, rateLimit) : burst;
+  }
+
   /**
    * Used to determine if the {@linkplain Key} instance is identical to
    * another instance.
@@ -64,7 +349,19 @@ public class Key {
   public boolean equals(Key key) {
     return (
       this.name().equals(key.name()) &&
-      Arrays.equals(this.data(), key.data())
+      this.dataEquals(key)
     );
   }
-}
\ No newline at end of file
+
+  /** Destroys retired keys; started the first time a key is retired. **/
+  private static final class Retirement {
+    private static final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "KeyRetirement");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+}
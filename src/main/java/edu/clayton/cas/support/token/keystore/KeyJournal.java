@@ -0,0 +1,239 @@
+package edu.clayton.cas.support.token.keystore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>An append-only log of the changes made to a {@link JSONKeystore}
+ * since its store file was last written. Each change is one JSON object
+ * on its own line.</p>
+ *
+ * <p>Changes are committed in groups: {@link KeyJournal#append(JSONObject)}
+ * only queues a record, and the first thread to
+ * {@link KeyJournal#commit(long)} writes every queued record and syncs the
+ * file once, while the threads whose records it wrote wait for it. A crash
+ * can only lose the records that were never committed, and can at worst
+ * leave a partial last line, which {@link KeyJournal#read(File)} ignores.</p>
+ */
+final class KeyJournal {
+  private static final Logger log = LoggerFactory.getLogger(KeyJournal.class);
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final FileOutputStream out;
+  private final FileChannel channel;
+
+  private final Object lock = new Object();
+  private final StringBuilder pending = new StringBuilder();
+  private long appended = 0;
+  private long committed = 0;
+  private long failedThrough = 0;
+  private boolean flushing = false;
+  private int records;
+  private long syncs = 0;
+
+  /**
+   * Open a journal for appending, creating the file if needed. A partial
+   * record left at the end of the file by a crash is cut off, so that new
+   * records are not appended to it.
+   *
+   * @param file The journal file.
+   * @throws IOException If the file cannot be opened.
+   */
+  KeyJournal(File file) throws IOException {
+    ArrayList<JSONObject> existing = new ArrayList<JSONObject>();
+    long valid = KeyJournal.scan(file, existing);
+
+    this.file = file;
+    this.out = new FileOutputStream(file, true);
+    this.channel = this.out.getChannel();
+    if (this.channel.size() > valid) {
+      log.warn("Removing incomplete record at the end of journal {}", file);
+      this.channel.truncate(valid);
+    }
+    this.records = existing.size();
+  }
+
+  /**
+   * Read the records of a journal file. Reading stops at the first line
+   * that is not a complete record, which is what a crash during a write
+   * leaves behind.
+   *
+   * @param file The journal file.
+   * @return The records, in the order they were appended.
+   * @throws IOException If the file exists but cannot be read.
+   */
+  static List<JSONObject> read(File file) throws IOException {
+    ArrayList<JSONObject> records = new ArrayList<JSONObject>();
+    KeyJournal.scan(file, records);
+    return records;
+  }
+
+  /**
+   * Parse the complete records of a journal file.
+   *
+   * @return The length, in bytes, of the complete records.
+   */
+  private static long scan(File file, List<JSONObject> records) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    byte[] contents = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(contents);
+    } finally {
+      in.close();
+    }
+
+    int start = 0;
+    for (int i = 0; i < contents.length; i += 1) {
+      if (contents[i] != '\n') {
+        continue;
+      }
+      if (i > start) {
+        try {
+          records.add(new JSONObject(new String(contents, start, i - start, UTF8)));
+        } catch (JSONException e) {
+          log.warn("Ignoring incomplete record in journal {}", file);
+          log.debug(e.toString());
+          return start;
+        }
+      }
+      start = i + 1;
+    }
+
+    // Anything after the last newline was never completely written.
+    return start;
+  }
+
+  /**
+   * Queue a record. It is not durable until it is committed.
+   *
+   * @param record The record to append.
+   * @return The record's sequence number, for {@link KeyJournal#commit(long)}.
+   */
+  long append(JSONObject record) {
+    synchronized (this.lock) {
+      this.pending.append(record.toString()).append('\n');
+      this.appended += 1;
+      this.records += 1;
+      return this.appended;
+    }
+  }
+
+  /**
+   * Wait until a record is durable, writing and syncing all the queued
+   * records if no other thread is already doing so.
+   *
+   * @param sequence The record's sequence number.
+   * @throws IOException If the record could not be written.
+   */
+  void commit(long sequence) throws IOException {
+    String batch;
+    long through;
+
+    synchronized (this.lock) {
+      while (this.committed < sequence && this.flushing) {
+        try {
+          this.lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for the journal");
+        }
+      }
+      if (this.committed >= sequence) {
+        return;
+      }
+      if (sequence <= this.failedThrough) {
+        throw new IOException("Could not write journal " + this.file);
+      }
+
+      batch = this.pending.toString();
+      through = this.appended;
+      this.pending.setLength(0);
+      this.flushing = true;
+    }
+
+    boolean written = false;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(batch.getBytes(UTF8));
+      while (buffer.hasRemaining()) {
+        this.channel.write(buffer);
+      }
+      this.channel.force(false);
+      written = true;
+    } finally {
+      synchronized (this.lock) {
+        this.flushing = false;
+        if (written) {
+          this.committed = through;
+          this.syncs += 1;
+        } else {
+          this.failedThrough = through;
+        }
+        this.lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Empty the journal once its records are in the store file. Records
+   * that are still queued are dropped as well; the threads waiting for
+   * them are released as if they had been committed.
+   *
+   * @throws IOException If the file cannot be truncated.
+   */
+  void reset() throws IOException {
+    synchronized (this.lock) {
+      while (this.flushing) {
+        try {
+          this.lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for the journal");
+        }
+      }
+
+      this.pending.setLength(0);
+      this.channel.truncate(0);
+      this.channel.force(false);
+      this.committed = this.appended;
+      this.records = 0;
+      this.lock.notifyAll();
+    }
+  }
+
+  /** The number of records in the journal, including queued ones. */
+  int records() {
+    synchronized (this.lock) {
+      return this.records;
+    }
+  }
+
+  /** The number of times the journal file has been synced. */
+  long syncs() {
+    synchronized (this.lock) {
+      return this.syncs;
+    }
+  }
+
+  void close() {
+    try {
+      this.out.close();
+    } catch (IOException e) {
+      log.debug(e.toString());
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package edu.clayton.cas.support.token.keystore;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of key names. It never answers {@code false} for a name
+ * that was added, and answers {@code true} for a name that was not added
+ * about one time in a hundred. Names can be added concurrently with
+ * lookups; they cannot be removed.
+ */
+final class KeyNameFilter {
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int HASHES = 7;
+
+  private final AtomicLongArray bits;
+  private final long bitCount;
+
+  /**
+   * Create a filter sized for a number of names at a 1% false positive
+   * rate.
+   *
+   * @param expectedNames The number of names that will be added.
+   */
+  KeyNameFilter(int expectedNames) {
+    // m = -n ln(p) / ln(2)^2, or about 9.6 bits per name for p = 0.01.
+    long words = Math.max(1L, ((long) Math.max(1, expectedNames) * 10 + 63) / 64);
+    this.bits = new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE));
+    this.bitCount = this.bits.length() * 64L;
+  }
+
+  void add(String name) {
+    long hash = KeyNameFilter.hash(name);
+    int first = (int) hash;
+    int second = (int) (hash >>> 32);
+
+    for (int i = 0; i < HASHES; i += 1) {
+      long bit = ((first + i * second) & 0x7FFFFFFFL) % this.bitCount;
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+
+      while (true) {
+        long current = this.bits.get(word);
+        if ((current & mask) != 0 || this.bits.compareAndSet(word, current, current | mask)) {
+          break;
+        }
+      }
+    }
+  }
+
+  boolean mightContain(String name) {
+    long hash = KeyNameFilter.hash(name);
+    int first = (int) hash;
+    int second = (int) (hash >>> 32);
+
+    for (int i = 0; i < HASHES; i += 1) {
+      long bit = ((first + i * second) & 0x7FFFFFFFL) % this.bitCount;
+      if ((this.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The 64 bit FNV-1a hash of the UTF-8 name, with its bits spread. */
+  private static long hash(String name) {
+    long hash = 0xCBF29CE484222325L;
+    for (byte b : name.getBytes(UTF8)) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
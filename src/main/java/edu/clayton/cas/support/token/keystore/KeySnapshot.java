@@ -0,0 +1,172 @@
+package edu.clayton.cas.support.token.keystore;
+
+import edu.clayton.cas.support.token.util.Crypto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The keys of a {@link Keystore}, by name and by id. A snapshot is only
+ * changed before it is published; once a key store makes it visible to
+ * readers (through a volatile field) it is never modified again, so
+ * lookups need no locking.
+ */
+final class KeySnapshot {
+  private final HashMap<String, Key> named;
+  private final HashMap<String, HashMap<String, Key>> byId;
+  private int size = 0;
+
+  /** The published snapshot's keys, built on first use. **/
+  private volatile Collection<Key> view;
+
+  KeySnapshot() {
+    this.named = new HashMap<String, Key>();
+    this.byId = new HashMap<String, HashMap<String, Key>>();
+  }
+
+  KeySnapshot(KeySnapshot other) {
+    this.named = new HashMap<String, Key>(other.named);
+    this.size = other.size;
+    this.byId = new HashMap<String, HashMap<String, Key>>(other.byId.size() * 2);
+    for (Map.Entry<String, HashMap<String, Key>> entry : other.byId.entrySet()) {
+      this.byId.put(entry.getKey(), new HashMap<String, Key>(entry.getValue()));
+    }
+  }
+
+  Key get(String name, String id) {
+    if (id == null) {
+      return this.named.get(name);
+    }
+
+    HashMap<String, Key> ids = this.byId.get(name);
+    return (ids == null) ? null : ids.get(id);
+  }
+
+  /**
+   * Add a key. The first key added for a name is its primary key; a
+   * key without an id always becomes the primary key.
+   *
+   * @return The key that was replaced, or {@code null}.
+   */
+  Key put(Key key) {
+    this.view = null;
+    Key previous = this.putKey(key);
+    if (previous == null) {
+      this.size += 1;
+    }
+    return previous;
+  }
+
+  private Key putKey(Key key) {
+    if (key.id() == null) {
+      Key previous = this.named.put(key.name(), key);
+      // A primary key with an id is still counted under its id.
+      return (previous != null && previous.id() != null) ? null : previous;
+    }
+
+    HashMap<String, Key> ids = this.byId.get(key.name());
+    if (ids == null) {
+      ids = new HashMap<String, Key>();
+      this.byId.put(key.name(), ids);
+    }
+
+    Key previous = ids.put(key.id(), key);
+    Key primary = this.named.get(key.name());
+    if (primary == null || primary == previous) {
+      this.named.put(key.name(), key);
+    }
+    return previous;
+  }
+
+  /**
+   * Remove a name's keys.
+   *
+   * @return The keys that were removed, which is empty if the name had
+   *         none.
+   */
+  ArrayList<Key> remove(String name) {
+    ArrayList<Key> removed = new ArrayList<Key>();
+    Key primary = this.named.remove(name);
+    HashMap<String, Key> ids = this.byId.remove(name);
+
+    if (primary != null && primary.id() == null) {
+      removed.add(primary);
+    }
+    if (ids != null) {
+      removed.addAll(ids.values());
+    }
+    if (!removed.isEmpty()) {
+      this.view = null;
+      this.size -= removed.size();
+    }
+    return removed;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * The snapshot's keys as an unmodifiable collection. It is built once
+   * and shared by every caller, so it must only be asked for once the
+   * snapshot is published.
+   */
+  Collection<Key> view() {
+    Collection<Key> view = this.view;
+    if (view == null) {
+      view = Collections.unmodifiableList(this.all());
+      this.view = view;
+    }
+    return view;
+  }
+
+  void forEach(KeyVisitor visitor) {
+    for (Key key : this.named.values()) {
+      if (key.id() == null) {
+        visitor.visit(key);
+      }
+    }
+    for (HashMap<String, Key> ids : this.byId.values()) {
+      for (Key key : ids.values()) {
+        visitor.visit(key);
+      }
+    }
+  }
+
+  ArrayList<Key> all() {
+    ArrayList<Key> keys = new ArrayList<Key>(this.size);
+    for (Key key : this.named.values()) {
+      if (key.id() == null) {
+        keys.add(key);
+      }
+    }
+    for (HashMap<String, Key> ids : this.byId.values()) {
+      keys.addAll(ids.values());
+    }
+    return keys;
+  }
+
+  /**
+   * Retire the snapshot this one replaced: drop the cipher state of the
+   * keys that are gone from, or changed in, this snapshot, and retire
+   * (see {@link Key#retire()}) every key that this snapshot does not
+   * share, since logins may still hold them.
+   *
+   * @param previous The snapshot this one replaced.
+   */
+  void retire(KeySnapshot previous) {
+    for (Key old : previous.all()) {
+      Key current = this.get(old.name(), old.id());
+      if (current == old) {
+        continue;
+      }
+      if (current == null || !current.dataEquals(old)) {
+        Crypto.invalidateKey(old.name());
+      }
+      old.retire();
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package edu.clayton.cas.support.token.keystore;
+
+/**
+ * Receives the {@link Key}s of a {@link Keystore}, one at a time, from
+ * {@link Keystore#forEachKey(KeyVisitor)}.
+ */
+public interface KeyVisitor {
+  /**
+   * Called once for each {@link Key} in the store.
+   *
+   * @param key The {@linkplain Key}.
+   */
+  public void visit(Key key);
+}
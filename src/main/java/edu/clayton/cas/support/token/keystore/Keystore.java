@@ -1,9 +1,12 @@
 package edu.clayton.cas.support.token.keystore;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
- * A key store is a set of {@link Key} objects.
+ * A key store is a set of {@link Key} objects. A name may have several
+ * keys with different ids (see {@link Key#id()}); one of them is the
+ * name's primary key, returned by {@link Keystore#getKeyNamed(String)}.
  */
 public interface Keystore {
   /**
@@ -13,6 +16,30 @@ public interface Keystore {
    */
   public ArrayList<Key> keys();
 
+  /**
+   * Retrieve the number of {@link Key}s in the store.
+   *
+   * @return The number of {@linkplain Key}s.
+   */
+  public int size();
+
+  /**
+   * Retrieve the {@link Key}s in the store as they are now. Unlike
+   * {@link Keystore#keys()}, the collection is not copied for the caller;
+   * it cannot be modified, and does not change when the store does.
+   *
+   * @return An unmodifiable {@link Collection} of the {@linkplain Key}s.
+   */
+  public Collection<Key> snapshot();
+
+  /**
+   * Pass each {@link Key} in the store to a visitor, without copying them
+   * into a collection first.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor);
+
   /**
    * Put a new {@link Key} in the store.
    *
@@ -20,6 +47,21 @@ public interface Keystore {
    */
   public void addKey(Key key);
 
+  /**
+   * Put several {@link Key}s in the store at once.
+   *
+   * @param keys The {@linkplain Key}s to add.
+   */
+  public void addKeys(Collection<Key> keys);
+
+  /**
+   * Remove the {@link Key}s with the given names from the store, along
+   * with all of their ids.
+   *
+   * @param names The names to remove.
+   */
+  public void removeKeys(Collection<String> names);
+
   /**
    * Retrieve a {@link Key} from the store that has a specific name.
    *
@@ -27,4 +69,14 @@ public interface Keystore {
    * @return The {@linkplain Key} or {@code null} if it doesn't exist.
    */
   public Key getKeyNamed(String name);
+
+  /**
+   * Retrieve a {@link Key} from the store by its name and id.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null} for the
+   *           name's primary key.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
+   */
+  public Key getKey(String name, String id);
 }
\ No newline at end of file
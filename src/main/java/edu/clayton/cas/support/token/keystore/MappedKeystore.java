@@ -0,0 +1,529 @@
+package edu.clayton.cas.support.token.keystore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A read-only {@link Keystore} backed by a compact binary file that is
+ * memory mapped with {@link FileChannel#map(FileChannel.MapMode, long, long)}.
+ * Opening the store does not read its entries, and a lookup hashes the name
+ * straight into the mapped hash table, so startup time and heap use do not
+ * grow with the number of keys. A {@link Key} is built only for an entry
+ * that is asked for, the first time it is asked for; it is then kept for
+ * as long as the file stays mapped, so that every lookup of a name gets the
+ * same instance. When another file is mapped, the keys of the old one are
+ * retired (see {@link Key#retire()}).</p>
+ *
+ * <p>Files are written by {@link MappedKeystore#write(java.util.Collection, java.io.File)};
+ * {@link edu.clayton.cas.support.token.util.KeystoreConverterCLI} converts a
+ * {@link JSONKeystore} file. All numbers are big endian:</p>
+ *
+ * <pre>
+ * header:  magic "CTKS" | int version | int count | int slots
+ * index:   int[slots] entry offsets, 0 for an empty slot
+ * entries: sorted by name, each
+ *          short nameLength | name (UTF-8) | short dataLength | data
+ *          | int rateLimit | int burst | byte idLength | id (UTF-8)
+ *          | long notBefore | long notAfter
+ * </pre>
+ *
+ * <p>A name has a single key in this format; its id, if any, must match
+ * the one asked for by {@link MappedKeystore#getKey(String, String)}.</p>
+ *
+ * <p>The index is an open addressed hash table, probed linearly from the
+ * 32 bit FNV-1a hash of the UTF-8 name.</p>
+ */
+public class MappedKeystore implements Keystore {
+  private static final Logger log = LoggerFactory.getLogger(MappedKeystore.class);
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  static final int MAGIC = 0x43544B53;
+  static final int VERSION = 2;
+  static final int HEADER_LENGTH = 16;
+
+  private File storeFile;
+  private volatile Mapping mapping;
+
+  /**
+   * Initialize an empty keystore. Use
+   * {@link MappedKeystore#setStoreFile(java.io.File)} to map a store file.
+   */
+  public MappedKeystore() {
+    this(null);
+  }
+
+  /**
+   * Initialize a {@linkplain MappedKeystore} from a binary file on disk.
+   *
+   * @param storeFile The binary keystore file to map.
+   */
+  public MappedKeystore(File storeFile) {
+    this.mapping = new Mapping(MappedKeystore.emptyStore());
+
+    if (storeFile != null && storeFile.exists()) {
+      this.storeFile = storeFile;
+      this.loadStoreFile();
+    }
+  }
+
+  /**
+   * Retrieve every key in the store, in name order. This reads the whole
+   * store, so it is meant for tools rather than the request path.
+   *
+   * @return The stored keys.
+   */
+  public ArrayList<Key> keys() {
+    final ArrayList<Key> keys = new ArrayList<Key>(this.size());
+    this.forEachKey(new KeyVisitor() {
+      public void visit(Key key) {
+        keys.add(key);
+      }
+    });
+    return keys;
+  }
+
+  /**
+   * Retrieve the number of keys in the store, from its header.
+   *
+   * @return The number of keys.
+   */
+  public int size() {
+    return this.mapping.store.getInt(8);
+  }
+
+  /**
+   * Retrieve every key in the store, in name order. Keys are only built
+   * on demand in this store, so this reads the whole store; it is meant for
+   * tools rather than the request path.
+   *
+   * @return An unmodifiable collection of the keys.
+   */
+  public Collection<Key> snapshot() {
+    return Collections.unmodifiableList(this.keys());
+  }
+
+  /**
+   * Pass each key in the store, in name order, to a visitor. A key that
+   * has not been looked up is read from the mapped file as it is visited
+   * and is not kept, so walking the store does not pin every key.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor) {
+    Mapping mapping = this.mapping;
+    int count = mapping.store.getInt(8);
+    int slots = mapping.store.getInt(12);
+
+    int offset = HEADER_LENGTH + slots * 4;
+    for (int i = 0; i < count; i += 1) {
+      Key key = mapping.keys.get(offset);
+      visitor.visit(key != null ? key : MappedKeystore.readKey(mapping.store, offset));
+      offset = MappedKeystore.nextEntry(mapping.store, offset);
+    }
+  }
+
+  /**
+   * A {@linkplain MappedKeystore} is read-only; write a new store file
+   * instead.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void addKey(Key key) {
+    throw new UnsupportedOperationException("MappedKeystore is read-only");
+  }
+
+  /**
+   * A {@linkplain MappedKeystore} is read-only; write a new store file
+   * instead.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void addKeys(Collection<Key> keys) {
+    throw new UnsupportedOperationException("MappedKeystore is read-only");
+  }
+
+  /**
+   * A {@linkplain MappedKeystore} is read-only; write a new store file
+   * instead.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void removeKeys(Collection<String> names) {
+    throw new UnsupportedOperationException("MappedKeystore is read-only");
+  }
+
+  /**
+   * Retrieve a named key from the keystore.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
+   */
+  public Key getKeyNamed(String name) {
+    Mapping mapping = this.mapping;
+    ByteBuffer store = mapping.store;
+    int slots = store.getInt(12);
+    if (slots == 0) {
+      return null;
+    }
+
+    byte[] nameBytes = name.getBytes(UTF8);
+    int mask = slots - 1;
+    int slot = MappedKeystore.hash(nameBytes) & mask;
+
+    for (int i = 0; i < slots; i += 1) {
+      int offset = store.getInt(HEADER_LENGTH + slot * 4);
+      if (offset == 0) {
+        return null;
+      }
+      if (MappedKeystore.nameEquals(store, offset, nameBytes)) {
+        return mapping.keyAt(offset);
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return null;
+  }
+
+  /**
+   * Retrieve a key from the keystore by its name and id.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null} for the
+   *           name's key whatever its id.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
+   */
+  public Key getKey(String name, String id) {
+    Key key = this.getKeyNamed(name);
+    if (key == null || id == null || id.equals(key.id())) {
+      return key;
+    }
+    return null;
+  }
+
+  /**
+   * Map the instance's associated store file. If the file cannot be
+   * mapped or is not a keystore, the previously mapped store is kept.
+   * Otherwise the keys built from the previous file are retired; a
+   * {@link TieredKeystore} in front of this store should be invalidated.
+   *
+   * @return {@code true} if the new file was mapped.
+   */
+  public synchronized boolean loadStoreFile() {
+    try {
+      RandomAccessFile file = new RandomAccessFile(this.storeFile, "r");
+      ByteBuffer mapped;
+      try {
+        FileChannel channel = file.getChannel();
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        // The mapping stays valid after the file is closed.
+        file.close();
+      }
+
+      if (mapped.capacity() < HEADER_LENGTH || mapped.getInt(0) != MAGIC) {
+        log.error("{} is not a MappedKeystore file!", this.storeFile);
+        return false;
+      }
+      if (mapped.getInt(4) != VERSION) {
+        log.error("Unsupported MappedKeystore version {}", mapped.getInt(4));
+        return false;
+      }
+      if (!MappedKeystore.isValid(mapped)) {
+        log.error("MappedKeystore file {} is corrupt!", this.storeFile);
+        return false;
+      }
+
+      Mapping previous = this.mapping;
+      this.mapping = new Mapping(mapped);
+      for (Key key : previous.keys.values()) {
+        key.retire();
+      }
+      log.debug("Mapped {} keys from {}", mapped.getInt(8), this.storeFile);
+      return true;
+    } catch (FileNotFoundException e) {
+      log.error("Could not find MappedKeystore file!");
+      log.debug(e.toString());
+    } catch (IOException e) {
+      log.error("Could not map MappedKeystore file!");
+      log.debug(e.toString());
+    }
+    return false;
+  }
+
+  /**
+   * Set the instance's store file to the given {@link File} and map it.
+   *
+   * @param file The binary keystore file.
+   */
+  public void setStoreFile(File file) {
+    this.storeFile = file;
+    this.loadStoreFile();
+  }
+
+  /**
+   * Write a set of keys as a {@linkplain MappedKeystore} file. The keys
+   * are written to a temporary file that is synced and then renamed over
+   * the file, so that a store that has the file mapped never sees it
+   * truncated or half written.
+   *
+   * @param keys The keys to write. Names must be unique.
+   * @param file The file to create or replace.
+   * @throws IOException If the file cannot be written, or a name is used
+   *         by more than one key.
+   */
+  public static void write(Collection<Key> keys, File file) throws IOException {
+    List<Key> sorted = new ArrayList<Key>(keys);
+    Collections.sort(sorted, new Comparator<Key>() {
+      public int compare(Key a, Key b) {
+        return a.name().compareTo(b.name());
+      }
+    });
+
+    int count = sorted.size();
+    int slots = (count == 0) ? 0 : Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+    int[] index = new int[slots];
+
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    DataOutputStream entriesOut = new DataOutputStream(entries);
+    int entriesStart = HEADER_LENGTH + slots * 4;
+
+    String previousName = null;
+    for (Key key : sorted) {
+      if (key.name().equals(previousName)) {
+        throw new IOException("More than one key is named " + key.name());
+      }
+      previousName = key.name();
+
+      byte[] name = key.name().getBytes(UTF8);
+      byte[] data = key.data();
+      if (name.length > 0xFFFF || data.length > 0xFFFF) {
+        throw new IOException("Key " + key.name() + " is too large");
+      }
+
+      int slot = MappedKeystore.hash(name) & (slots - 1);
+      while (index[slot] != 0) {
+        slot = (slot + 1) & (slots - 1);
+      }
+      index[slot] = entriesStart + entriesOut.size();
+
+      entriesOut.writeShort(name.length);
+      entriesOut.write(name);
+      entriesOut.writeShort(data.length);
+      entriesOut.write(data);
+      entriesOut.writeInt(key.rateLimit());
+      entriesOut.writeInt(key.burst());
+
+      byte[] id = (key.id() == null) ? new byte[0] : key.id().getBytes(UTF8);
+      entriesOut.writeByte(id.length);
+      entriesOut.write(id);
+      entriesOut.writeLong(key.notBefore());
+      entriesOut.writeLong(key.notAfter());
+    }
+    entriesOut.flush();
+
+    File directory = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(file.getName(), ".tmp", directory);
+    try {
+      FileOutputStream fos = new FileOutputStream(temp);
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeInt(slots);
+        for (int offset : index) {
+          out.writeInt(offset);
+        }
+        entries.writeTo(out);
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+
+      try {
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp = null;
+      JSONKeystore.syncDirectory(directory);
+    } finally {
+      if (temp != null) {
+        temp.delete();
+      }
+    }
+  }
+
+  private static ByteBuffer emptyStore() {
+    ByteBuffer empty = ByteBuffer.allocate(HEADER_LENGTH);
+    empty.putInt(0, MAGIC);
+    empty.putInt(4, VERSION);
+    return empty;
+  }
+
+  /** The 32 bit FNV-1a hash of a name. */
+  static int hash(byte[] name) {
+    int hash = 0x811C9DC5;
+    for (byte b : name) {
+      hash = (hash ^ (b & 0xFF)) * 0x01000193;
+    }
+    return hash;
+  }
+
+  private static boolean nameEquals(ByteBuffer store, int offset, byte[] name) {
+    int length = store.getShort(offset) & 0xFFFF;
+    if (length != name.length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i += 1) {
+      if (store.get(offset + 2 + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check a mapped file once, so that lookups can trust it: the header,
+   * that every entry lies within the file, and that every index slot
+   * points at an entry.
+   */
+  private static boolean isValid(ByteBuffer store) {
+    long capacity = store.capacity();
+    int count = store.getInt(8);
+    int slots = store.getInt(12);
+    if (count < 0 || slots < 0 || Integer.bitCount(slots) > 1 || count > slots) {
+      return false;
+    }
+
+    long offset = HEADER_LENGTH + (long) slots * 4;
+    if (offset > capacity) {
+      return false;
+    }
+
+    int[] offsets = new int[count];
+    for (int i = 0; i < count; i += 1) {
+      offsets[i] = (int) offset;
+      if (offset + 2 > capacity) {
+        return false;
+      }
+      long dataOffset = offset + 2 + (store.getShort((int) offset) & 0xFFFF);
+      if (dataOffset + 2 > capacity) {
+        return false;
+      }
+      long idOffset = dataOffset + 2 + (store.getShort((int) dataOffset) & 0xFFFF) + 8;
+      if (idOffset + 1 > capacity) {
+        return false;
+      }
+      long validityOffset = idOffset + 1 + (store.get((int) idOffset) & 0xFF);
+      offset = validityOffset + 16;
+      if (offset > capacity || store.getLong((int) validityOffset) > store.getLong((int) validityOffset + 8)) {
+        return false;
+      }
+    }
+
+    int used = 0;
+    for (int slot = 0; slot < slots; slot += 1) {
+      int entry = store.getInt(HEADER_LENGTH + slot * 4);
+      if (entry != 0) {
+        if (Arrays.binarySearch(offsets, entry) < 0) {
+          return false;
+        }
+        used += 1;
+      }
+    }
+    return used == count;
+  }
+
+  private static Key readKey(ByteBuffer store, int offset) {
+    int nameLength = store.getShort(offset) & 0xFFFF;
+    byte[] name = new byte[nameLength];
+    for (int i = 0; i < nameLength; i += 1) {
+      name[i] = store.get(offset + 2 + i);
+    }
+
+    int dataOffset = offset + 2 + nameLength;
+    int dataLength = store.getShort(dataOffset) & 0xFFFF;
+    byte[] data = new byte[dataLength];
+    for (int i = 0; i < dataLength; i += 1) {
+      data[i] = store.get(dataOffset + 2 + i);
+    }
+
+    int limitsOffset = dataOffset + 2 + dataLength;
+    Key key = new Key(new String(name, UTF8), data);
+    // The key has its own copy of the data.
+    Arrays.fill(data, (byte) 0);
+    int rateLimit = store.getInt(limitsOffset);
+    if (rateLimit > 0) {
+      key.setRateLimit(rateLimit, store.getInt(limitsOffset + 4));
+    }
+
+    int idOffset = limitsOffset + 8;
+    int idLength = store.get(idOffset) & 0xFF;
+    if (idLength > 0) {
+      byte[] id = new byte[idLength];
+      for (int i = 0; i < idLength; i += 1) {
+        id[i] = store.get(idOffset + 1 + i);
+      }
+      key.setId(new String(id, UTF8));
+    }
+
+    int validityOffset = idOffset + 1 + idLength;
+    long notBefore = store.getLong(validityOffset);
+    long notAfter = store.getLong(validityOffset + 8);
+    if (notBefore != Long.MIN_VALUE || notAfter != Long.MAX_VALUE) {
+      key.setValidity(notBefore, notAfter);
+    }
+    return key;
+  }
+
+  private static int nextEntry(ByteBuffer store, int offset) {
+    int dataOffset = offset + 2 + (store.getShort(offset) & 0xFFFF);
+    int idOffset = dataOffset + 2 + (store.getShort(dataOffset) & 0xFFFF) + 8;
+    return idOffset + 1 + (store.get(idOffset) & 0xFF) + 16;
+  }
+
+  /** A mapped file, and the keys that have been built from its entries. **/
+  private static final class Mapping {
+    private final ByteBuffer store;
+    private final ConcurrentHashMap<Integer, Key> keys = new ConcurrentHashMap<Integer, Key>();
+
+    private Mapping(ByteBuffer store) {
+      this.store = store;
+    }
+
+    /** The key of the entry at an offset, built the first time it is asked for. **/
+    private Key keyAt(int offset) {
+      Key key = this.keys.get(offset);
+      if (key == null) {
+        Key built = MappedKeystore.readKey(this.store, offset);
+        key = this.keys.putIfAbsent(offset, built);
+        if (key == null) {
+          key = built;
+        } else {
+          built.destroy();
+        }
+      }
+      return key;
+    }
+  }
+}
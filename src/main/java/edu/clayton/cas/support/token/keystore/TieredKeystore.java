@@ -0,0 +1,387 @@
+package edu.clayton.cas.support.token.keystore;
+
+import edu.clayton.cas.support.token.util.Crypto;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A {@link Keystore} that keeps the keys in use in memory, in front of a
+ * large store that is kept on disk, typically a {@link MappedKeystore}.</p>
+ *
+ * <p>Recently used keys are held in a cache of
+ * {@link TieredKeystore#setCacheSize(int)} entries. When the cache is full,
+ * a key read from the disk store only takes the place of a key that has
+ * not been used lately if it has been asked for more often (TinyLFU
+ * admission), so a burst of one-off lookups cannot flush the keys that are
+ * in steady use. A Bloom filter of the disk store's names turns away
+ * unknown services without reading the disk.</p>
+ *
+ * <p>A lookup that finds its key in the cache takes no lock: the cache is a
+ * {@link ConcurrentHashMap}, recency is a flag on each entry that the CLOCK
+ * sweep of an admission clears, and the lookup is counted in the frequency
+ * sketch only when no other thread is counting at the time. Under load the
+ * sketch therefore sees a sample of the hits, which is all its estimates
+ * need. Misses and admissions are serialized by a lock.</p>
+ *
+ * <p>The cipher state of an evicted key is dropped (see
+ * {@link Crypto#invalidateKey(Key)}); the key itself belongs to the disk
+ * store. Changes made through this keystore are passed to the disk store.
+ * If the disk store changes by other means, call
+ * {@link TieredKeystore#invalidate()}.</p>
+ */
+public class TieredKeystore implements Keystore {
+  private Keystore keystore;
+  private int cacheSize = 1024;
+
+  private volatile ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+  private Entry[] clock = new Entry[this.cacheSize];
+  private int hand = 0;
+  private FrequencySketch sketch = new FrequencySketch(this.cacheSize);
+  private volatile KeyNameFilter filter = new KeyNameFilter(0);
+
+  /** Guards {@link #clock}, {@link #hand}, {@link #sketch} and changes to {@link #cache}. **/
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong filtered = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong missNanos = new AtomicLong();
+
+  /**
+   * Retrieve all keys from the disk store.
+   *
+   * @return The stored keys.
+   */
+  public ArrayList<Key> keys() {
+    return this.keystore.keys();
+  }
+
+  /**
+   * Retrieve the number of keys in the disk store.
+   *
+   * @return The number of keys.
+   */
+  public int size() {
+    return this.keystore.size();
+  }
+
+  /**
+   * Retrieve the keys of the disk store, as it provides them.
+   *
+   * @return An unmodifiable collection of the keys.
+   */
+  public Collection<Key> snapshot() {
+    return this.keystore.snapshot();
+  }
+
+  /**
+   * Pass each key of the disk store to a visitor.
+   *
+   * @param visitor The {@linkplain KeyVisitor} to call.
+   */
+  public void forEachKey(KeyVisitor visitor) {
+    this.keystore.forEachKey(visitor);
+  }
+
+  /**
+   * Store a key in the disk store.
+   *
+   * @param key The {@linkplain Key} to add.
+   */
+  public void addKey(Key key) {
+    this.keystore.addKey(key);
+    this.filter.add(key.name());
+    this.evictNamed(key.name());
+  }
+
+  /**
+   * Store several keys in the disk store.
+   *
+   * @param keys The {@linkplain Key}s to add.
+   */
+  public void addKeys(Collection<Key> keys) {
+    this.keystore.addKeys(keys);
+    for (Key key : keys) {
+      this.filter.add(key.name());
+      this.evictNamed(key.name());
+    }
+  }
+
+  /**
+   * Remove keys from the disk store and the cache.
+   *
+   * @param names The key names to remove.
+   */
+  public void removeKeys(Collection<String> names) {
+    this.keystore.removeKeys(names);
+    for (String name : names) {
+      this.evictNamed(name);
+    }
+  }
+
+  /**
+   * Retrieve a named key from the keystore.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @return The name's primary {@linkplain Key} or {@code null} if it
+   *         doesn't exist.
+   */
+  public Key getKeyNamed(String name) {
+    return this.getKey(name, null);
+  }
+
+  /**
+   * Retrieve a key from the cache, or from the disk store if it is not
+   * cached.
+   *
+   * @param name The name of the {@linkplain Key}.
+   * @param id The id of the {@linkplain Key}, or {@code null} for the
+   *           name's primary key.
+   * @return The {@linkplain Key} or {@code null} if it doesn't exist.
+   */
+  public Key getKey(String name, String id) {
+    String qualifiedName = (id == null) ? name : name + "#" + id;
+
+    Entry entry = this.cache.get(qualifiedName);
+    if (entry != null && entry.key.isDestroyed()) {
+      // Retired by the disk store, e.g. after a MappedKeystore remap.
+      this.evictNamed(name);
+      entry = null;
+    }
+    if (entry != null) {
+      if (!entry.referenced) {
+        entry.referenced = true;
+      }
+      if (this.lock.tryLock()) {
+        try {
+          this.sketch.increment(qualifiedName);
+        } finally {
+          this.lock.unlock();
+        }
+      }
+      this.hits.incrementAndGet();
+      return entry.key;
+    }
+    this.misses.incrementAndGet();
+
+    // Unknown names are turned away without touching the lock.
+    if (!this.filter.mightContain(name)) {
+      this.filtered.incrementAndGet();
+      return null;
+    }
+
+    boolean counted = false;
+    if (this.lock.tryLock()) {
+      try {
+        this.sketch.increment(qualifiedName);
+        counted = true;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    long start = System.nanoTime();
+    Key key = (id == null) ? this.keystore.getKeyNamed(name) : this.keystore.getKey(name, id);
+    this.missNanos.addAndGet(System.nanoTime() - start);
+
+    // A provisional key is only cached by the store that made it, once confirmed.
+    if (key != null && !key.isProvisional()) {
+      this.admit(qualifiedName, key, counted);
+    }
+    return key;
+  }
+
+  /**
+   * Drop every cached key and rebuild the Bloom filter from the disk
+   * store. Call this after the disk store has been changed or reloaded
+   * other than through this keystore.
+   */
+  public void invalidate() {
+    final KeyNameFilter rebuilt = new KeyNameFilter(this.keystore.size());
+    this.keystore.forEachKey(new KeyVisitor() {
+      public void visit(Key key) {
+        rebuilt.add(key.name());
+      }
+    });
+
+    this.lock.lock();
+    try {
+      this.filter = rebuilt;
+      for (int i = 0; i < this.clock.length; i += 1) {
+        if (this.clock[i] != null) {
+          this.evict(i);
+        }
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Add a key read from the disk store to the cache, if there is room or
+   * it has been asked for more often than the key it would evict.
+   */
+  private void admit(String qualifiedName, Key key, boolean counted) {
+    this.lock.lock();
+    try {
+      if (!counted) {
+        this.sketch.increment(qualifiedName);
+      }
+      if (this.cache.containsKey(qualifiedName)) {
+        return;
+      }
+
+      int slot = this.sweep();
+      Entry victim = this.clock[slot];
+      if (victim != null) {
+        if (this.sketch.frequency(qualifiedName) <= this.sketch.frequency(victim.qualifiedName)) {
+          this.rejections.incrementAndGet();
+          return;
+        }
+        this.evict(slot);
+      }
+
+      Entry entry = new Entry(qualifiedName, key);
+      this.clock[slot] = entry;
+      this.cache.put(qualifiedName, entry);
+      this.hand = (slot + 1) % this.clock.length;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Move the clock hand to a free slot or, if the cache is full, to an
+   * entry that has not been used since the hand last passed it, clearing
+   * the flags of the entries it passes. The caller holds the lock.
+   *
+   * @return The slot the hand stopped at.
+   */
+  private int sweep() {
+    boolean full = this.cache.size() >= this.clock.length;
+    while (true) {
+      Entry entry = this.clock[this.hand];
+      if (entry == null) {
+        return this.hand;
+      }
+      if (entry.referenced) {
+        entry.referenced = false;
+      } else if (full) {
+        return this.hand;
+      }
+      this.hand = (this.hand + 1) % this.clock.length;
+    }
+  }
+
+  /**
+   * Remove the entry in a slot, and the cipher state built from its key.
+   * The caller holds the lock.
+   */
+  private void evict(int slot) {
+    Entry entry = this.clock[slot];
+    this.clock[slot] = null;
+    this.cache.remove(entry.qualifiedName, entry);
+    Crypto.invalidateKey(entry.key);
+  }
+
+  private void evictNamed(String name) {
+    this.lock.lock();
+    try {
+      for (int i = 0; i < this.clock.length; i += 1) {
+        if (this.clock[i] != null && this.clock[i].key.name().equals(name)) {
+          this.evict(i);
+        }
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @param keystore The store behind the cache, typically a
+   *                 {@link MappedKeystore}.
+   */
+  public void setKeystore(Keystore keystore) {
+    Assert.notNull(keystore, "keystore cannot be null");
+    this.keystore = keystore;
+    this.invalidate();
+  }
+
+  /**
+   * @param cacheSize The number of keys to keep in memory (default 1024).
+   */
+  public void setCacheSize(int cacheSize) {
+    Assert.isTrue(cacheSize > 0, "cacheSize must be positive");
+    this.lock.lock();
+    try {
+      for (int i = 0; i < this.clock.length; i += 1) {
+        if (this.clock[i] != null) {
+          this.evict(i);
+        }
+      }
+      this.cacheSize = cacheSize;
+      this.clock = new Entry[cacheSize];
+      this.hand = 0;
+      this.cache = new ConcurrentHashMap<String, Entry>();
+      this.sketch = new FrequencySketch(cacheSize);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /** The number of lookups answered from the cache. */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /** The number of lookups that were not in the cache. */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /** The fraction of lookups answered from the cache. */
+  public double getHitRatio() {
+    long hits = this.hits.get();
+    long total = hits + this.misses.get();
+    return (total == 0) ? 0.0 : (double) hits / total;
+  }
+
+  /** The number of misses the Bloom filter answered without the disk store. */
+  public long getFilteredMisses() {
+    return this.filtered.get();
+  }
+
+  /** The number of keys read from the disk store that were not admitted to the cache. */
+  public long getRejections() {
+    return this.rejections.get();
+  }
+
+  /** The average time, in nanoseconds, of a read from the disk store. */
+  public long getAverageMissNanos() {
+    long reads = this.misses.get() - this.filtered.get();
+    return (reads <= 0) ? 0 : this.missNanos.get() / reads;
+  }
+
+  /** The number of keys in the cache. */
+  public int getCachedKeys() {
+    return this.cache.size();
+  }
+
+  /** A cached key, and whether it has been used since the clock hand last passed it. **/
+  private static final class Entry {
+    private final String qualifiedName;
+    private final Key key;
+    private volatile boolean referenced = true;
+
+    private Entry(String qualifiedName, Key key) {
+      this.qualifiedName = qualifiedName;
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package edu.clayton.cas.support.token.util;
+
+import edu.clayton.cas.support.token.keystore.Key;
+import org.springframework.util.Assert;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps initialized {@link Cipher} instances, and the {@link SecretKeySpec}
+ * built from each {@link Key}, so that they do not have to be looked up
+ * from the security provider for every token.</p>
+ *
+ * <p>{@linkplain Cipher} objects are not thread safe, so each thread gets
+ * its own instance per key (see {@link Key#qualifiedName()}). The {@linkplain SecretKeySpec}s are shared
+ * by all threads. A cached entry is rebuilt when the {@link Key} registered
+ * under its name is replaced by one with different data, and
+ * {@link CipherCache#invalidate(String)} drops it outright.</p>
+ *
+ * <p>Key names can come from clients (see
+ * {@link edu.clayton.cas.support.token.keystore.DerivedKeystore}), so both
+ * levels are bounded: the shared {@linkplain SecretKeySpec}s to a capacity
+ * given at construction, and each thread's {@linkplain Cipher}s to
+ * {@link #THREAD_CAPACITY}. The shared level evicts with the CLOCK
+ * algorithm: entries wait in a queue, and one that has been used since it
+ * was last looked at goes round again instead of being dropped. A
+ * {@link Key#isProvisional() provisional} key is not cached at all; each
+ * thread decrypts with it using a scratch {@linkplain Cipher}.</p>
+ */
+public class CipherCache {
+  /** The number of keys whose {@link SecretKeySpec} is kept by default. **/
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  /** The number of {@link Cipher}s each thread keeps. **/
+  public static final int THREAD_CAPACITY = 64;
+
+  private final String transformation;
+  private final int capacity;
+
+  private final ConcurrentHashMap<String, KeySpecEntry> keySpecs =
+      new ConcurrentHashMap<String, KeySpecEntry>();
+
+  /** The CLOCK: entries in the order they are looked at for eviction. **/
+  private final ConcurrentLinkedQueue<KeySpecEntry> clock = new ConcurrentLinkedQueue<KeySpecEntry>();
+  private final AtomicInteger clockSize = new AtomicInteger();
+
+  /**
+   * Incremented when keys are invalidated, so threads know to drop the
+   * ciphers of keys that must not be used again. Evictions for capacity
+   * leave it alone; a thread notices an evicted key by its
+   * {@linkplain SecretKeySpec} changing.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final ThreadLocal<ThreadCiphers> ciphers = new ThreadLocal<ThreadCiphers>() {
+    @Override
+    protected ThreadCiphers initialValue() {
+      return new ThreadCiphers();
+    }
+  };
+
+  /**
+   * Create a cache of {@link Cipher}s for a given transformation.
+   *
+   * @param transformation The transformation, e.g. "AES/CBC/PKCS5Padding".
+   */
+  public CipherCache(String transformation) {
+    this(transformation, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a cache of {@link Cipher}s for a given transformation, that
+   * keeps the state of at most {@code capacity} keys.
+   *
+   * @param transformation The transformation, e.g. "AES/CBC/PKCS5Padding".
+   * @param capacity The number of keys to keep.
+   */
+  public CipherCache(String transformation, int capacity) {
+    Assert.isTrue(capacity > 0, "capacity must be positive");
+    this.transformation = transformation;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Retrieve this thread's {@link Cipher} for the given {@link Key},
+   * initialized with the supplied mode and parameters.
+   *
+   * @param key The {@linkplain Key} to use.
+   * @param mode One of the {@linkplain Cipher} mode constants.
+   * @param params The algorithm parameters (e.g. the IV).
+   * @return An initialized {@linkplain Cipher}.
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   * @throws InvalidKeyException
+   * @throws InvalidAlgorithmParameterException
+   */
+  public Cipher init(Key key, int mode, AlgorithmParameterSpec params)
+      throws NoSuchAlgorithmException,
+      NoSuchPaddingException,
+      InvalidKeyException,
+      InvalidAlgorithmParameterException
+  {
+    SecretKeySpec keySpec = this.keySpecFor(key);
+    ThreadCiphers threadCiphers = this.ciphers.get();
+
+    if (key.isProvisional()) {
+      if (threadCiphers.scratch == null) {
+        threadCiphers.scratch = Cipher.getInstance(this.transformation);
+      }
+      threadCiphers.scratch.init(mode, keySpec, params);
+      return threadCiphers.scratch;
+    }
+
+    long currentGeneration = this.generation.get();
+    if (threadCiphers.generation != currentGeneration) {
+      threadCiphers.prune(this.keySpecs);
+      threadCiphers.generation = currentGeneration;
+    }
+
+    CipherEntry entry = threadCiphers.entries.get(key.qualifiedName());
+    if (entry == null || entry.keySpec != keySpec) {
+      entry = new CipherEntry(keySpec, Cipher.getInstance(this.transformation));
+      threadCiphers.entries.put(key.qualifiedName(), entry);
+    }
+
+    entry.cipher.init(mode, keySpec, params);
+    return entry.cipher;
+  }
+
+  /**
+   * Retrieve the shared {@link SecretKeySpec} for a {@link Key}, building
+   * it if the key has not been seen before or has been replaced. The spec
+   * of a provisional key is built afresh and not kept.
+   *
+   * @param key The {@linkplain Key} to use.
+   * @return The {@linkplain SecretKeySpec} for the key's data.
+   * @throws IllegalStateException If the key has been destroyed.
+   */
+  public SecretKeySpec keySpecFor(Key key) {
+    if (key.isProvisional()) {
+      return key.secretKeySpec("AES");
+    }
+
+    String qualifiedName = key.qualifiedName();
+    KeySpecEntry entry = this.keySpecs.get(qualifiedName);
+
+    // Key stores that build a Key per lookup hand over equal, but not
+    // identical, instances; those keep their cached state. A destroyed
+    // key keeps nothing.
+    if (entry == null || entry.key.isDestroyed() || (entry.key != key && !entry.key.dataEquals(key))) {
+      KeySpecEntry created = new KeySpecEntry(qualifiedName, key, key.secretKeySpec("AES"));
+      this.keySpecs.put(qualifiedName, created);
+      this.clock.add(created);
+      this.clockSize.incrementAndGet();
+      this.trim();
+      return created.keySpec;
+    }
+
+    entry.touch();
+    return entry.keySpec;
+  }
+
+  /**
+   * Advance the CLOCK until the cache is within its capacity, and the
+   * queue holds no more than twice that many entries, counting the ones
+   * that were replaced or invalidated since they were queued. Each entry
+   * is looked at most twice, so the work is proportional to what was
+   * added.
+   */
+  private void trim() {
+    for (int steps = 2 * this.clockSize.get() + 1; steps > 0; steps -= 1) {
+      boolean full = this.keySpecs.size() > this.capacity;
+      if (!full && this.clockSize.get() <= 2 * this.capacity) {
+        return;
+      }
+      KeySpecEntry entry = this.clock.poll();
+      if (entry == null) {
+        return;
+      }
+      this.clockSize.decrementAndGet();
+
+      if (this.keySpecs.get(entry.qualifiedName) != entry) {
+        continue;
+      }
+      if (full && !entry.referenced) {
+        this.keySpecs.remove(entry.qualifiedName, entry);
+        continue;
+      }
+      if (full) {
+        entry.referenced = false;
+      }
+      this.clock.add(entry);
+      this.clockSize.incrementAndGet();
+    }
+  }
+
+  /**
+   * The number of keys whose {@link SecretKeySpec} is cached.
+   */
+  public int size() {
+    return this.keySpecs.size();
+  }
+
+  /**
+   * Drop everything cached for a named key, including every key id under
+   * that name. This should be invoked whenever a key store entry is
+   * removed or replaced.
+   *
+   * @param name The name of the {@link Key}.
+   */
+  public void invalidate(String name) {
+    this.keySpecs.remove(name);
+
+    String prefix = name + "#";
+    for (String qualifiedName : this.keySpecs.keySet()) {
+      if (qualifiedName.startsWith(prefix)) {
+        this.keySpecs.remove(qualifiedName);
+      }
+    }
+    this.generation.incrementAndGet();
+  }
+
+  /**
+   * Drop what was cached for one {@link Key} instance. State built from
+   * another key under the same qualified name, such as the key that
+   * replaced it, is kept. Key stores invoke this when they evict, retire
+   * or destroy a key.
+   *
+   * @param key The {@linkplain Key}.
+   */
+  public void invalidate(Key key) {
+    String qualifiedName = key.qualifiedName();
+    KeySpecEntry entry = this.keySpecs.get(qualifiedName);
+    if (entry != null && entry.key == key && this.keySpecs.remove(qualifiedName, entry)) {
+      this.generation.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drop everything cached for all keys.
+   */
+  public void invalidateAll() {
+    this.keySpecs.clear();
+    this.clock.clear();
+    this.clockSize.set(0);
+    this.generation.incrementAndGet();
+  }
+
+  private static final class KeySpecEntry {
+    private final String qualifiedName;
+    private final Key key;
+    private final SecretKeySpec keySpec;
+
+    /** Whether the entry has been used since the CLOCK last passed it. **/
+    private volatile boolean referenced = false;
+
+    private KeySpecEntry(String qualifiedName, Key key, SecretKeySpec keySpec) {
+      this.qualifiedName = qualifiedName;
+      this.key = key;
+      this.keySpec = keySpec;
+    }
+
+    /** Record a use, without writing to memory shared by every thread on every token. **/
+    private void touch() {
+      if (!this.referenced) {
+        this.referenced = true;
+      }
+    }
+  }
+
+  private static final class CipherEntry {
+    private final SecretKeySpec keySpec;
+    private final Cipher cipher;
+
+    private CipherEntry(SecretKeySpec keySpec, Cipher cipher) {
+      this.keySpec = keySpec;
+      this.cipher = cipher;
+    }
+  }
+
+  private static final class ThreadCiphers {
+    private final LinkedHashMap<String, CipherEntry> entries =
+        new LinkedHashMap<String, CipherEntry>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CipherEntry> eldest) {
+            return this.size() > THREAD_CAPACITY;
+          }
+        };
+    private long generation;
+
+    /** Used for provisional keys, which are never cached. **/
+    private Cipher scratch;
+
+    /**
+     * Drop the ciphers whose keys are no longer cached, so that a thread
+     * does not hold on to key material that has been evicted or
+     * invalidated. The ciphers of other keys are kept.
+     */
+    private void prune(ConcurrentHashMap<String, KeySpecEntry> keySpecs) {
+      Iterator<Map.Entry<String, CipherEntry>> iterator = this.entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, CipherEntry> entry = iterator.next();
+        KeySpecEntry current = keySpecs.get(entry.getKey());
+        if (current == null || current.keySpec != entry.getValue().keySpec) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+}
@@ -7,18 +7,96 @@ import org.slf4j.LoggerFactory;
 
 import javax.crypto.*;
 import javax.crypto.interfaces.PBEKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 public class Crypto {
   private final static Logger log = LoggerFactory.getLogger(Crypto.class);
 
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  private final static int IV_LENGTH = 16;
+
+  private final static int BLOCK_SIZE = 16;
+
+  private final static int GCM_NONCE_LENGTH = 12;
+
+  private final static int GCM_TAG_LENGTH = 16;
+
+  /**
+   * Marks a versioned token. The character is not part of either Base64
+   * alphabet, so a legacy token can never start with it.
+   **/
+  public final static char VERSIONED_TOKEN_PREFIX = '$';
+
+  /** The longest encoded token that will be decrypted. **/
+  public final static int MAX_TOKEN_LENGTH = 16 * 1024;
+
+  /** Version of legacy, unversioned, IV-prefixed AES/CBC tokens. **/
+  public final static byte VERSION_AES_CBC = 1;
+
+  /** Version of AES/GCM tokens: {@code $Base64(version | nonce | cipher text | tag)}. **/
+  public final static byte VERSION_AES_GCM = 2;
+
+  /**
+   * Version of AES/GCM tokens that name their key:
+   * {@code $Base64(version | id length | key id | nonce | cipher text | tag)}.
+   * The key id is authenticated along with the version.
+   **/
+  public final static byte VERSION_AES_GCM_KEY_ID = 3;
+
+  /** Maps a character to its Base64 value, or -1 if it is not in an alphabet. **/
+  private final static int[] BASE64_VALUES = new int[128];
+
+  static {
+    Arrays.fill(BASE64_VALUES, -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    for (int i = 0; i < alphabet.length(); i += 1) {
+      BASE64_VALUES[alphabet.charAt(i)] = i;
+    }
+    BASE64_VALUES['+'] = 62;
+    BASE64_VALUES['-'] = 62;
+    BASE64_VALUES['/'] = 63;
+    BASE64_VALUES['_'] = 63;
+  }
+
+  /**
+   * Decryption {@link Cipher}s for the legacy token format. The PKCS5
+   * padding is removed by {@link Crypto#unpad(byte[], int)} because the
+   * provider's padding implementation copies the whole plain text into a
+   * temporary array.
+   **/
+  private final static CipherCache cbcCiphers = new CipherCache("AES/CBC/NoPadding");
+
+  /** {@link Cipher}s for {@link Crypto#VERSION_AES_GCM} tokens, used both ways. **/
+  private final static CipherCache gcmCiphers = new CipherCache("AES/GCM/NoPadding");
+
+  /**
+   * Generates IVs and nonces. Each thread seeds its own generator once,
+   * so that threads minting tokens do not contend for a single one.
+   **/
+  private final static ThreadLocal<SecureRandom> ivGenerators = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
+      return new SecureRandom();
+    }
+  };
+
+  /** Seeds {@link Crypto#fingerprint(byte[], int, int)} so its values cannot be predicted. **/
+  private final static long fingerprintSeed = new SecureRandom().nextLong();
+
+  /** Prefixed to the name of a derived key to keep derived keys apart from other uses of the master secret. **/
+  private final static String DERIVED_KEY_CONTEXT = "cas-server-extension-token key ";
+
   /**
    * Returns an ASCII string that can be used for encrypting/decrypting
    * data with the AES-128 algorithm. The given seed <strong>does not</strong>
@@ -74,6 +152,67 @@ public class Crypto {
     return returnKey;
   }
 
+  /**
+   * Derive a service's key from a master secret, so that the key does not
+   * have to be stored. The same master secret and name always give the same
+   * key. The key is 12 bytes from HKDF-SHA256 (RFC 5869), keyed by the
+   * master secret with the name as context, encoded as 16 characters of
+   * URL safe Base64 so that it can be used like the keys from
+   * {@link Crypto#generateAes128KeyWithSeed(String)}.
+   *
+   * @param masterKey The master secret.
+   * @param name The name the key is for, see {@link Key#qualifiedName()}.
+   * @return A 16 character ASCII string that can be used as an AES-128 key.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  public static String deriveAes128Key(byte[] masterKey, String name)
+      throws NoSuchAlgorithmException, InvalidKeyException
+  {
+    byte[] info = (DERIVED_KEY_CONTEXT + name).getBytes(UTF8);
+    return Base64.encodeBase64URLSafeString(Crypto.hkdfSha256(masterKey, null, info, 12));
+  }
+
+  /**
+   * HKDF-SHA256, as defined by RFC 5869.
+   *
+   * @param inputKey The input keying material.
+   * @param salt The salt, or {@code null} for none.
+   * @param info The context of the derived key.
+   * @param length The number of bytes to derive, at most 8160.
+   * @return The derived bytes.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  public static byte[] hkdfSha256(byte[] inputKey, byte[] salt, byte[] info, int length)
+      throws NoSuchAlgorithmException, InvalidKeyException
+  {
+    if (length < 0 || length > 255 * 32) {
+      throw new IllegalArgumentException("Cannot derive " + length + " bytes");
+    }
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec((salt == null || salt.length == 0) ? new byte[32] : salt, "HmacSHA256"));
+    byte[] pseudoRandomKey = mac.doFinal(inputKey);
+
+    mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+    byte[] output = new byte[length];
+    byte[] block = new byte[0];
+    for (int offset = 0, counter = 1; offset < length; counter += 1) {
+      mac.update(block);
+      mac.update(info);
+      mac.update((byte) counter);
+      block = mac.doFinal();
+
+      int count = Math.min(block.length, length - offset);
+      System.arraycopy(block, 0, output, offset, count);
+      offset += count;
+    }
+
+    Arrays.fill(pseudoRandomKey, (byte) 0);
+    return output;
+  }
+
   /**
    * Returns a {@link Base64} encoded encrypted string.
    *
@@ -99,9 +238,8 @@ public class Crypto {
     byte[] encryptedStringData;
     
     //Create a random initialization vector
-    SecureRandom random = new SecureRandom();
     byte[] randBytes = new byte[16];
-    random.nextBytes(randBytes);
+    ivGenerators.get().nextBytes(randBytes);
     IvParameterSpec iv = new IvParameterSpec(randBytes);
 
     SecretKeySpec skey = new SecretKeySpec(key.getBytes(), "AES");
@@ -109,7 +247,7 @@ public class Crypto {
     cipher.init(Cipher.ENCRYPT_MODE, skey, iv);
 
     byte[] ivBytes = iv.getIV();
-    byte[] inputBytes = string.getBytes();
+    byte[] inputBytes = string.getBytes(UTF8);
     byte[] plaintext = new byte[ivBytes.length + inputBytes.length];
 
     System.arraycopy(ivBytes, 0, plaintext, 0, ivBytes.length);
@@ -121,6 +259,171 @@ public class Crypto {
     return encryptedString;
   }
 
+  /**
+   * Returns a {@link Crypto#VERSION_AES_GCM} token: the string is encrypted
+   * and authenticated with AES/GCM under a random nonce, and the result is
+   * {@link Base64} encoded after the {@link Crypto#VERSIONED_TOKEN_PREFIX}.
+   * If the key has an id (see {@link Key#id()}), a
+   * {@link Crypto#VERSION_AES_GCM_KEY_ID} token that carries the id is
+   * returned instead.
+   *
+   * @param string The string to encrypt.
+   * @param key The {@link Key} to use for encryption.
+   * @return The encrypted encoded string.
+   * @throws NoSuchPaddingException
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   * @throws BadPaddingException
+   * @throws IllegalBlockSizeException
+   * @throws InvalidAlgorithmParameterException
+   */
+  public static String encryptWithKeyUsingGcm(String string, Key key)
+      throws NoSuchPaddingException,
+      NoSuchAlgorithmException,
+      InvalidKeyException,
+      BadPaddingException,
+      IllegalBlockSizeException,
+      InvalidAlgorithmParameterException
+  {
+    byte[] inputBytes = string.getBytes(UTF8);
+    byte[] keyId = (key.id() == null) ? null : key.id().getBytes(UTF8);
+    int headerLength = (keyId == null) ? 1 : 2 + keyId.length;
+
+    byte[] envelope = new byte[headerLength + GCM_NONCE_LENGTH + inputBytes.length + GCM_TAG_LENGTH];
+    if (keyId == null) {
+      envelope[0] = VERSION_AES_GCM;
+    } else {
+      envelope[0] = VERSION_AES_GCM_KEY_ID;
+      envelope[1] = (byte) keyId.length;
+      System.arraycopy(keyId, 0, envelope, 2, keyId.length);
+    }
+
+    byte[] nonce = new byte[GCM_NONCE_LENGTH];
+    ivGenerators.get().nextBytes(nonce);
+    System.arraycopy(nonce, 0, envelope, headerLength, GCM_NONCE_LENGTH);
+
+    // Every token has a fresh nonce, so this thread's cached cipher can be
+    // initialized again rather than looked up from the provider.
+    Cipher cipher = gcmCiphers.init(
+        key,
+        Cipher.ENCRYPT_MODE,
+        new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce)
+    );
+    cipher.updateAAD(envelope, 0, headerLength);
+
+    try {
+      cipher.doFinal(inputBytes, 0, inputBytes.length, envelope, headerLength + GCM_NONCE_LENGTH);
+    } catch (ShortBufferException e) {
+      // The envelope is sized for the tag, so this cannot happen.
+      throw new IllegalBlockSizeException(e.toString());
+    }
+
+    return VERSIONED_TOKEN_PREFIX + Base64.encodeBase64String(envelope);
+  }
+
+  /**
+   * Determine the format version of an encoded token without decrypting
+   * it.
+   *
+   * @param string The encoded token.
+   * @return {@link Crypto#VERSION_AES_CBC} for legacy tokens, otherwise the
+   *         version byte of the token, or -1 if it cannot be read.
+   */
+  public static int versionOf(String string) {
+    if (string.length() == 0 || string.charAt(0) != VERSIONED_TOKEN_PREFIX) {
+      return VERSION_AES_CBC;
+    }
+
+    // The version byte is held by the first two Base64 characters.
+    int first = -1;
+    int second = -1;
+    for (int i = 1, j = string.length(); i < j && second < 0; i += 1) {
+      char c = string.charAt(i);
+      int value = (c < 128) ? BASE64_VALUES[c] : -1;
+      if (value < 0) {
+        continue;
+      }
+      if (first < 0) {
+        first = value;
+      } else {
+        second = value;
+      }
+    }
+
+    return (second < 0) ? -1 : ((first << 2) | (second >> 4)) & 0xFF;
+  }
+
+  /**
+   * Read the key id of a {@link Crypto#VERSION_AES_GCM_KEY_ID} token
+   * without decrypting it. Only the first bytes of the token are decoded.
+   *
+   * @param string The encoded token.
+   * @return The key id, or {@code null} if the token does not carry one.
+   */
+  public static String keyIdOf(String string) {
+    if (Crypto.versionOf(string) != VERSION_AES_GCM_KEY_ID) {
+      return null;
+    }
+
+    byte[] header = new byte[2 + Key.MAX_ID_LENGTH + 2];
+    int length = Crypto.decodeBase64(string, header, 2 + Key.MAX_ID_LENGTH);
+    int idLength = (length < 2) ? 0 : header[1] & 0xFF;
+    if (idLength == 0 || length < 2 + idLength) {
+      return null;
+    }
+
+    return new String(header, 2, idLength, UTF8);
+  }
+
+  /**
+   * Check, without decoding or decrypting it, that an encoded token could
+   * be valid: it is no longer than {@link Crypto#MAX_TOKEN_LENGTH}, it only
+   * uses the Base64 alphabets (plus white space and trailing padding), and
+   * its decoded length fits its format. Legacy tokens must decode to an IV
+   * and at least one whole block; versioned tokens must have a known version
+   * and room for a nonce and tag.
+   *
+   * @param string The encoded token.
+   * @return {@code true} if the token is worth decrypting.
+   */
+  public static boolean isWellFormed(String string) {
+    if (string == null || string.length() == 0 || string.length() > MAX_TOKEN_LENGTH) {
+      return false;
+    }
+
+    int start = (string.charAt(0) == VERSIONED_TOKEN_PREFIX) ? 1 : 0;
+    int count = 0;
+    boolean padding = false;
+    for (int i = start, j = string.length(); i < j; i += 1) {
+      char c = string.charAt(i);
+      if (c == '=') {
+        padding = true;
+      } else if (c < 128 && BASE64_VALUES[c] >= 0) {
+        if (padding) {
+          return false;
+        }
+        count += 1;
+      } else if (c != '\r' && c != '\n' && c != ' ' && c != '\t') {
+        return false;
+      }
+    }
+
+    if (count % 4 == 1) {
+      return false;
+    }
+    int length = count * 3 / 4;
+
+    if (start == 0) {
+      return length >= IV_LENGTH + BLOCK_SIZE && length % BLOCK_SIZE == 0;
+    }
+    int version = Crypto.versionOf(string);
+    if (version == VERSION_AES_GCM_KEY_ID) {
+      return length >= 3 + GCM_NONCE_LENGTH + GCM_TAG_LENGTH;
+    }
+    return version == VERSION_AES_GCM &&
+        length >= 1 + GCM_NONCE_LENGTH + GCM_TAG_LENGTH;
+  }
+
   /**
    * Decrypts a {@link Base64} encoded encrypted string.
    *
@@ -139,30 +442,303 @@ public class Crypto {
       InvalidKeyException,
       BadPaddingException,
       IllegalBlockSizeException,
-      InvalidAlgorithmParameterException
+      InvalidAlgorithmParameterException,
+      ShortBufferException
   {
-    String decryptedString;
+    DecryptionBuffer buffer = Crypto.decryptEncodedStringIntoBuffer(string, key);
+    return new String(buffer.output(), 0, buffer.outputLength(), UTF8);
+  }
 
-    log.debug("Base64 string = `{}`", string);
-    byte[] decryptedStringData;
-    byte[] rawData = Base64.decodeBase64(string);
-    byte[] iv = new byte[16];
-    byte[] cipherText = new byte[rawData.length - iv.length];
+  /**
+   * Decrypts a {@link Base64} encoded encrypted string into the calling
+   * thread's {@link DecryptionBuffer}. The encoded string is decoded
+   * straight into the buffer, and the IV and cipher text are read from
+   * it in place, so no intermediate arrays are created. Both legacy
+   * AES/CBC tokens and versioned tokens are accepted; the format is
+   * chosen by {@link Crypto#versionOf(String)}.
+   *
+   * @param string The encoded string to decrypt.
+   * @param key The {@link Key} to use for decryption.
+   * @return The thread's {@linkplain DecryptionBuffer}, holding the
+   *         decrypted bytes until the next decryption on this thread.
+   * @throws NoSuchPaddingException
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   * @throws BadPaddingException
+   * @throws IllegalBlockSizeException
+   * @throws ShortBufferException
+   */
+  public static DecryptionBuffer decryptEncodedStringIntoBuffer(String string, Key key)
+      throws NoSuchPaddingException,
+      NoSuchAlgorithmException,
+      InvalidKeyException,
+      BadPaddingException,
+      IllegalBlockSizeException,
+      InvalidAlgorithmParameterException,
+      ShortBufferException
+  {
+    DecryptionBuffer buffer = DecryptionBuffer.forCurrentThread();
 
-    System.arraycopy(rawData, 0, iv, 0, 16);
-    System.arraycopy(rawData, 16, cipherText, 0, cipherText.length);
+    if (log.isDebugEnabled()) {
+      log.debug("Base64 string = `{}`", string);
+    }
 
-    log.debug("iv = `{}`", Crypto.toHex(iv));
-    log.debug("cipherText.length = `{}`", cipherText.length);
-    log.debug("cipherText = \n{}", Crypto.toHex(cipherText));
-    
-    SecretKeySpec skey = new SecretKeySpec(key.data(), "AES");
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    cipher.init(Cipher.DECRYPT_MODE, skey, new IvParameterSpec(iv));
-    decryptedStringData = cipher.doFinal(cipherText);
-    decryptedString = new String(decryptedStringData);
+    // The decoder skips the versioned token prefix like any other
+    // character outside of the Base64 alphabet.
+    byte[] rawData = buffer.inputOfSize(string.length());
+    buffer.setInputLength(Crypto.decodeBase64(string, rawData));
+    int version = Crypto.versionOf(string);
+
+    if (version == VERSION_AES_CBC) {
+      Crypto.decryptCbc(buffer, key);
+    } else if (version == VERSION_AES_GCM || version == VERSION_AES_GCM_KEY_ID) {
+      Crypto.decryptGcm(buffer, key);
+    } else {
+      throw new InvalidAlgorithmParameterException(
+          "Unsupported token format version " + version
+      );
+    }
+
+    return buffer;
+  }
+
+  private static void decryptCbc(DecryptionBuffer buffer, Key key)
+      throws NoSuchPaddingException,
+      NoSuchAlgorithmException,
+      InvalidKeyException,
+      BadPaddingException,
+      IllegalBlockSizeException,
+      InvalidAlgorithmParameterException,
+      ShortBufferException
+  {
+    byte[] rawData = buffer.input();
+    int rawLength = buffer.inputLength();
+
+    if (rawLength < IV_LENGTH) {
+      throw new IllegalBlockSizeException("Token data is shorter than the IV");
+    }
+
+    int cipherTextLength = rawLength - IV_LENGTH;
+    if (cipherTextLength == 0 || cipherTextLength % BLOCK_SIZE != 0) {
+      throw new IllegalBlockSizeException("Token data is not a whole number of blocks");
+    }
+
+    if (log.isDebugEnabled()) {
+      log.debug("iv = `{}`", Crypto.toHex(rawData, 0, IV_LENGTH));
+      log.debug("cipherText.length = `{}`", cipherTextLength);
+      log.debug("cipherText = \n{}", Crypto.toHex(rawData, IV_LENGTH, cipherTextLength));
+    }
+
+    Cipher cipher = cbcCiphers.init(
+        key,
+        Cipher.DECRYPT_MODE,
+        new IvParameterSpec(rawData, 0, IV_LENGTH)
+    );
+    byte[] output = buffer.outputOfSize(cipherTextLength);
+    int outputLength = cipher.doFinal(rawData, IV_LENGTH, cipherTextLength, output, 0);
+    buffer.setOutputLength(Crypto.unpad(output, outputLength));
+  }
+
+  /**
+   * Decrypts a {@link Crypto#VERSION_AES_GCM} or
+   * {@link Crypto#VERSION_AES_GCM_KEY_ID} envelope. A token that has
+   * been tampered with fails the tag check here, before any of its
+   * contents are looked at.
+   */
+  private static void decryptGcm(DecryptionBuffer buffer, Key key)
+      throws NoSuchPaddingException,
+      NoSuchAlgorithmException,
+      InvalidKeyException,
+      BadPaddingException,
+      IllegalBlockSizeException,
+      InvalidAlgorithmParameterException,
+      ShortBufferException
+  {
+    byte[] rawData = buffer.input();
+    int rawLength = buffer.inputLength();
+
+    // The version byte, and the key id if there is one, are authenticated.
+    int aadLength = 1;
+    if (rawLength > 1 && rawData[0] == VERSION_AES_GCM_KEY_ID) {
+      aadLength = 2 + (rawData[1] & 0xFF);
+    }
+    int headerLength = aadLength + GCM_NONCE_LENGTH;
+
+    if (rawLength < headerLength + GCM_TAG_LENGTH) {
+      throw new IllegalBlockSizeException("Token data is shorter than the GCM envelope");
+    }
+
+    int cipherTextLength = rawLength - headerLength;
+    if (log.isDebugEnabled()) {
+      log.debug("nonce = `{}`", Crypto.toHex(rawData, aadLength, GCM_NONCE_LENGTH));
+      log.debug("cipherText.length = `{}`", cipherTextLength);
+    }
+
+    Cipher cipher = gcmCiphers.init(
+        key,
+        Cipher.DECRYPT_MODE,
+        new GCMParameterSpec(GCM_TAG_LENGTH * 8, rawData, aadLength, GCM_NONCE_LENGTH)
+    );
+    cipher.updateAAD(rawData, 0, aadLength);
+
+    byte[] output = buffer.outputOfSize(cipherTextLength);
+    buffer.setOutputLength(
+        cipher.doFinal(rawData, headerLength, cipherTextLength, output, 0)
+    );
+  }
+
+  /**
+   * Validates the PKCS5 padding at the end of a decrypted block sequence.
+   *
+   * @param data The decrypted data.
+   * @param length The number of decrypted bytes in {@code data}.
+   * @return The length of the data without the padding.
+   * @throws BadPaddingException If the padding is not valid.
+   */
+  private static int unpad(byte[] data, int length) throws BadPaddingException {
+    int padding = data[length - 1] & 0xFF;
+    boolean valid = (padding >= 1 && padding <= BLOCK_SIZE);
+
+    for (int i = 1; valid && i <= padding; i += 1) {
+      valid = ((data[length - i] & 0xFF) == padding);
+    }
 
-    return decryptedString;
+    if (!valid) {
+      throw new BadPaddingException("Given final block not properly padded");
+    }
+
+    return length - padding;
+  }
+
+  /**
+   * Decodes a {@link Base64} string into an existing array. Like
+   * {@link Base64#decodeBase64(String)}, characters outside of the Base64
+   * alphabets (such as the line breaks added by chunked encoders) are
+   * skipped, and both the standard and URL safe alphabets are accepted.
+   *
+   * @param string The encoded string.
+   * @param destination The array to decode into. It must be at least
+   *                    {@code string.length() * 3 / 4} bytes long.
+   * @return The number of decoded bytes written to {@code destination}.
+   */
+  public static int decodeBase64(CharSequence string, byte[] destination) {
+    return Crypto.decodeBase64(string, destination, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Decode the start of a Base64 string, stopping once at least
+   * {@code limit} bytes have been decoded.
+   *
+   * @param string The encoded string.
+   * @param destination The array to decode into. It must have room for
+   *                    {@code limit + 2} bytes.
+   * @param limit The number of bytes needed.
+   * @return The number of decoded bytes written to {@code destination}.
+   */
+  private static int decodeBase64(CharSequence string, byte[] destination, int limit) {
+    int length = 0;
+    int bits = 0;
+    int count = 0;
+
+    for (int i = 0, j = string.length(); i < j && length < limit; i += 1) {
+      char c = string.charAt(i);
+      if (c == '=') {
+        break;
+      }
+
+      int value = (c < 128) ? BASE64_VALUES[c] : -1;
+      if (value < 0) {
+        continue;
+      }
+
+      bits = (bits << 6) | value;
+      count += 1;
+      if (count == 4) {
+        destination[length++] = (byte) (bits >> 16);
+        destination[length++] = (byte) (bits >> 8);
+        destination[length++] = (byte) bits;
+        bits = 0;
+        count = 0;
+      }
+    }
+
+    if (count == 3) {
+      destination[length++] = (byte) (bits >> 10);
+      destination[length++] = (byte) (bits >> 2);
+    } else if (count == 2) {
+      destination[length++] = (byte) (bits >> 4);
+    }
+
+    return length;
+  }
+
+  /**
+   * Compute a 64 bit fingerprint of a range of bytes, such as a decoded
+   * token. The fingerprint is seeded randomly when this class is loaded,
+   * so it is only comparable within a single JVM. It is never 0.
+   *
+   * @param bytes The bytes to fingerprint.
+   * @param offset The index of the first byte.
+   * @param length The number of bytes.
+   * @return The fingerprint.
+   */
+  public static long fingerprint(byte[] bytes, int offset, int length) {
+    long hash = 0xCBF29CE484222325L ^ fingerprintSeed;
+
+    for (int i = offset, j = offset + length; i < j; i += 1) {
+      hash ^= bytes[i] & 0xFF;
+      hash *= 0x100000001B3L;
+    }
+
+    // Spread the bits so that every byte affects the low bits.
+    hash ^= length;
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+
+    return (hash == 0L) ? 1L : hash;
+  }
+
+  /**
+   * Discard any cached cipher state for a named {@link Key}. Key stores
+   * invoke this when a key is removed or replaced.
+   *
+   * @param name The name of the {@linkplain Key}.
+   */
+  public static void invalidateKey(String name) {
+    cbcCiphers.invalidate(name);
+    gcmCiphers.invalidate(name);
+  }
+
+  /**
+   * Discard any cipher state cached for one {@link Key} instance, leaving
+   * the other ids under its name and any key that replaced it. Key stores
+   * invoke this when they evict a key; {@link Key#retire()} and
+   * {@link Key#destroy()} invoke it too.
+   *
+   * @param key The {@linkplain Key}.
+   */
+  public static void invalidateKey(Key key) {
+    cbcCiphers.invalidate(key);
+    gcmCiphers.invalidate(key);
+  }
+
+  /**
+   * The number of keys with cached cipher state, for monitoring.
+   */
+  public static int cachedKeys() {
+    return cbcCiphers.size() + gcmCiphers.size();
+  }
+
+  /**
+   * Discard all cached cipher state. Key stores invoke this when they
+   * are reloaded.
+   */
+  public static void invalidateAllKeys() {
+    cbcCiphers.invalidateAll();
+    gcmCiphers.invalidateAll();
   }
 
   /**
@@ -174,10 +750,23 @@ public class Crypto {
    * @return The hexadecimal representation as a {@linkplain String}.
    */
   public static String toHex(byte[] bytes) {
-    StringBuffer buffer = new StringBuffer();
+    return Crypto.toHex(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Returns a hexadecimal {@link String} representation of
+   * a range of a given @{code byte} array.
+   *
+   * @param bytes The byte array to convert.
+   * @param offset The index of the first byte to convert.
+   * @param length The number of bytes to convert.
+   * @return The hexadecimal representation as a {@linkplain String}.
+   */
+  public static String toHex(byte[] bytes, int offset, int length) {
+    StringBuffer buffer = new StringBuffer(length * 2);
 
-    for (byte b : bytes) {
-      buffer.append(String.format("%02X", b));
+    for (int i = offset, j = offset + length; i < j; i += 1) {
+      buffer.append(String.format("%02X", bytes[i]));
     }
 
     return buffer.toString();
@@ -0,0 +1,103 @@
+package edu.clayton.cas.support.token.util;
+
+/**
+ * <p>Holds the working arrays used while decrypting a token. Each thread
+ * gets its own {@linkplain DecryptionBuffer} from
+ * {@link DecryptionBuffer#forCurrentThread()}, so decrypting a token does
+ * not allocate new arrays for the decoded ciphertext or the plain text.</p>
+ *
+ * <p>The contents of a {@linkplain DecryptionBuffer} are only valid until
+ * the next decryption on the same thread. Callers must copy anything they
+ * need to keep.</p>
+ */
+public final class DecryptionBuffer {
+  /** Arrays larger than this are not kept between tokens. **/
+  static final int MAX_RETAINED_SIZE = 16 * 1024;
+
+  private static final ThreadLocal<DecryptionBuffer> buffers = new ThreadLocal<DecryptionBuffer>() {
+    @Override
+    protected DecryptionBuffer initialValue() {
+      return new DecryptionBuffer();
+    }
+  };
+
+  private byte[] input = new byte[512];
+  private int inputLength;
+
+  private byte[] output = new byte[512];
+  private int outputLength;
+
+  private DecryptionBuffer() {}
+
+  /**
+   * Retrieve the {@linkplain DecryptionBuffer} owned by the calling thread.
+   *
+   * @return The thread's buffer.
+   */
+  public static DecryptionBuffer forCurrentThread() {
+    return buffers.get();
+  }
+
+  /** The decoded (still encrypted) token bytes. */
+  public byte[] input() {
+    return this.input;
+  }
+
+  /** The number of valid bytes in {@link DecryptionBuffer#input()}. */
+  public int inputLength() {
+    return this.inputLength;
+  }
+
+  /** The decrypted token bytes. */
+  public byte[] output() {
+    return this.output;
+  }
+
+  /** The number of valid bytes in {@link DecryptionBuffer#output()}. */
+  public int outputLength() {
+    return this.outputLength;
+  }
+
+  byte[] inputOfSize(int size) {
+    this.input = ensureCapacity(this.input, size);
+    this.inputLength = 0;
+    return this.input;
+  }
+
+  void setInputLength(int length) {
+    this.inputLength = length;
+  }
+
+  byte[] outputOfSize(int size) {
+    this.output = ensureCapacity(this.output, size);
+    this.outputLength = 0;
+    return this.output;
+  }
+
+  void setOutputLength(int length) {
+    this.outputLength = length;
+  }
+
+  /**
+   * Grow the array to at least the given size. An array that was grown
+   * past {@link #MAX_RETAINED_SIZE} by an unusually large token is
+   * replaced as soon as a normal sized token comes along, so that one
+   * such token does not pin a large array to the thread.
+   */
+  private static byte[] ensureCapacity(byte[] array, int size) {
+    if (array.length > MAX_RETAINED_SIZE && size <= MAX_RETAINED_SIZE) {
+      array = new byte[512];
+    }
+
+    if (array.length >= size) {
+      return array;
+    }
+
+    int newSize = array.length;
+    while (newSize < size) {
+      newSize = newSize << 1;
+    }
+
+    return new byte[newSize];
+  }
+}
@@ -1,13 +1,19 @@
 package edu.clayton.cas.support.token.util;
 
+import edu.clayton.cas.support.token.keystore.DerivedKeystore;
 import org.apache.commons.cli.*;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.charset.Charset;
+
 /**
  * Provides a simple tool for generating AES-128 key strings and
  * JSON objects for a
- * {@link edu.clayton.cas.support.token.keystore.JSONKeystore}.
+ * {@link edu.clayton.cas.support.token.keystore.JSONKeystore}. With
+ * {@code -master}, it prints the key a
+ * {@link edu.clayton.cas.support.token.keystore.DerivedKeystore} derives
+ * for the service instead.
  */
 public class KeyGenCLI {
   static public void main(String[] args) {
@@ -18,7 +24,17 @@ public class KeyGenCLI {
     try {
       CommandLine commandLine = parser.parse(options, args);
       String service = commandLine.getOptionValue("service");
-      String key = Crypto.generateAes128KeyWithSeed(service);
+      String key;
+      if (commandLine.hasOption("master")) {
+        String master = commandLine.getOptionValue("master");
+        if (master.getBytes(Charset.forName("UTF-8")).length < DerivedKeystore.MIN_MASTER_KEY_LENGTH) {
+          throw new Exception("The master key must be at least " + DerivedKeystore.MIN_MASTER_KEY_LENGTH + " bytes!");
+        }
+        String name = commandLine.hasOption("id") ? service + "#" + commandLine.getOptionValue("id") : service;
+        key = Crypto.deriveAes128Key(master.getBytes(Charset.forName("UTF-8")), name);
+      } else {
+        key = Crypto.generateAes128KeyWithSeed(service);
+      }
 
       if (key == null) {
         throw new Exception("Key was not generated!");
@@ -27,6 +43,9 @@ public class KeyGenCLI {
       JSONObject keyObject = new JSONObject();
       keyObject.put("name", service);
       keyObject.put("data", key);
+      if (commandLine.hasOption("id")) {
+        keyObject.put("id", commandLine.getOptionValue("id"));
+      }
 
       System.out.println(String.format("Key: `%s`\n", key));
 
@@ -70,6 +89,20 @@ public class KeyGenCLI {
         .create("service");
     options.addOption(tokenService);
 
+    Option keyId = OptionBuilder
+        .withArgName("id")
+        .hasArg()
+        .withDescription("set the key id, for services with more than one key")
+        .create("id");
+    options.addOption(keyId);
+
+    Option masterKey = OptionBuilder
+        .withArgName("master")
+        .hasArg()
+        .withDescription("print the key derived from this master key instead of a random one")
+        .create("master");
+    options.addOption(masterKey);
+
     return options;
   }
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+package edu.clayton.cas.support.token.util;
+
+import edu.clayton.cas.support.token.keystore.JSONKeystore;
+import edu.clayton.cas.support.token.keystore.Key;
+import edu.clayton.cas.support.token.keystore.MappedKeystore;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Provides a simple tool for converting a
+ * {@link edu.clayton.cas.support.token.keystore.JSONKeystore} file into a
+ * {@link edu.clayton.cas.support.token.keystore.MappedKeystore} file.
+ */
+public class KeystoreConverterCLI {
+  static public void main(String[] args) {
+    Options options = KeystoreConverterCLI.buildOptions();
+    HelpFormatter helpFormatter = new HelpFormatter();
+    CommandLineParser parser = new GnuParser();
+
+    try {
+      CommandLine commandLine = parser.parse(options, args);
+      File input = new File(commandLine.getOptionValue("in"));
+      File output = new File(commandLine.getOptionValue("out"));
+
+      if (!input.exists()) {
+        throw new IOException("Could not find " + input);
+      }
+
+      ArrayList<Key> keys = new JSONKeystore(input).keys();
+      MappedKeystore.write(keys, output);
+
+      System.out.println(String.format("Wrote %d keys to %s", keys.size(), output));
+    } catch (MissingOptionException e) {
+     System.out.println("Missing required option(s)!");
+     helpFormatter.printHelp(
+          "\nKeystoreConverterCLI",
+          "This tool converts a JSON keystore into a binary, memory mapped keystore.",
+          options,
+          "",
+          true
+      );
+    } catch (UnrecognizedOptionException e) {
+      System.out.println("Unrecognized option!");
+      helpFormatter.printHelp(
+          "\nKeystoreConverterCLI",
+          "This tool converts a JSON keystore into a binary, memory mapped keystore.",
+          options,
+          "",
+          true
+      );
+    } catch (ParseException e) {
+      e.printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static Options buildOptions() {
+    Options options = new Options();
+
+    Option input = OptionBuilder
+        .withArgName("in")
+        .hasArg()
+        .withDescription("set the JSON keystore file to read")
+        .isRequired()
+        .create("in");
+    options.addOption(input);
+
+    Option output = OptionBuilder
+        .withArgName("out")
+        .hasArg()
+        .withDescription("set the binary keystore file to write")
+        .isRequired()
+        .create("out");
+    options.addOption(output);
+
+    return options;
+  }
+}
@@ -1,5 +1,6 @@
 package edu.clayton.cas.support.token.util;
 
+import edu.clayton.cas.support.token.keystore.Key;
 import org.apache.commons.cli.*;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -33,6 +34,8 @@ public class TokenGenCLI {
       String lastName = commandLine.getOptionValue("lname");
       String email = commandLine.getOptionValue("email");
       String username = commandLine.getOptionValue("username");
+      String keyId = commandLine.getOptionValue("id");
+      String format = commandLine.getOptionValue("format", (keyId == null) ? "cbc" : "gcm");
 
       JSONObject credentials = new JSONObject();
       credentials.put("firstname", firstName);
@@ -44,7 +47,16 @@ public class TokenGenCLI {
       token.put("generated", (new Date()).getTime());
       token.put("credentials", credentials);
 
-      String encryptedToken = Crypto.encryptWithKey(token.toString(), key);
+      String encryptedToken;
+      if (format.equalsIgnoreCase("gcm")) {
+        Key apiKey = new Key(service, key);
+        apiKey.setId(keyId);
+        encryptedToken = Crypto.encryptWithKeyUsingGcm(token.toString(), apiKey);
+      } else if (format.equalsIgnoreCase("cbc") && keyId == null) {
+        encryptedToken = Crypto.encryptWithKey(token.toString(), key);
+      } else {
+        throw new UnrecognizedOptionException("Unknown token format, or a key id with the cbc format: " + format);
+      }
 
       System.out.println("Token:");
       System.out.println(encryptedToken);
@@ -148,6 +160,20 @@ public class TokenGenCLI {
         .create("email");
     options.addOption(email);
 
+    Option keyId = OptionBuilder
+        .withArgName("id")
+        .hasArg()
+        .withDescription("set the key id to put in the token (gcm format only)")
+        .create("id");
+    options.addOption(keyId);
+
+    Option format = OptionBuilder
+        .withArgName("format")
+        .hasArg()
+        .withDescription("set the token format, either cbc (default) or gcm")
+        .create("format");
+    options.addOption(format);
+
     return options;
   }
 }
\ No newline at end of file
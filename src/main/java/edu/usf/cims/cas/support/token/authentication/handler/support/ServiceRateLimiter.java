@@ -0,0 +1,114 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import edu.clayton.cas.support.token.keystore.Key;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Applies the per-service rate limits defined on {@link Key}s (see
+ * {@link Key#setRateLimit(int, int)}).</p>
+ *
+ * <p>Each key has a token bucket, found by its
+ * {@linkplain Key#qualifiedName() qualified name} since a service may
+ * have several keys with limits of their own. A bucket is kept as the
+ * single theoretical arrival time of the generic cell rate algorithm in an
+ * {@link AtomicLong}. Admitting a token is one compare-and-set on that
+ * key's counter, so services never contend with each other and no thread
+ * ever waits.</p>
+ */
+public final class ServiceRateLimiter {
+  private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+  private final AtomicLong rejections = new AtomicLong();
+
+  /**
+   * Take a token from a key's bucket.
+   *
+   * @param key The {@link Key} of the requesting service.
+   * @param now The current {@link System#nanoTime()}.
+   * @return {@code true} if the request is within the key's rate limit.
+   */
+  public boolean tryAcquire(Key key, long now) {
+    if (key.rateLimit() <= 0) {
+      return true;
+    }
+
+    String name = key.qualifiedName();
+    Bucket bucket = this.buckets.get(name);
+    while (bucket == null || bucket.rateLimit != key.rateLimit() || bucket.burst != key.burst()) {
+      // The key is new or was redefined; start it with a full bucket,
+      // unless another thread has just done so.
+      Bucket fresh = new Bucket(key.rateLimit(), key.burst(), now);
+      if (bucket == null) {
+        Bucket existing = this.buckets.putIfAbsent(name, fresh);
+        bucket = (existing == null) ? fresh : existing;
+      } else if (this.buckets.replace(name, bucket, fresh)) {
+        bucket = fresh;
+      } else {
+        bucket = this.buckets.get(name);
+      }
+    }
+
+    if (!bucket.tryAcquire(now)) {
+      this.rejections.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /** The number of requests that were over their service's limit. */
+  public long getRejections() {
+    return this.rejections.get();
+  }
+
+  private static final class Bucket {
+    final int rateLimit;
+    final int burst;
+
+    /** Nanoseconds between tokens. **/
+    final long interval;
+
+    /** How far ahead of now the arrival time may run. **/
+    final long tolerance;
+
+    /** The time at which the bucket will be full again. **/
+    final AtomicLong arrival;
+
+    Bucket(int rateLimit, int burst, long now) {
+      this.rateLimit = rateLimit;
+      this.burst = burst;
+      this.interval = Math.max(1L, 1000000000L / rateLimit);
+      this.tolerance = this.interval * burst;
+      this.arrival = new AtomicLong(now);
+    }
+
+    boolean tryAcquire(long now) {
+      while (true) {
+        long current = this.arrival.get();
+        long next = ((current - now) < 0 ? now : current) + this.interval;
+
+        if (next - now > this.tolerance) {
+          return false;
+        }
+        if (this.arrival.compareAndSet(current, next)) {
+          return true;
+        }
+      }
+    }
+  }
+}
@@ -15,6 +15,8 @@
 package edu.usf.cims.cas.support.token.authentication.handler.support;
 
 import edu.clayton.cas.support.token.Token;
+import edu.clayton.cas.support.token.TokenAttributePolicy;
+import edu.clayton.cas.support.token.TokenAttributes;
 import edu.clayton.cas.support.token.keystore.Key;
 import edu.clayton.cas.support.token.keystore.Keystore;
 import edu.usf.cims.cas.support.token.authentication.principal.TokenCredentials;
@@ -25,9 +27,12 @@ import org.jasig.cas.authentication.principal.Credentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This handler authenticates token credentials 
@@ -38,6 +43,16 @@ import java.util.Map;
 public final class TokenAuthenticationHandler extends AbstractPreAndPostProcessingAuthenticationHandler {
   private final static Logger log = LoggerFactory.getLogger(TokenAuthenticationHandler.class);
 
+  public static final String ERROR_APIKEY = "error.authentication.credentials.bad.token.apikey";
+  public static final String ERROR_KEY = "error.authentication.credentials.bad.token.key";
+  public static final String ERROR_EXPIRED = "error.authentication.credentials.bad.token.expired";
+  public static final String ERROR_MISSING_ATTRIBUTES = "error.authentication.credentials.missing.required.attributes";
+  public static final String ERROR_USERNAME = "error.authentication.credentials.bad.token.username";
+  public static final String ERROR_REPLAYED = "error.authentication.credentials.bad.token.replayed";
+  public static final String ERROR_RATE_LIMITED = "error.authentication.credentials.bad.token.ratelimited";
+  public static final String ERROR_OVERLOADED = "error.authentication.credentials.bad.token.overloaded";
+  public static final String ERROR_AUTHENTICATED = "error.authentication.credentials.bad.token.authenticated";
+
   /** An instance of a {@link edu.clayton.cas.support.token.keystore.Keystore}. **/
   private Keystore keystore;
 
@@ -47,85 +62,457 @@ public final class TokenAuthenticationHandler extends AbstractPreAndPostProcessi
   /** A map of attribute names to {@link edu.clayton.cas.support.token.TokenAttributes} properties that will be passed along. **/
   private Map tokenAttributesMap;
 
+  /** The compiled form of {@link #requiredTokenAttributes} and {@link #tokenAttributesMap}, shared by every token. **/
+  private volatile TokenAttributePolicy tokenAttributePolicy = TokenAttributePolicy.DEFAULT_POLICY;
+
   /* Maximum amount of time (before or after current time) that the 'generated' parameter 
    * in the supplied token can differ from the server */
   private int maxDrift;
 
+  /** The number of token fingerprints to remember, or 0 to accept replayed tokens. **/
+  private int replayCacheCapacity = 0;
+
+  /** Remembers used tokens for twice {@link #maxDrift}; {@code null} when disabled. **/
+  private volatile TokenReplayCache replayCache;
+
+  /** The number of successful authentications per key, by {@link Key#qualifiedName()}. **/
+  private final ConcurrentHashMap<String, AtomicLong> keyUsage = new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Applies the rate limits of the keystore's keys. **/
+  private final ServiceRateLimiter rateLimiter = new ServiceRateLimiter();
+
+  /** The same limits, applied to {@link #verify(String, String, String)}. **/
+  private final ServiceRateLimiter verifyRateLimiter = new ServiceRateLimiter();
+
+  /** Limits concurrent decryption and validation; {@code null} for no limit. **/
+  private volatile Semaphore admission;
+
+  /** The number of recent failures to remember, or 0 to disable the negative cache. **/
+  private int negativeCacheSize = 1024;
+
+  /** The number of seconds a failure is remembered for. **/
+  private int negativeCacheTtl = 10;
+
+  /** Remembers recently failed tokens; {@code null} when disabled. **/
+  private volatile TokenNegativeCache negativeCache = new TokenNegativeCache(this.negativeCacheSize, this.negativeCacheTtl * 1000L);
+
   public boolean supports(Credentials credentials) {
       return credentials != null && (TokenCredentials.class.isAssignableFrom(credentials.getClass()));
   }
     
   @Override
   protected boolean doAuthentication(Credentials credentials) throws AuthenticationException {
-    boolean result = false;
     TokenCredentials credential = (TokenCredentials) credentials;
+    Token token = credential.getToken();
+    if (token == null) {
+      log.warn("Credential for {} has already been authenticated", credential.getUsername());
+      throw new BadCredentialsAuthenticationException(ERROR_AUTHENTICATED);
+    }
+    long now = System.currentTimeMillis();
+    String tokenService = credential.getTokenService();
+    this.rejectRecentFailure(tokenService, credential.getUsername(), token, now);
+    try {
+      return this.authenticate(credential, token, now);
+    } catch (BadCredentialsAuthenticationException e) {
+      this.rememberFailure(tokenService, token, e, now);
+      throw e;
+    }
+  }
+
+  /**
+   * Whether a failure depends only on the service and the token, so that
+   * it can be remembered by the {@link TokenNegativeCache}.
+   */
+  private static boolean isCacheable(String code) {
+    return !ERROR_USERNAME.equals(code) &&
+        !ERROR_RATE_LIMITED.equals(code) &&
+        !ERROR_OVERLOADED.equals(code);
+  }
+
+  /**
+   * A client that keeps sending the same bad token gets the same answer.
+   */
+  private void rejectRecentFailure(String tokenService, String username, Token token, long now)
+      throws BadCredentialsAuthenticationException
+  {
+    TokenNegativeCache negativeCache = this.negativeCache;
+    if (negativeCache != null) {
+      String code = negativeCache.get(tokenService, token.getData(), now);
+      if (code != null) {
+        log.debug("Rejecting recently failed token for {}", username);
+        throw new BadCredentialsAuthenticationException(code);
+      }
+    }
+  }
+
+  private void rememberFailure(String tokenService, Token token, BadCredentialsAuthenticationException e, long now) {
+    TokenNegativeCache negativeCache = this.negativeCache;
+    if (negativeCache != null && isCacheable(e.getCode())) {
+      negativeCache.put(tokenService, token.getData(), e.getCode(), now);
+    }
+  }
+
+  private boolean authenticate(TokenCredentials credential, Token token, long now)
+      throws BadCredentialsAuthenticationException
+  {
+    Key apiKey = this.findKey(credential.getTokenService(), credential.getUsername(), token, now);
+    try {
+      Semaphore admission = this.admit(this.rateLimiter, this.admission, apiKey, credential.getUsername());
+      try {
+        return this.validate(credential, token, apiKey, now);
+      } finally {
+        if (admission != null) {
+          admission.release();
+        }
+      }
+    } finally {
+      apiKey.discard();
+    }
+  }
+
+  /**
+   * Apply a key's rate limit, then take a permit for the work of
+   * decrypting a token.
+   *
+   * @param admission The permits to take one of, or {@code null} if
+   *                  concurrency is not limited.
+   * @return The {@link Semaphore} to release once the work is done, or
+   *         {@code null} if concurrency is not limited.
+   */
+  private Semaphore admit(ServiceRateLimiter limiter, Semaphore admission, Key apiKey, String username)
+      throws BadCredentialsAuthenticationException
+  {
+    if (!limiter.tryAcquire(apiKey, System.nanoTime())) {
+      log.warn("Rate limit exceeded for {}", apiKey.qualifiedName());
+      throw new BadCredentialsAuthenticationException(ERROR_RATE_LIMITED);
+    }
+
+    // Reject, rather than queue, work beyond the concurrency limit.
+    if (admission != null && !admission.tryAcquire()) {
+      log.warn("Too many concurrent authentications; rejecting token for {}", username);
+      throw new BadCredentialsAuthenticationException(ERROR_OVERLOADED);
+    }
+    return admission;
+  }
+
+  private boolean validate(TokenCredentials credential, Token token, Key apiKey, long now)
+      throws BadCredentialsAuthenticationException
+  {
+    boolean result = false;
+
+    TokenAttributes tokenAttributes = this.check(credential.getTokenService(), credential.getUsername(), token, apiKey, now);
+
+    // Only a token that is valid in every other way is remembered. A
+    // replayed token must not leave its attributes on the credential.
+    TokenReplayCache replayCache = this.replayCache;
+    if (replayCache != null && !replayCache.add(token.getFingerprint(), now)) {
+      log.warn("Authentication Error: Token for {} has already been used", credential.getUsername());
+      throw new BadCredentialsAuthenticationException(ERROR_REPLAYED);
+    }
+
+    credential.setToken(token);
+    credential.setUserAttributes(tokenAttributes);
+    this.recordKeyUsage(apiKey);
+    log.debug("Authentication Success");
+    result = true;
+
+    // The credential lives as long as the authentication; keep only what
+    // the principal needs.
+    credential.compact();
+
+    return result;
+  }
+
+  /**
+   * Decrypt a token and check it the way an authentication does, without
+   * using it up: the token is not added to the replay cache, and is not
+   * counted in the key usage. This lets a token be vetted before it
+   * reaches the login flow.
+   *
+   * <p>Verification is protected like a login: a token that recently
+   * failed is rejected from the negative cache, and a failure is
+   * remembered there; it takes one of the
+   * {@link #setMaxConcurrentAuthentications(int)} permits; and it is held
+   * to the key's rate limit. Verifications have buckets of their own (see
+   * {@link #getVerifyRateLimiter()}), so that a token checked before its
+   * login is not counted twice.</p>
+   *
+   * @param tokenService The name of the key the token was encrypted with.
+   * @param username The username the token should have been issued for.
+   * @param data The encoded token.
+   * @return The decrypted {@link Token}. It can be given to a
+   *         {@link TokenCredentials} so that it is not decrypted again.
+   * @throws BadCredentialsAuthenticationException With the error code an
+   *         authentication would fail with.
+   */
+  public final Token verify(String tokenService, String username, String data)
+      throws BadCredentialsAuthenticationException
+  {
+    return this.verify(tokenService, username, data, this.admission);
+  }
 
-    // Check to see if the api_key is allowed.
-    Key apiKey = this.keystore.getKeyNamed(credential.getTokenService());
+  /**
+   * Verify a token, taking a permit from the given limit rather than
+   * from {@link #setMaxConcurrentAuthentications(int)}, so that bulk
+   * verification cannot crowd out logins.
+   *
+   * @param admission The permits to take one of, or {@code null} if the
+   *                  caller bounds its own concurrency.
+   */
+  final Token verify(String tokenService, String username, String data, Semaphore admission)
+      throws BadCredentialsAuthenticationException
+  {
+    long now = System.currentTimeMillis();
+    Token token = new Token(data);
+    this.rejectRecentFailure(tokenService, username, token, now);
+    try {
+      Key apiKey = this.findKey(tokenService, username, token, now);
+      try {
+        Semaphore permit = this.admit(this.verifyRateLimiter, admission, apiKey, username);
+        try {
+          this.check(tokenService, username, token, apiKey, now);
+        } finally {
+          if (permit != null) {
+            permit.release();
+          }
+        }
+      } finally {
+        apiKey.discard();
+      }
+    } catch (BadCredentialsAuthenticationException e) {
+      this.rememberFailure(tokenService, token, e, now);
+      throw e;
+    }
+    return token;
+  }
+
+  /**
+   * Find the key that can decrypt a token.
+   */
+  private Key findKey(String tokenService, String username, Token token, long now)
+      throws BadCredentialsAuthenticationException
+  {
+    // Turn away garbage before spending any time on it.
+    if (!token.isWellFormed()) {
+      log.warn("Malformed token received for {}", username);
+      throw new BadCredentialsAuthenticationException(ERROR_KEY);
+    }
+
+    // Check to see if the api_key is allowed. A token that names its key
+    // selects it directly.
+    String keyId = token.getKeyId();
+    Key apiKey = (keyId == null) ?
+        this.keystore.getKeyNamed(tokenService) :
+        this.keystore.getKey(tokenService, keyId);
     if (apiKey == null) {
       log.warn("API key not found in keystore!");
-      throw new BadCredentialsAuthenticationException("error.authentication.credentials.bad.token.apikey");
+      throw new BadCredentialsAuthenticationException(ERROR_APIKEY);
     }
+    if (!apiKey.isValidAt(now)) {
+      log.warn("API key {} is not valid at this time!", apiKey.qualifiedName());
+      throw new BadCredentialsAuthenticationException(ERROR_APIKEY);
+    }
+    return apiKey;
+  }
 
-    // Configure the credential's token so that it can be decrypted.
-    Token token = credential.getToken();
+  /**
+   * Decrypt a token, unless it already has been, and check its
+   * attributes, timestamp and username.
+   */
+  private TokenAttributes check(String tokenService, String credUsername, Token token, Key apiKey, long now)
+      throws BadCredentialsAuthenticationException
+  {
+    // Configure the token so that it can be decrypted.
     token.setKey(apiKey);
-    token.setRequiredTokenAttributes(this.requiredTokenAttributes);
-    token.setTokenAttributesMap(this.tokenAttributesMap);
-    credential.setToken(token);
+    token.setPolicy(this.tokenAttributePolicy);
+    token.setMaxDrift(this.maxDrift);
 
-    try {
-      credential.setUserAttributes(token.getAttributes());
-    } catch (Exception e) {
+    TokenAttributes tokenAttributes = token.getAttributes();
+    if (tokenAttributes == null && !token.isExpired() && apiKey.isDestroyed() && !apiKey.isProvisional()) {
+      // The key was retired while this login held it. That says nothing
+      // about the token, so try again with the key that replaced it
+      // rather than fail, and have the failure remembered.
+      log.warn("API key {} was retired during authentication; looking it up again", apiKey.qualifiedName());
+      token.setKey(this.findKey(tokenService, credUsername, token, now));
+      tokenAttributes = token.getAttributes();
+    }
+    if (tokenAttributes == null && token.isExpired()) {
+      log.warn("Authentication Error: Token expired for {}", credUsername);
+      throw new BadCredentialsAuthenticationException(ERROR_EXPIRED);
+    }
+    if (tokenAttributes == null) {
       log.warn("Could not decrypt token!");
-      throw new BadCredentialsAuthenticationException("error.authentication.credentials.bad.token.key");
+      throw new BadCredentialsAuthenticationException(ERROR_KEY);
     }
 
-    if (!token.getAttributes().isValid()) {
+    if (!tokenAttributes.isValid()) {
       log.warn("Invalid token attributes detected.");
-      throw new BadCredentialsAuthenticationException("error.authentication.credentials.missing.required.attributes");
+      throw new BadCredentialsAuthenticationException(ERROR_MISSING_ATTRIBUTES);
     }
 
-    // This username was given in the request URL.
-    String credUsername = credential.getUsername();
     // This username is from the decrypted token.
-    String attrUsername = credential.getToken().getAttributes().getUsername();
+    String attrUsername = tokenAttributes.getUsername();
 
     log.debug("Got username from token : {}", credUsername);
 
     // Get the difference between the generated time and now.
-    int genTimeDiff = Math.abs((int) (new Date().getTime() - token.getGenerated()) / 1000);
+    int genTimeDiff = Math.abs((int) (now - token.getGenerated()) / 1000);
     log.debug("Token generated {} seconds ago", genTimeDiff);
 
     if (genTimeDiff > this.maxDrift) {
       log.warn("Authentication Error: Token expired for {}", credUsername);
-      throw new BadCredentialsAuthenticationException("error.authentication.credentials.bad.token.expired");
+      throw new BadCredentialsAuthenticationException(ERROR_EXPIRED);
     }
 
-    if (attrUsername.equals(credUsername)) {
-      log.debug("Authentication Success");
-      result = true;
-    } else {
+    if (!attrUsername.equals(credUsername)) {
       log.error("Authentication Error: Client passed username [{}], token generated for [{}]", credUsername, attrUsername);
-      throw new BadCredentialsAuthenticationException("error.authentication.credentials.bad.token.username");
+      throw new BadCredentialsAuthenticationException(ERROR_USERNAME);
     }
 
-    return result;
+    return tokenAttributes;
   }
 
   public final void setKeystore(final Keystore keystore) {
     this.keystore = keystore;
   }
 
-  public final void setMaxDrift(final int maxDrift){
+  public final synchronized void setMaxDrift(final int maxDrift){
     this.maxDrift = maxDrift;
+    this.configureReplayCache();
+  }
+
+  /**
+   * Reject tokens that have already been used. Each token is remembered
+   * for twice {@code maxDrift}, the longest time it can be valid for.
+   *
+   * @param replayCacheCapacity The maximum number of tokens to remember,
+   *                            or 0 (the default) to disable the check.
+   */
+  public final synchronized void setReplayCacheCapacity(final int replayCacheCapacity) {
+    this.replayCacheCapacity = replayCacheCapacity;
+    this.configureReplayCache();
+  }
+
+  /**
+   * The replay cache, for monitoring its hit and eviction counts.
+   *
+   * @return The {@link TokenReplayCache}, or {@code null} if it is disabled.
+   */
+  public final TokenReplayCache getReplayCache() {
+    return this.replayCache;
+  }
+
+  /**
+   * Remember failed {@code (token_service, token)} pairs so that a client
+   * repeating a bad token is rejected without decrypting it again.
+   *
+   * @param negativeCacheSize The number of failures to remember (default
+   *                          1024), or 0 to disable the cache.
+   */
+  public final synchronized void setNegativeCacheSize(final int negativeCacheSize) {
+    this.negativeCacheSize = negativeCacheSize;
+    this.configureNegativeCache();
+  }
+
+  /**
+   * @param negativeCacheTtl The number of seconds a failure is remembered
+   *                         for (default 10).
+   */
+  public final synchronized void setNegativeCacheTtl(final int negativeCacheTtl) {
+    this.negativeCacheTtl = negativeCacheTtl;
+    this.configureNegativeCache();
+  }
+
+  /**
+   * The negative cache, for monitoring its hit count.
+   *
+   * @return The {@link TokenNegativeCache}, or {@code null} if it is disabled.
+   */
+  public final TokenNegativeCache getNegativeCache() {
+    return this.negativeCache;
+  }
+
+  /**
+   * Limit the number of tokens that are decrypted and validated at the
+   * same time. Requests beyond the limit are rejected at once with
+   * {@link #ERROR_OVERLOADED}, rather than waiting. A
+   * {@link TokenBatchVerifier} does not take these permits; it has a limit
+   * of its own.
+   *
+   * @param maxConcurrentAuthentications The limit, or 0 (the default) for
+   *                                     no limit.
+   */
+  public final synchronized void setMaxConcurrentAuthentications(final int maxConcurrentAuthentications) {
+    this.admission = (maxConcurrentAuthentications > 0) ? new Semaphore(maxConcurrentAuthentications) : null;
+  }
+
+  /**
+   * The number of successful authentications with each key, so that it
+   * can be seen when a retired key is no longer in use. Keys are named by
+   * {@link Key#qualifiedName()}.
+   *
+   * @return A copy of the counts.
+   */
+  public final Map<String, Long> getKeyUsage() {
+    Map<String, Long> usage = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : this.keyUsage.entrySet()) {
+      usage.put(entry.getKey(), entry.getValue().get());
+    }
+    return usage;
+  }
+
+  private void recordKeyUsage(Key key) {
+    AtomicLong count = this.keyUsage.get(key.qualifiedName());
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = this.keyUsage.putIfAbsent(key.qualifiedName(), created);
+      count = (count == null) ? created : count;
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * The per-service rate limiter, for monitoring its rejection count.
+   *
+   * @return The {@link ServiceRateLimiter}.
+   */
+  public final ServiceRateLimiter getRateLimiter() {
+    return this.rateLimiter;
+  }
+
+  /**
+   * The rate limiter applied by {@link #verify(String, String, String)},
+   * for monitoring its rejection count.
+   *
+   * @return The {@link ServiceRateLimiter}.
+   */
+  public final ServiceRateLimiter getVerifyRateLimiter() {
+    return this.verifyRateLimiter;
+  }
+
+  private void configureNegativeCache() {
+    if (this.negativeCacheSize <= 0 || this.negativeCacheTtl <= 0) {
+      this.negativeCache = null;
+    } else {
+      this.negativeCache = new TokenNegativeCache(this.negativeCacheSize, this.negativeCacheTtl * 1000L);
+    }
+  }
+
+  private void configureReplayCache() {
+    if (this.replayCacheCapacity <= 0 || this.maxDrift <= 0) {
+      this.replayCache = null;
+    } else {
+      this.replayCache = new TokenReplayCache(this.replayCacheCapacity, 2000L * this.maxDrift);
+    }
   }
 
-  public final void setRequiredTokenAttributes(final List requiredTokenAttributes) {
+  public final synchronized void setRequiredTokenAttributes(final List requiredTokenAttributes) {
     this.requiredTokenAttributes = requiredTokenAttributes;
+    this.tokenAttributePolicy = TokenAttributePolicy.compile(this.requiredTokenAttributes, this.tokenAttributesMap);
   }
 
-  public final void setTokenAttributesMap(final Map tokenAttributesMap) {
+  public final synchronized void setTokenAttributesMap(final Map tokenAttributesMap) {
     this.tokenAttributesMap = tokenAttributesMap;
+    this.tokenAttributePolicy = TokenAttributePolicy.compile(this.requiredTokenAttributes, this.tokenAttributesMap);
   }
 }
\ No newline at end of file
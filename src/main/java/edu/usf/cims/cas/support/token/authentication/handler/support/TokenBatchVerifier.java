@@ -0,0 +1,259 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Verifies many tokens at once, for services that need to check tokens
+ * outside of a login, such as when reconciling session logs.</p>
+ *
+ * <p>Each token is checked by
+ * {@link TokenAuthenticationHandler#verify(String, String, String)}, so
+ * it is decrypted with the same keystore, cipher cache and settings as a
+ * login, and rejected with the same error codes. It is held to the
+ * handler's negative cache and key rate limits, but nothing is remembered
+ * as used. It does not take the handler's
+ * {@link TokenAuthenticationHandler#setMaxConcurrentAuthentications(int)}
+ * permits, so a large batch cannot turn logins away; batches share a
+ * limit of their own, {@link #setMaxConcurrentVerifications(int)}, and
+ * wait for it rather than fail. A batch is split into slices
+ * that are verified on a fixed pool of {@link #setThreads(int)} threads.
+ * The pool's queue is bounded: when it is full, or the pool has been
+ * stopped, the calling thread verifies the slices itself, so concurrent
+ * batches slow down rather than pile up, and no batch is left waiting on a
+ * slice that will never run.</p>
+ */
+public final class TokenBatchVerifier implements InitializingBean, DisposableBean {
+  private static final Logger log = LoggerFactory.getLogger(TokenBatchVerifier.class);
+
+  /** Batches smaller than this are verified on the calling thread. **/
+  private static final int MIN_SLICE = 16;
+
+  private TokenAuthenticationHandler authenticationHandler;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int maxBatchSize = 10000;
+
+  /** Limits the tokens verified at once across all batches; {@code null} for no limit. **/
+  private volatile Semaphore admission;
+
+  private volatile ThreadPoolExecutor pool;
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong verified = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Start the worker pool. Spring invokes this once the properties are set.
+   */
+  public void afterPropertiesSet() {
+    Assert.notNull(this.authenticationHandler, "authenticationHandler is required");
+
+    final AtomicInteger count = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(
+        this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(this.threads * 4),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TokenBatchVerifier-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        },
+        new ThreadPoolExecutor.AbortPolicy()
+    );
+  }
+
+  /**
+   * Stop the worker pool. Slices that were still queued are cancelled,
+   * and the batches they belong to verify them on their own threads.
+   */
+  public void destroy() {
+    ThreadPoolExecutor pool = this.pool;
+    if (pool != null) {
+      this.pool = null;
+      for (Runnable queued : pool.shutdownNow()) {
+        ((Future<?>) queued).cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Verify a batch of tokens. The outcome of each is set on its
+   * {@linkplain TokenVerification}.
+   *
+   * @param items The tokens to verify.
+   * @return The same items, in the same order.
+   * @throws IllegalArgumentException If the batch is larger than
+   *         {@link #setMaxBatchSize(int)}.
+   */
+  public List<TokenVerification> verify(List<TokenVerification> items) {
+    Assert.isTrue(items.size() <= this.maxBatchSize,
+        "batches are limited to " + this.maxBatchSize + " tokens");
+    this.batches.incrementAndGet();
+
+    ThreadPoolExecutor pool = this.pool;
+    if (pool == null || pool.isShutdown() || items.size() < 2 * MIN_SLICE) {
+      this.verify(items, 0, items.size());
+      return items;
+    }
+
+    // One slice per thread, but not so small that handing them off costs
+    // more than verifying them.
+    int slice = Math.max(MIN_SLICE, (items.size() + this.threads - 1) / this.threads);
+    ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+    ArrayList<Integer> starts = new ArrayList<Integer>();
+    for (int start = slice; start < items.size(); start += slice) {
+      final List<TokenVerification> batch = items;
+      final int from = start;
+      final int to = Math.min(start + slice, items.size());
+      try {
+        pending.add(pool.submit(new Runnable() {
+          public void run() {
+            TokenBatchVerifier.this.verify(batch, from, to);
+          }
+        }));
+        starts.add(from);
+      } catch (RejectedExecutionException e) {
+        // The queue is full or the pool has stopped.
+        this.verify(items, from, to);
+      }
+    }
+    // The calling thread takes the first slice itself.
+    this.verify(items, 0, Math.min(slice, items.size()));
+
+    for (int i = 0; i < pending.size(); i += 1) {
+      try {
+        pending.get(i).get();
+      } catch (CancellationException e) {
+        // The pool was stopped before the slice ran.
+        int from = starts.get(i);
+        this.verify(items, from, Math.min(from + slice, items.size()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted verifying tokens", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Could not verify tokens", e.getCause());
+      }
+    }
+    return items;
+  }
+
+  private void verify(List<TokenVerification> items, int from, int to) {
+    Semaphore admission = this.admission;
+    for (int i = from; i < to; i += 1) {
+      TokenVerification item = items.get(i);
+      if (admission != null) {
+        try {
+          admission.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted verifying tokens", e);
+        }
+      }
+      try {
+        item.accept(this.authenticationHandler.verify(
+            item.getTokenService(), item.getUsername(), item.getToken(), null
+        ).getAttributes());
+      } catch (BadCredentialsAuthenticationException e) {
+        item.reject(e.getCode());
+        this.rejected.incrementAndGet();
+      } catch (RuntimeException e) {
+        log.error("Could not verify token for {}!", item.getUsername());
+        log.debug(e.toString());
+        item.reject(TokenAuthenticationHandler.ERROR_KEY);
+        this.rejected.incrementAndGet();
+      } finally {
+        if (admission != null) {
+          admission.release();
+        }
+      }
+      this.verified.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param authenticationHandler The handler that token logins are
+   *                              authenticated by.
+   */
+  public void setAuthenticationHandler(TokenAuthenticationHandler authenticationHandler) {
+    this.authenticationHandler = authenticationHandler;
+  }
+
+  /**
+   * @param threads The number of worker threads (default: the number of
+   *                processors).
+   */
+  public void setThreads(int threads) {
+    Assert.isTrue(threads > 0, "threads must be positive");
+    this.threads = threads;
+  }
+
+  /**
+   * @param maxBatchSize The most tokens a batch may hold (default 10000).
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    Assert.isTrue(maxBatchSize > 0, "maxBatchSize must be positive");
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Limit the number of tokens that all batches together verify at the
+   * same time. Batches wait for a permit rather than fail. These permits
+   * are separate from the handler's, so logins are not affected.
+   *
+   * @param maxConcurrentVerifications The limit, or 0 (the default) for
+   *                                   no limit beyond the pool and the
+   *                                   calling threads.
+   */
+  public synchronized void setMaxConcurrentVerifications(int maxConcurrentVerifications) {
+    Assert.isTrue(maxConcurrentVerifications >= 0, "maxConcurrentVerifications cannot be negative");
+    this.admission = (maxConcurrentVerifications > 0) ? new Semaphore(maxConcurrentVerifications) : null;
+  }
+
+  /** The number of batches that have been verified. */
+  public long getBatches() {
+    return this.batches.get();
+  }
+
+  /** The number of tokens that have been verified. */
+  public long getVerified() {
+    return this.verified.get();
+  }
+
+  /** The number of tokens that have been rejected. */
+  public long getRejected() {
+    return this.rejected.get();
+  }
+}
@@ -0,0 +1,135 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import org.springframework.util.Assert;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Remembers, for a short time, the error codes of
+ * {@code (token_service, token)} pairs that failed authentication, so that
+ * a client that keeps sending the same bad token is turned away without
+ * another keystore lookup and decryption.</p>
+ *
+ * <p>The cache is direct mapped: each pair hashes to a single slot and a
+ * new failure simply replaces whatever the slot held. Lookups and updates
+ * do not lock. Only failures that depend on nothing but the service and
+ * the token should be cached.</p>
+ */
+public final class TokenNegativeCache {
+  private static final long seed = new SecureRandom().nextLong();
+
+  private final AtomicReferenceArray<Entry> entries;
+  private final int mask;
+  private final long ttlMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Create a cache.
+   *
+   * @param size The number of slots, rounded up to a power of two.
+   * @param ttlMillis How long, in milliseconds, a failure is remembered.
+   */
+  public TokenNegativeCache(int size, long ttlMillis) {
+    Assert.isTrue(size > 0, "size must be positive");
+    Assert.isTrue(ttlMillis > 0, "ttl must be positive");
+
+    int slots = (size == 1) ? 1 : Integer.highestOneBit(size - 1) << 1;
+    this.entries = new AtomicReferenceArray<Entry>(slots);
+    this.mask = slots - 1;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Look up a recent failure.
+   *
+   * @param service The {@code token_service} of the request.
+   * @param token The encoded token.
+   * @param now The current time in milliseconds.
+   * @return The error code of the failure, or {@code null} if the pair has
+   *         not failed recently.
+   */
+  public String get(String service, String token, long now) {
+    long hash = TokenNegativeCache.hash(service, token);
+    Entry entry = this.entries.get(this.indexOf(hash));
+
+    if (entry != null && entry.hash == hash && entry.expires > now) {
+      this.hits.incrementAndGet();
+      return entry.code;
+    }
+    return null;
+  }
+
+  /**
+   * Remember a failure.
+   *
+   * @param service The {@code token_service} of the request.
+   * @param token The encoded token.
+   * @param code The error code the request failed with.
+   * @param now The current time in milliseconds.
+   */
+  public void put(String service, String token, String code, long now) {
+    long hash = TokenNegativeCache.hash(service, token);
+    this.entries.set(this.indexOf(hash), new Entry(hash, now + this.ttlMillis, code));
+  }
+
+  /** The number of requests that were answered from the cache. */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /** The number of slots in the cache. */
+  public int getSize() {
+    return this.mask + 1;
+  }
+
+  private int indexOf(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & this.mask;
+  }
+
+  private static long hash(String service, String token) {
+    long hash = 0xCBF29CE484222325L ^ seed;
+
+    for (int i = 0, j = service.length(); i < j; i += 1) {
+      hash = (hash ^ service.charAt(i)) * 0x100000001B3L;
+    }
+    // Separate the service from the token so that the pair is unambiguous.
+    hash = (hash ^ 0x10000) * 0x100000001B3L;
+    for (int i = 0, j = token.length(); i < j; i += 1) {
+      hash = (hash ^ token.charAt(i)) * 0x100000001B3L;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static final class Entry {
+    final long hash;
+    final long expires;
+    final String code;
+
+    Entry(long hash, long expires, String code) {
+      this.hash = hash;
+      this.expires = expires;
+      this.code = code;
+    }
+  }
+}
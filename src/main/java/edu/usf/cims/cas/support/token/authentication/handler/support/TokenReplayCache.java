@@ -0,0 +1,217 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Remembers the fingerprints of tokens that have already been used (see
+ * {@link edu.clayton.cas.support.token.Token#getFingerprint()}) so that a
+ * captured token cannot be presented again while it is still within the
+ * handler's {@code maxDrift}.</p>
+ *
+ * <p>The cache is a timing wheel of {@link #BUCKETS} open addressed hash
+ * tables of {@code long} fingerprints. A fingerprint is added to the table
+ * for the current time slice and is forgotten when that table is reused,
+ * {@link #BUCKETS} slices later. The slice width is chosen so that a
+ * fingerprint is kept for at least the configured horizon. Tables are
+ * primitive arrays allocated once, so adding a fingerprint creates no
+ * garbage; lookups do not lock, and adds claim slots with a
+ * compare-and-set.</p>
+ *
+ * <p>The total number of fingerprints is capped by the capacity given to
+ * the constructor. When a table's probe sequence is full, the oldest
+ * candidate slot is overwritten and counted as an eviction, so a cache that
+ * is too small lets some replays through rather than rejecting valid
+ * tokens.</p>
+ */
+public final class TokenReplayCache {
+  /** The number of time slices in the wheel. **/
+  static final int BUCKETS = 16;
+
+  /** The number of slots probed before a fingerprint is evicted. **/
+  private static final int MAX_PROBES = 8;
+
+  private final Bucket[] buckets = new Bucket[BUCKETS];
+  private final long sliceMillis;
+  private final int mask;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Create a cache.
+   *
+   * @param capacity The maximum number of fingerprints to hold. Each one
+   *                 takes 8 bytes, and the number is rounded up so that each
+   *                 time slice holds a power of two.
+   * @param horizonMillis How long, in milliseconds, a fingerprint must be
+   *                      remembered.
+   */
+  public TokenReplayCache(int capacity, long horizonMillis) {
+    Assert.isTrue(capacity > 0, "capacity must be positive");
+    Assert.isTrue(horizonMillis > 0, "horizon must be positive");
+
+    int slots = Integer.highestOneBit(Math.max(MAX_PROBES, (capacity + BUCKETS - 1) / BUCKETS) - 1) << 1;
+    this.mask = slots - 1;
+
+    // A fingerprint lives for between BUCKETS - 1 and BUCKETS slices.
+    long slice = horizonMillis / (BUCKETS - 1);
+    this.sliceMillis = (horizonMillis % (BUCKETS - 1) == 0) ? slice : slice + 1;
+
+    for (int i = 0; i < BUCKETS; i += 1) {
+      this.buckets[i] = new Bucket(slots);
+    }
+  }
+
+  /**
+   * Record a token's fingerprint.
+   *
+   * @param fingerprint A non-zero token fingerprint.
+   * @param now The current time in milliseconds.
+   * @return {@code true} if the fingerprint was not in the cache, or
+   *         {@code false} if the token has been seen before.
+   */
+  public boolean add(long fingerprint, long now) {
+    Assert.isTrue(fingerprint != 0L, "fingerprint cannot be 0");
+
+    long slice = now / this.sliceMillis;
+    if (this.containsInSlice(fingerprint, slice)) {
+      this.hits.incrementAndGet();
+      return false;
+    }
+
+    Bucket bucket = this.bucketFor(slice);
+    int home = this.indexOf(fingerprint);
+    for (int i = 0; i < MAX_PROBES; i += 1) {
+      int index = (home + i) & this.mask;
+      long current = bucket.fingerprints.get(index);
+
+      if (current == 0L && bucket.fingerprints.compareAndSet(index, 0L, fingerprint)) {
+        this.misses.incrementAndGet();
+        return true;
+      }
+
+      // Reread, as another thread may have just claimed this slot.
+      if (bucket.fingerprints.get(index) == fingerprint) {
+        this.hits.incrementAndGet();
+        return false;
+      }
+    }
+
+    bucket.fingerprints.set(home, fingerprint);
+    this.evictions.incrementAndGet();
+    this.misses.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Whether a fingerprint is in the cache.
+   *
+   * @param fingerprint A token fingerprint.
+   * @param now The current time in milliseconds.
+   * @return {@code true} if the token has been seen within the horizon.
+   */
+  public boolean contains(long fingerprint, long now) {
+    return this.containsInSlice(fingerprint, now / this.sliceMillis);
+  }
+
+  private boolean containsInSlice(long fingerprint, long slice) {
+    int home = this.indexOf(fingerprint);
+
+    for (int b = 0; b < BUCKETS; b += 1) {
+      Bucket bucket = this.buckets[b];
+      long age = slice - bucket.slice;
+      if (age < 0 || age >= BUCKETS) {
+        continue;
+      }
+
+      for (int i = 0; i < MAX_PROBES; i += 1) {
+        long current = bucket.fingerprints.get((home + i) & this.mask);
+        if (current == fingerprint) {
+          return true;
+        }
+        if (current == 0L) {
+          break;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Find the table for a time slice, clearing it first if it last held an
+   * older slice.
+   */
+  private Bucket bucketFor(long slice) {
+    Bucket bucket = this.buckets[(int) (slice % BUCKETS)];
+
+    if (bucket.slice != slice) {
+      synchronized (bucket) {
+        if (bucket.slice < slice) {
+          for (int i = 0, j = bucket.fingerprints.length(); i < j; i += 1) {
+            bucket.fingerprints.set(i, 0L);
+          }
+          bucket.slice = slice;
+        }
+      }
+    }
+
+    return bucket;
+  }
+
+  private int indexOf(long fingerprint) {
+    return (int) (fingerprint ^ (fingerprint >>> 32)) & this.mask;
+  }
+
+  /** The maximum number of fingerprints the cache holds. */
+  public int getCapacity() {
+    return (this.mask + 1) * BUCKETS;
+  }
+
+  /** The minimum time, in milliseconds, a fingerprint is remembered. */
+  public long getHorizonMillis() {
+    return this.sliceMillis * (BUCKETS - 1);
+  }
+
+  /** The number of replayed tokens that were detected. */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /** The number of fingerprints that were added. */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /** The number of fingerprints that were forgotten early because the cache was full. */
+  public long getEvictions() {
+    return this.evictions.get();
+  }
+
+  private static final class Bucket {
+    final AtomicLongArray fingerprints;
+    volatile long slice = Long.MIN_VALUE;
+
+    Bucket(int slots) {
+      this.fingerprints = new AtomicLongArray(slots);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import edu.clayton.cas.support.token.TokenAttributes;
+import org.springframework.util.Assert;
+
+/**
+ * <p>One item of a {@link TokenBatchVerifier} batch: a
+ * {@code (token_service, username, token)} triple, and once the batch has
+ * been verified, its outcome.</p>
+ *
+ * <p>The outcome is reported with the error codes of
+ * {@link TokenAuthenticationHandler}; a valid token has no error code and
+ * carries its decrypted attributes.</p>
+ */
+public final class TokenVerification {
+  private final String tokenService;
+  private final String username;
+  private final String token;
+
+  private volatile boolean verified = false;
+  private volatile String code;
+  private volatile TokenAttributes attributes;
+
+  /**
+   * @param tokenService The name of the key the token was encrypted with.
+   * @param username The username the token should have been issued for.
+   * @param token The encoded token.
+   */
+  public TokenVerification(String tokenService, String username, String token) {
+    Assert.notNull(tokenService, "tokenService cannot be null");
+    Assert.notNull(username, "username cannot be null");
+    Assert.notNull(token, "token cannot be null");
+    this.tokenService = tokenService;
+    this.username = username;
+    this.token = token;
+  }
+
+  public String getTokenService() {
+    return this.tokenService;
+  }
+
+  public String getUsername() {
+    return this.username;
+  }
+
+  public String getToken() {
+    return this.token;
+  }
+
+  /** Whether the item has been verified. */
+  public boolean isVerified() {
+    return this.verified;
+  }
+
+  /** Whether the item has been verified and the token is valid. */
+  public boolean isValid() {
+    return this.verified && this.code == null;
+  }
+
+  /**
+   * @return The error code the token was rejected with, or {@code null} if
+   *         it is valid or has not been verified.
+   */
+  public String getCode() {
+    return this.code;
+  }
+
+  /**
+   * @return The decrypted attributes of a valid token, or {@code null}.
+   */
+  public TokenAttributes getAttributes() {
+    return this.attributes;
+  }
+
+  void accept(TokenAttributes attributes) {
+    this.attributes = attributes;
+    this.code = null;
+    this.verified = true;
+  }
+
+  void reject(String code) {
+    this.attributes = null;
+    this.code = code;
+    this.verified = true;
+  }
+}
@@ -0,0 +1,105 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.authentication.principal;
+
+import edu.clayton.cas.support.token.Token;
+import edu.clayton.cas.support.token.TokenAttributes;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The serialized form of a {@link TokenCredentials} instance, as shipped
+ * between the nodes of a replicated ticket registry. It is versioned, and
+ * holds only the username, the service and the user attributes; the
+ * encoded token is written only for a credential that has not been
+ * authenticated yet.
+ *
+ * @since 0.1
+ */
+final class SerializedTokenCredentials implements Externalizable {
+
+  private static final long serialVersionUID = -6470261931529318840L;
+
+  private static final int VERSION = 1;
+
+  private static final int HAS_TOKEN = 1;
+  private static final int HAS_ATTRIBUTES = 2;
+
+  private String username;
+
+  private Token token;
+
+  private String tokenService;
+
+  private TokenAttributes userAttributes;
+
+  /** Used by deserialization. */
+  public SerializedTokenCredentials() {
+  }
+
+  SerializedTokenCredentials(final String username, final Token token, final String tokenService,
+                             final TokenAttributes userAttributes) {
+    this.username = username;
+    this.token = token;
+    this.tokenService = tokenService;
+    this.userAttributes = userAttributes;
+  }
+
+  public void writeExternal(ObjectOutput out) throws IOException {
+    int flags = 0;
+    if (this.token != null) {
+      flags |= HAS_TOKEN;
+    }
+    if (this.userAttributes != null) {
+      flags |= HAS_ATTRIBUTES;
+    }
+
+    out.writeByte(VERSION);
+    out.writeByte(flags);
+    out.writeUTF(this.username);
+    out.writeUTF(this.tokenService);
+    if (this.token != null) {
+      out.writeObject(this.token.getData());
+    }
+    if (this.userAttributes != null) {
+      out.writeObject(this.userAttributes);
+    }
+  }
+
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new InvalidObjectException("Unsupported TokenCredentials version " + version);
+    }
+
+    int flags = in.readUnsignedByte();
+    this.username = in.readUTF();
+    this.tokenService = in.readUTF();
+    if ((flags & HAS_TOKEN) != 0) {
+      this.token = new Token((String) in.readObject());
+    }
+    if ((flags & HAS_ATTRIBUTES) != 0) {
+      this.userAttributes = (TokenAttributes) in.readObject();
+    }
+  }
+
+  private Object readResolve() {
+    return new TokenCredentials(this.username, this.token, this.tokenService, this.userAttributes);
+  }
+}
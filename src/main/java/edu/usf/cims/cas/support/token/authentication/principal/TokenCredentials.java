@@ -24,7 +24,8 @@ import org.springframework.util.Assert;
 import java.util.Map;
 
 /**
- * This class creates a CAS-compatible credential using data from an AES128-encrypted token
+ * This class creates a CAS-compatible credential using data from an AES128-encrypted token.
+ * It is serialized in a compact form, see {@link SerializedTokenCredentials}.
  * 
  * @author Eric Pierce
  * @since 0.1
@@ -41,7 +42,7 @@ public final class TokenCredentials implements Credentials {
 
   private String tokenService;
 
-  private Map<String, Object> userAttributes;
+  private TokenAttributes userAttributes;
 
   public TokenCredentials(final String username, final String token, final String tokenService) {
     Assert.notNull(token, "token cannot be null");
@@ -52,10 +53,28 @@ public final class TokenCredentials implements Credentials {
     this.username = username;
   }
 
+  /**
+   * Restore a credential from its serialized form.
+   */
+  TokenCredentials(final String username, final Token token, final String tokenService,
+                   final TokenAttributes userAttributes) {
+    this.username = username;
+    this.token = token;
+    this.tokenService = tokenService;
+    this.userAttributes = userAttributes;
+  }
+
+  /**
+   * @param token The {@link Token} to authenticate with.
+   */
   public final void setToken(final Token token) {
     this.token = token;
   }
 
+  /**
+   * @return The {@link Token} to authenticate with, or {@code null} once
+   *         the credential has been compacted.
+   */
   public final Token getToken() {
     return this.token;
   }
@@ -87,9 +106,41 @@ public final class TokenCredentials implements Credentials {
     this.userAttributes = userProfile;
   }
 
+  /**
+   * Release everything that was only needed to authenticate: the
+   * {@link Token}, with its encoded data, its {@link edu.clayton.cas.support.token.keystore.Key}
+   * and its attribute settings. The user attributes are frozen, so that
+   * the principal can share them. This is invoked once
+   * the credential has been authenticated; it cannot be authenticated
+   * again afterwards.
+   */
+  public synchronized void compact() {
+    if (this.token == null) {
+      return;
+    }
+    this.token = null;
+    if (this.userAttributes != null) {
+      this.userAttributes.freeze();
+    }
+  }
+
+  /**
+   * @return {@code true} if {@link TokenCredentials#compact()} has been
+   *         invoked.
+   */
+  public final boolean isCompacted() {
+    return this.token == null;
+  }
+
+  private Object writeReplace() {
+    return new SerializedTokenCredentials(this.username, this.token, this.tokenService, this.userAttributes);
+  }
+
   public String toString() {
     if (this.userAttributes != null && this.userAttributes.containsKey("PreferredUsername")){
       return (String) userAttributes.get("PreferredUsername");
+    } else if (this.token == null) {
+      return "[authentication token: " + this.username + "]";
     } else {
       return "[authentication token: " + this.username + ":" + this.token + "]";
     }
@@ -0,0 +1,134 @@
+/* Copyright 2013 University of South Florida.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package edu.usf.cims.cas.support.token.web;
+
+import edu.clayton.cas.support.token.Token;
+import edu.usf.cims.cas.support.token.authentication.handler.support.TokenAuthenticationHandler;
+import org.apache.commons.lang.StringUtils;
+import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This filter checks token logins before they reach the login webflow. A request with the auth_token, username
+ * and token_service parameters has its token decrypted and checked by
+ * {@link TokenAuthenticationHandler#verify(String, String, String)}; a token that is malformed, expired, for an
+ * unknown service or otherwise bad is answered with {@code 401 Unauthorized} and the handler's error code; one that
+ * is over its service's rate limit with {@code 429 Too Many Requests}, and one that arrives while the handler is
+ * at its concurrency limit with {@code 503 Service Unavailable}. The handler's negative cache, rate limits and
+ * concurrency limit apply to the filter as they do to logins. A good
+ * token is passed on in the {@link #TOKEN_ATTRIBUTE} request attribute, so that
+ * {@link edu.usf.cims.cas.support.token.web.flow.TokenAuthAction} does not decrypt it again.
+ *
+ * Requests without a token pass through untouched. The filter is meant to be declared as a Spring bean and
+ * installed with a {@link org.springframework.web.filter.DelegatingFilterProxy}.
+ *
+ * @since 0.1
+ */
+public final class TokenValidationFilter implements Filter {
+
+  /** The request attribute that holds the decrypted {@link Token}. **/
+  public static final String TOKEN_ATTRIBUTE = TokenValidationFilter.class.getName() + ".token";
+
+  private static final String TOKEN_PARAMETER = "auth_token";
+  private static final String TOKEN_SERVICE_ID = "token_service";
+  private static final String USER_ID = "username";
+
+  /** Not defined by the Servlet 2.5 API. **/
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private static final Logger logger = LoggerFactory.getLogger(TokenValidationFilter.class);
+
+  @NotNull
+  private TokenAuthenticationHandler authenticationHandler;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  public void init(FilterConfig filterConfig) {
+  }
+
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+      throws IOException, ServletException {
+    if (!(servletRequest instanceof HttpServletRequest)) {
+      chain.doFilter(servletRequest, servletResponse);
+      return;
+    }
+
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    String authTokenValue = request.getParameter(TOKEN_PARAMETER);
+    String tokenService = request.getParameter(TOKEN_SERVICE_ID);
+    String username = request.getParameter(USER_ID);
+
+    if (StringUtils.isNotBlank(authTokenValue) && StringUtils.isNotBlank(username) &&
+        StringUtils.isNotBlank(tokenService)) {
+      try {
+        Token token = this.authenticationHandler.verify(tokenService, username, authTokenValue);
+        request.setAttribute(TOKEN_ATTRIBUTE, token);
+        this.accepted.incrementAndGet();
+      } catch (final BadCredentialsAuthenticationException e) {
+        logger.debug("Rejecting token for {} from service {}: {}", new Object[] {username, tokenService, e.getCode()});
+        this.rejected.incrementAndGet();
+        ((HttpServletResponse) servletResponse).sendError(statusFor(e.getCode()), e.getCode());
+        return;
+      }
+    }
+
+    chain.doFilter(servletRequest, servletResponse);
+  }
+
+  private static int statusFor(String code) {
+    if (TokenAuthenticationHandler.ERROR_RATE_LIMITED.equals(code)) {
+      return SC_TOO_MANY_REQUESTS;
+    }
+    if (TokenAuthenticationHandler.ERROR_OVERLOADED.equals(code)) {
+      return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    }
+    return HttpServletResponse.SC_UNAUTHORIZED;
+  }
+
+  public void destroy() {
+  }
+
+  /**
+   * @param authenticationHandler The handler that token logins are authenticated by, so that the same keystore
+   *                              and settings are used.
+   */
+  public void setAuthenticationHandler(TokenAuthenticationHandler authenticationHandler) {
+    this.authenticationHandler = authenticationHandler;
+  }
+
+  /** The number of tokens passed on to the login flow. */
+  public long getAccepted() {
+    return this.accepted.get();
+  }
+
+  /** The number of tokens rejected before the login flow. */
+  public long getRejected() {
+    return this.rejected.get();
+  }
+}
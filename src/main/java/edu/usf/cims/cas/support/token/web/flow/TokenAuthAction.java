@@ -14,7 +14,9 @@
 */
 package edu.usf.cims.cas.support.token.web.flow;
 
+import edu.clayton.cas.support.token.Token;
 import edu.usf.cims.cas.support.token.authentication.principal.TokenCredentials;
+import edu.usf.cims.cas.support.token.web.TokenValidationFilter;
 import org.apache.commons.lang.StringUtils;
 import org.jasig.cas.CentralAuthenticationService;
 import org.jasig.cas.authentication.principal.Service;
@@ -34,6 +36,9 @@ import java.lang.String;
 /**
  * This class represents an action in the webflow to retrieve user information from an AES128 encrypted token. If the auth_token 
  * parameter exists in the web request, it is used to create a new TokenCredential.
+ *
+ * In stateless mode (see {@link #setStateless(boolean)}) the service is only carried in the flow and request
+ * scopes, and no HTTP session is created for a token login.
  * 
  * @author Eric Pierce
  * @since 0.1
@@ -48,11 +53,12 @@ public final class TokenAuthAction extends AbstractAction {
   
   @NotNull 
   private CentralAuthenticationService centralAuthenticationService;
+
+  private boolean stateless = false;
   
   @Override
   protected Event doExecute(RequestContext context) throws Exception {
     HttpServletRequest request = WebUtils.getHttpServletRequest(context);
-    HttpSession session = request.getSession();
     
     // get token and username values
     String authTokenValue = request.getParameter(TOKEN_PARAMETER);
@@ -72,10 +78,24 @@ public final class TokenAuthAction extends AbstractAction {
       // get credential
       @SuppressWarnings("unchecked")
       TokenCredentials credential = new TokenCredentials(username, authTokenValue, tokenService);
+
+      // reuse the token if the TokenValidationFilter has already decrypted it
+      Object validated = request.getAttribute(TokenValidationFilter.TOKEN_ATTRIBUTE);
+      if (validated instanceof Token && ((Token) validated).getData().equals(authTokenValue)) {
+        credential.setToken((Token) validated);
+      }
       
       // put service in session from flow scope
       Service service = (Service) context.getFlowScope().get("service");
-      session.setAttribute("service", service);
+      if (this.stateless) {
+        context.getRequestScope().put("service", service);
+        HttpSession session = request.getSession(false);
+        if (session != null) {
+          session.setAttribute("service", service);
+        }
+      } else {
+        request.getSession().setAttribute("service", service);
+      }
                  
       try {
         WebUtils.putTicketGrantingTicketInRequestScope(context, this.centralAuthenticationService
@@ -91,4 +111,14 @@ public final class TokenAuthAction extends AbstractAction {
   public void setCentralAuthenticationService(CentralAuthenticationService centralAuthenticationService) {
     this.centralAuthenticationService = centralAuthenticationService;
   }
+
+  /**
+   * Never create an HTTP session for a token login. The service is put in request scope, and in the session
+   * only if the client already has one.
+   *
+   * @param stateless {@code true} to avoid creating sessions (default {@code false}).
+   */
+  public void setStateless(boolean stateless) {
+    this.stateless = stateless;
+  }
 }
@@ -4,15 +4,21 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertNull;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class TokenAttributesTest {
   private static final Logger log = LoggerFactory.getLogger(TokenAttributesTest.class);
@@ -102,4 +108,164 @@ public class TokenAttributesTest {
     assertTrue("auser".equals(tokenAttributes.getUsername()));
     assertNull(tokenAttributes.getFirstName());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void mapContract() throws Exception {
+    log.info("Checking the Map contract");
+
+    this.readJSON("testMultipleTokenAttributes.json");
+    TokenAttributes tokenAttributes = new TokenAttributes(this.json);
+
+    HashMap<String, Object> expected = new HashMap<String, Object>(tokenAttributes);
+    assertEquals(5, tokenAttributes.size());
+    assertEquals(expected, tokenAttributes);
+    assertEquals(expected.hashCode(), tokenAttributes.hashCode());
+
+    tokenAttributes.setUsername("another");
+    assertEquals("another", tokenAttributes.get("username"));
+    assertEquals(5, tokenAttributes.size());
+
+    assertEquals("Foo", tokenAttributes.remove("firstname"));
+    assertNull(tokenAttributes.getFirstName());
+    assertEquals("another", tokenAttributes.getUsername());
+    assertEquals("Bar", tokenAttributes.getLastName());
+    assertFalse(tokenAttributes.containsKey("firstname"));
+
+    Iterator<Map.Entry<String, Object>> iterator = tokenAttributes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getKey().equals("multiple")) {
+        iterator.remove();
+      }
+    }
+    assertEquals(3, tokenAttributes.size());
+    assertFalse(tokenAttributes.containsKey("multiple"));
+  }
+
+  @Test
+  public void serialization() throws Exception {
+    log.info("Checking that attributes survive serialization");
+
+    this.readJSON("testAlternateTokenAttributes.json");
+    HashMap<String, String> attributesMap = new HashMap<String, String>(4);
+    attributesMap.put("username", "sAMAccountName");
+    TokenAttributes tokenAttributes = new TokenAttributes(this.json, null, attributesMap);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(tokenAttributes);
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    TokenAttributes copy = (TokenAttributes) in.readObject();
+
+    assertEquals(tokenAttributes, copy);
+    assertEquals("auser", copy.getUsername());
+  }
+
+  @Test
+  public void sharedPolicy() throws Exception {
+    log.info("Checking attributes validated against a compiled policy");
+
+    this.readJSON("testAlternateTokenAttributes.json");
+
+    ArrayList<String> requiredAttributes = new ArrayList<String>(2);
+    requiredAttributes.add("sAMAccountName");
+    requiredAttributes.add("mail");
+    HashMap<String, String> attributesMap = new HashMap<String, String>(4);
+    attributesMap.put("username", "sAMAccountName");
+    attributesMap.put("email", "mail");
+    TokenAttributePolicy policy = TokenAttributePolicy.compile(requiredAttributes, attributesMap);
+
+    TokenAttributes tokenAttributes = new TokenAttributes(policy);
+    new TokenParser(this.json.getBytes("UTF-8"), 0, this.json.getBytes("UTF-8").length)
+        .parseObject(tokenAttributes);
+    assertTrue(tokenAttributes.isValid());
+    assertEquals("auser", tokenAttributes.getUsername());
+    assertEquals("foobar@example.com", tokenAttributes.getEmail());
+
+    tokenAttributes.remove("mail");
+    assertFalse(tokenAttributes.isValid());
+
+    assertSame(TokenAttributePolicy.DEFAULT_POLICY, TokenAttributePolicy.compile(null, null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void policyRejectsNonStringMapping() {
+    HashMap<Object, Object> attributesMap = new HashMap<Object, Object>(1);
+    attributesMap.put("username", 42);
+    TokenAttributePolicy.compile(null, attributesMap);
+  }
+
+  @Test
+  public void compactSerialization() throws Exception {
+    log.info("Checking the compact serialized form");
+
+    this.readJSON("testMultipleTokenAttributes.json");
+    ArrayList<String> requiredAttributes = new ArrayList<String>(1);
+    requiredAttributes.add("multiple");
+    TokenAttributePolicy policy = TokenAttributePolicy.compile(requiredAttributes, null);
+    TokenAttributes tokenAttributes = new TokenAttributes(policy);
+    byte[] json = this.json.getBytes("UTF-8");
+    new TokenParser(json, 0, json.length).parseObject(tokenAttributes);
+    tokenAttributes.freeze();
+
+    byte[] compact = serialize(tokenAttributes);
+    TokenAttributes copy = (TokenAttributes) deserialize(compact);
+    assertEquals(tokenAttributes, copy);
+    assertTrue(copy.isValid());
+    assertTrue(copy.isFrozen());
+
+    // The same attributes in the hash map this class used to extend.
+    byte[] hashed = serialize(new ConcurrentHashMap<String, Object>(tokenAttributes));
+    log.info("Compact form: {} bytes, ConcurrentHashMap: {} bytes", compact.length, hashed.length);
+    assertTrue(compact.length < hashed.length / 2);
+  }
+
+  @Test
+  public void compactSerializationWithMapping() throws Exception {
+    this.readJSON("testTokenAttributes.json");
+    ArrayList<String> requiredAttributes = new ArrayList<String>(1);
+    requiredAttributes.add("email");
+    HashMap<String, String> attributesMap = new HashMap<String, String>();
+    attributesMap.put("username", "email");
+    TokenAttributes tokenAttributes = new TokenAttributes(this.json, requiredAttributes, attributesMap);
+
+    TokenAttributes copy = (TokenAttributes) deserialize(serialize(tokenAttributes));
+    assertEquals(tokenAttributes, copy);
+    assertEquals(tokenAttributes.getUsername(), copy.getUsername());
+    assertTrue(copy.isValid());
+  }
+
+  @Test(expected = InvalidObjectException.class)
+  public void serializedFormRequired() throws Exception {
+    this.readJSON("testTokenAttributes.json");
+    deserialize(serialize(new UnreplacedTokenAttributes(this.json)));
+  }
+
+  /** Inherits none of the private serialization methods but readObject. **/
+  private static class UnreplacedTokenAttributes extends TokenAttributes {
+    UnreplacedTokenAttributes(String data) {
+      super(data);
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void frozen() throws Exception {
+    this.readJSON("testTokenAttributes.json");
+    TokenAttributes tokenAttributes = new TokenAttributes(this.json);
+    tokenAttributes.freeze();
+    tokenAttributes.setEmail("other@example.com");
+  }
+
+  private static byte[] serialize(Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes) throws Exception {
+    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+  }
+}
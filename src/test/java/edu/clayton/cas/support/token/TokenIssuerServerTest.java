@@ -0,0 +1,111 @@
+package edu.clayton.cas.support.token;
+
+import edu.clayton.cas.support.token.keystore.JSONKeystore;
+import edu.clayton.cas.support.token.keystore.Key;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TokenIssuerServerTest {
+  private Key key = new Key("alphabet_key", "abcdefghijklmnop");
+  private TokenIssuerServer server;
+  private URL url;
+
+  @Before
+  public void startServer() throws Exception {
+    JSONKeystore keystore = new JSONKeystore();
+    keystore.addKey(this.key);
+    TokenIssuer issuer = new TokenIssuer();
+    issuer.setKeystore(keystore);
+
+    this.server = new TokenIssuerServer();
+    this.server.setIssuer(issuer);
+    this.server.setPort(0);
+    this.server.setThreads(2);
+    HashMap<String, List<String>> accessTokens = new HashMap<String, List<String>>();
+    accessTokens.put("s3cret", Collections.singletonList(TokenIssuerServer.ANY_SERVICE));
+    accessTokens.put("other", Collections.singletonList("number_key"));
+    this.server.setAccessTokens(accessTokens);
+    this.server.afterPropertiesSet();
+    this.url = new URL("http://127.0.0.1:" + this.server.getPort() + "/token");
+  }
+
+  @After
+  public void stopServer() {
+    this.server.destroy();
+  }
+
+  @Test
+  public void testIssue() throws Exception {
+    HttpURLConnection connection = this.post("s3cret", "token_service=alphabet_key&username=auser&groups=a&groups=b%20c");
+    assertEquals(200, connection.getResponseCode());
+
+    Token token = new Token(read(connection.getInputStream()));
+    token.setKey(this.key);
+    assertEquals("auser", token.getAttributes().getUsername());
+    assertEquals(Arrays.asList("a", "b c"), token.getAttributes().get("groups"));
+    assertNull(token.getAttributes().get("token_service"));
+  }
+
+  @Test
+  public void testRejectedRequests() throws Exception {
+    assertEquals(401, this.post("wrong", "token_service=alphabet_key&username=auser").getResponseCode());
+    assertEquals(401, this.post(null, "token_service=alphabet_key&username=auser").getResponseCode());
+    assertEquals(400, this.post("s3cret", "username=auser").getResponseCode());
+    assertEquals(404, this.post("s3cret", "token_service=number_key&username=auser").getResponseCode());
+
+    assertEquals(400, this.post("s3cret", "token_service=alphabet_key&username=a%zzuser").getResponseCode());
+    assertEquals(403, this.post("other", "token_service=alphabet_key&username=auser").getResponseCode());
+
+    HttpURLConnection get = (HttpURLConnection) this.url.openConnection();
+    get.setRequestProperty("Authorization", "Bearer s3cret");
+    assertEquals(405, get.getResponseCode());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRemoteBindRequiresTls() throws Exception {
+    TokenIssuerServer remote = new TokenIssuerServer();
+    remote.setIssuer(new TokenIssuer());
+    remote.setAccessToken("s3cret");
+    remote.setBindAddress("0.0.0.0");
+    remote.setPort(0);
+    remote.afterPropertiesSet();
+  }
+
+  private HttpURLConnection post(String accessToken, String form) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    if (accessToken != null) {
+      connection.setRequestProperty("Authorization", "Bearer " + accessToken);
+    }
+    OutputStream out = connection.getOutputStream();
+    out.write(form.getBytes("UTF-8"));
+    out.close();
+    return connection;
+  }
+
+  private static String read(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,98 @@
+package edu.clayton.cas.support.token;
+
+import edu.clayton.cas.support.token.keystore.JSONKeystore;
+import edu.clayton.cas.support.token.keystore.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TokenIssuerTest {
+  private Key key = new Key("alphabet_key", "abcdefghijklmnop");
+  private TokenIssuer issuer;
+
+  @Before
+  public void setup() {
+    JSONKeystore keystore = new JSONKeystore();
+    keystore.addKey(this.key);
+
+    this.issuer = new TokenIssuer();
+    this.issuer.setKeystore(keystore);
+  }
+
+  @Test
+  public void testIssue() throws Exception {
+    Map<String, Object> credentials = new LinkedHashMap<String, Object>();
+    credentials.put("username", "auser");
+    credentials.put("firstname", "\u00c9ric \"Q\" \\ P\u00e9rez\n");
+    credentials.put("groups", Arrays.asList("staff", "faculty"));
+    credentials.put("age", 42);
+
+    String data = this.issuer.issue("alphabet_key", credentials);
+    TokenAttributes attributes = this.decrypt(data);
+
+    assertEquals("auser", attributes.getUsername());
+    assertEquals("\u00c9ric \"Q\" \\ P\u00e9rez\n", attributes.getFirstName());
+    assertEquals(Arrays.asList("staff", "faculty"), attributes.get("groups"));
+    assertEquals("42", attributes.get("age"));
+    assertEquals(1L, this.issuer.getIssued());
+  }
+
+  @Test
+  public void testUnknownService() throws Exception {
+    assertNull(this.issuer.issue("number_key", Collections.singletonMap("username", "auser")));
+
+    this.key.setValidity(0L, System.currentTimeMillis() - 1000L);
+    assertNull(this.issuer.issue("alphabet_key", Collections.singletonMap("username", "auser")));
+  }
+
+  @Test
+  public void testConcurrentIssue() throws Exception {
+    final int perThread = 500;
+    final List<String> tokens = Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i += 1) {
+      final int thread = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < perThread; j += 1) {
+              tokens.add(issuer.issue("alphabet_key", Collections.singletonMap("username", "user" + thread + "-" + j)));
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(threads.length * perThread, tokens.size());
+    Set<String> unique = new HashSet<String>(tokens);
+    assertEquals(tokens.size(), unique.size());
+    Set<String> usernames = new HashSet<String>();
+    for (String token : tokens) {
+      usernames.add(this.decrypt(token).getUsername());
+    }
+    assertEquals(tokens.size(), usernames.size());
+  }
+
+  private TokenAttributes decrypt(String data) {
+    Token token = new Token(data);
+    token.setKey(this.key);
+    return token.getAttributes();
+  }
+}
@@ -0,0 +1,95 @@
+package edu.clayton.cas.support.token;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TokenParserTest {
+  private static TokenParser parserFor(String json) throws Exception {
+    byte[] bytes = json.getBytes("UTF-8");
+    return new TokenParser(bytes, 0, bytes.length);
+  }
+
+  @Test
+  public void testToken() throws Exception {
+    TokenParser parser = parserFor(
+        "{ \"extra\" : {\"a\" : [1, \"}\"]},\n" +
+        "  \"generated\" : 1338575644294,\n" +
+        "  \"credentials\" : {\n" +
+        "    \"username\" : \"auser\",\n" +
+        "    \"name\" : \"\\u00c9ric \\\"Q\\\" P\u00e9rez\",\n" +
+        "    \"age\" : 42,\n" +
+        "    \"admin\" : false,\n" +
+        "    \"groups\" : [\"one\", \"two\", 3],\n" +
+        "    \"nested\" : {\"x\":1}\n" +
+        "  }\n" +
+        "}"
+    );
+    Map<String, Object> credentials = new HashMap<String, Object>();
+
+    assertTrue(parser.parse(credentials, Long.MIN_VALUE, Long.MAX_VALUE));
+    assertEquals(1338575644294L, parser.generated());
+    assertEquals("auser", credentials.get("username"));
+    assertEquals("\u00c9ric \"Q\" P\u00e9rez", credentials.get("name"));
+    assertEquals("42", credentials.get("age"));
+    assertEquals("false", credentials.get("admin"));
+    assertEquals("{\"x\":1}", credentials.get("nested"));
+
+    List groups = (List) credentials.get("groups");
+    assertEquals(3, groups.size());
+    assertEquals("[one, two, 3]", groups.toString());
+  }
+
+  @Test
+  public void testStopsEarlyOutsideDrift() throws Exception {
+    // The credentials are not valid JSON, so this only passes if parsing
+    // stops at the generated timestamp.
+    TokenParser parser = parserFor("{\"generated\":1000,\"credentials\":{broken");
+    Map<String, Object> credentials = new HashMap<String, Object>();
+
+    assertFalse(parser.parse(credentials, 2000, 3000));
+    assertTrue(parser.hasGenerated());
+    assertEquals(1000, parser.generated());
+    assertTrue(credentials.isEmpty());
+  }
+
+  @Test(expected = JSONException.class)
+  public void testMissingCredentials() throws Exception {
+    parserFor("{\"generated\":1000}").parse(
+        new HashMap<String, Object>(),
+        Long.MIN_VALUE,
+        Long.MAX_VALUE
+    );
+  }
+
+  @Test(expected = JSONException.class)
+  public void testMalformed() throws Exception {
+    parserFor("{\"generated\":1000,\"credentials\":{\"username\":\"auser}}").parse(
+        new HashMap<String, Object>(),
+        Long.MIN_VALUE,
+        Long.MAX_VALUE
+    );
+  }
+
+  @Test(expected = JSONException.class)
+  public void testTrailingData() throws Exception {
+    parserFor("{\"generated\":1000,\"credentials\":{\"username\":\"auser\"}}\u0004x").parse(
+        new HashMap<String, Object>(),
+        Long.MIN_VALUE,
+        Long.MAX_VALUE
+    );
+  }
+
+  @Test
+  public void testTrailingWhitespace() throws Exception {
+    String json = "{\"generated\":1000,\"credentials\":{\"username\":\"auser\"}}";
+    TokenParser parser = parserFor(json + " \r\n");
+    assertTrue(parser.parse(new HashMap<String, Object>(), Long.MIN_VALUE, Long.MAX_VALUE));
+    assertEquals(json.length(), parser.objectEnd());
+  }
+}
@@ -59,4 +59,38 @@ public class TokenTest {
     tokenAttributes.put("answer", 42);
     assertEquals(42, tokenAttributes.get("answer"));
   }
+
+  @Test
+  public void gcmToken() throws Exception {
+    JSONObject tokenData = new JSONObject();
+    tokenData.put("generated", this.generatedTime);
+    tokenData.put("credentials", new JSONObject("{\"username\":\"auser\"}"));
+
+    Token token = new Token(Crypto.encryptWithKeyUsingGcm(tokenData.toString(), this.clientKey));
+    assertEquals(Crypto.VERSION_AES_GCM, token.getVersion());
+
+    token.setKey(this.serverKey);
+    assertEquals(this.generatedTime, token.getGenerated());
+    assertEquals("auser", token.getAttributes().getUsername());
+  }
+
+  @Test
+  public void legacyTokenVersion() {
+    assertEquals(Crypto.VERSION_AES_CBC, new Token(this.b64tokenData).getVersion());
+  }
+
+  @Test
+  public void expiredToken() throws Exception {
+    JSONObject tokenData = new JSONObject();
+    tokenData.put("generated", this.generatedTime - 120000);
+    tokenData.put("credentials", new JSONObject("{\"username\":\"auser\"}"));
+
+    Token token = new Token(Crypto.encryptWithKey(tokenData.toString(), "abcdefghijklmnop"));
+    token.setKey(this.serverKey);
+    token.setMaxDrift(60);
+
+    assertNull(token.getAttributes());
+    assertTrue(token.isExpired());
+    assertEquals(this.generatedTime - 120000, token.getGenerated());
+  }
 }
\ No newline at end of file
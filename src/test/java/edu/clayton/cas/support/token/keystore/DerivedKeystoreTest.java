@@ -0,0 +1,129 @@
+package edu.clayton.cas.support.token.keystore;
+
+import edu.clayton.cas.support.token.Token;
+import edu.clayton.cas.support.token.util.Crypto;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class DerivedKeystoreTest {
+  private static final String MASTER_KEY = "a master key of some length";
+
+  private DerivedKeystore keystore;
+
+  @Before
+  public void buildStore() {
+    this.keystore = new DerivedKeystore();
+    this.keystore.setMasterKey(MASTER_KEY);
+  }
+
+  @Test
+  public void testDerivedKeys() throws Exception {
+    Key fooKey = this.keystore.getKeyNamed("foo");
+
+    assertEquals("foo", fooKey.name());
+    assertEquals(Crypto.deriveAes128Key(MASTER_KEY.getBytes("UTF-8"), "foo"), new String(fooKey.data(), "UTF-8"));
+    fooKey.confirm();
+    assertSame(fooKey, this.keystore.getKeyNamed("foo"));
+    assertEquals(1L, this.keystore.getDerivations());
+
+    Key rotated = this.keystore.getKey("foo", "2");
+    assertEquals("foo#2", rotated.qualifiedName());
+    assertFalse(new String(rotated.data()).equals(new String(fooKey.data())));
+
+    String plainText = "{\"generated\":1,\"credentials\":{\"username\":\"auser\"}}";
+    String encrypted = Crypto.encryptWithKeyUsingGcm(plainText, rotated);
+    assertEquals(plainText, Crypto.decryptEncodedStringWithKey(encrypted, this.keystore.getKey("foo", "2")));
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    this.keystore.setCacheSize(2);
+
+    Key fooKey = this.keystore.getKeyNamed("foo");
+    fooKey.confirm();
+    this.keystore.getKeyNamed("bar").confirm();
+    this.keystore.getKeyNamed("foo");
+    this.keystore.getKeyNamed("baz").confirm();
+
+    assertEquals(2, this.keystore.getCachedKeys());
+    // "bar" was least recently used, so "foo" is still cached.
+    assertSame(fooKey, this.keystore.getKeyNamed("foo"));
+    assertEquals(3L, this.keystore.getDerivations());
+  }
+
+  @Test
+  public void testMadeUpNamesLeaveNothingBehind() throws Exception {
+    // Every service name a client makes up has a key, but no token
+    // decrypts under it.
+    String garbage = Crypto.encryptWithKeyUsingGcm(
+        "{\"generated\":1,\"credentials\":{\"username\":\"auser\"}}",
+        new Key("other", "abcdefghijklmnop")
+    );
+    int before = Crypto.cachedKeys();
+    for (int i = 0; i < 5000; i += 1) {
+      Key key = this.keystore.getKeyNamed("service" + i);
+      assertTrue(key.isProvisional());
+
+      Token token = new Token(garbage);
+      token.setKey(key);
+      assertNull(token.getAttributes());
+      assertTrue(key.isDestroyed());
+    }
+
+    assertEquals(0, this.keystore.getCachedKeys());
+    assertEquals(before, Crypto.cachedKeys());
+  }
+
+  @Test
+  public void testKeyIsCachedOnceATokenDecrypts() throws Exception {
+    String plainText = "{\"generated\":1,\"credentials\":{\"username\":\"auser\"}}";
+    Key key = this.keystore.getKeyNamed("service");
+    String encrypted = Crypto.encryptWithKeyUsingGcm(plainText, key);
+
+    Token token = new Token(encrypted);
+    token.setKey(key);
+    assertEquals("auser", token.getAttributes().getUsername());
+
+    assertFalse(key.isProvisional());
+    assertEquals(1, this.keystore.getCachedKeys());
+    assertSame(key, this.keystore.getKeyNamed("service"));
+  }
+
+  @Test
+  public void testCipherStateIsBounded() throws Exception {
+    this.keystore.setCacheSize(100);
+    int before = Crypto.cachedKeys();
+
+    String plainText = "{\"generated\":1,\"credentials\":{\"username\":\"auser\"}}";
+    for (int i = 0; i < 5000; i += 1) {
+      Key key = this.keystore.getKeyNamed("service" + i);
+      key.confirm();
+      String encrypted = Crypto.encryptWithKeyUsingGcm(plainText, key);
+      assertEquals(plainText, Crypto.decryptEncodedStringWithKey(encrypted, key));
+    }
+
+    assertEquals(100, this.keystore.getCachedKeys());
+    assertTrue("cipher cache grew by " + (Crypto.cachedKeys() - before),
+        Crypto.cachedKeys() - before <= 100);
+  }
+
+  @Test
+  public void testStoredKeysTakePrecedence() throws Exception {
+    URL url = this.getClass().getClassLoader().getResource("testStore.json");
+    this.keystore.setKeystore(new JSONKeystore(new File(url.toURI())));
+
+    assertTrue(new String(this.keystore.getKeyNamed("foo").data()).equals("123456789012345"));
+    assertNotNull(this.keystore.getKeyNamed("unknown"));
+    assertEquals(1L, this.keystore.getDerivations());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShortMasterKey() {
+    new DerivedKeystore().setMasterKey("too short");
+  }
+}
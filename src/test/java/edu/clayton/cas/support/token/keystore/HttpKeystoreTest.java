@@ -0,0 +1,149 @@
+package edu.clayton.cas.support.token.keystore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class HttpKeystoreTest {
+  private HttpServer server;
+  private URL url;
+
+  private volatile String body = "[{\"name\": \"foo\", \"data\": \"123456789012345\"}]";
+  private volatile int status = 200;
+  private volatile int requests = 0;
+
+  @Before
+  public void startServer() throws Exception {
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    this.server.createContext("/keys", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requests += 1;
+        String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+
+        if (status != 200) {
+          exchange.sendResponseHeaders(status, -1);
+        } else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          byte[] bytes = body.getBytes("UTF-8");
+          exchange.getResponseHeaders().set("ETag", etag);
+          exchange.sendResponseHeaders(200, bytes.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(bytes);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    this.server.start();
+    this.url = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/keys");
+  }
+
+  @After
+  public void stopServer() {
+    this.server.stop(0);
+  }
+
+  @Test
+  public void testConditionalPoll() {
+    HttpKeystore keystore = this.newKeystore(null);
+
+    assertNotNull(keystore.getKeyNamed("foo"));
+    assertEquals(1, this.requests);
+
+    assertTrue(keystore.poll());
+    assertEquals(1L, keystore.getNotModifiedCount());
+
+    this.body = "[{\"name\": \"bar\", \"id\": \"2\", \"data\": \"098765432109876\"}]";
+    assertTrue(keystore.poll());
+    assertNull(keystore.getKeyNamed("foo"));
+    assertNotNull(keystore.getKey("bar", "2"));
+    assertEquals(1L, keystore.getNotModifiedCount());
+    assertEquals(3, this.requests);
+  }
+
+  @Test
+  public void testKeepsKeysOnFailure() {
+    HttpKeystore keystore = this.newKeystore(null);
+    Key fooKey = keystore.getKeyNamed("foo");
+
+    this.status = 500;
+    assertFalse(keystore.poll());
+    assertSame(fooKey, keystore.getKeyNamed("foo"));
+
+    this.status = 200;
+    this.body = "[{\"name\": \"foo\", ";
+    assertFalse(keystore.poll());
+    assertSame(fooKey, keystore.getKeyNamed("foo"));
+    assertEquals(2L, keystore.getPollFailures());
+  }
+
+  @Test
+  public void testCacheFile() throws Exception {
+    File cacheFile = File.createTempFile("keystore", ".json");
+    cacheFile.delete();
+    cacheFile.deleteOnExit();
+
+    this.newKeystore(cacheFile);
+    assertTrue(cacheFile.exists());
+
+    // A cold start reads the cache without waiting for the server.
+    this.server.stop(0);
+    HttpKeystore keystore = this.newKeystore(cacheFile);
+    assertNotNull(keystore.getKeyNamed("foo"));
+    assertEquals(0L, keystore.getPollCount());
+  }
+
+  @Test
+  public void testColdStartPollIsConditional() throws Exception {
+    File cacheFile = File.createTempFile("keystore", ".json");
+    cacheFile.delete();
+    cacheFile.deleteOnExit();
+    new File(cacheFile.getPath() + ".validators").deleteOnExit();
+
+    this.newKeystore(cacheFile);
+    assertEquals(1, this.requests);
+
+    HttpKeystore keystore = this.newKeystore(cacheFile);
+    assertTrue(keystore.poll());
+    assertEquals(1L, keystore.getNotModifiedCount());
+    assertEquals(2, this.requests);
+  }
+
+  @Test
+  public void testMaxBodySize() {
+    HttpKeystore keystore = this.newKeystore(null);
+    Key fooKey = keystore.getKeyNamed("foo");
+
+    keystore.setMaxBodySize(16);
+    this.body = "[{\"name\": \"bar\", \"data\": \"098765432109876\"}]";
+    assertFalse(keystore.poll());
+    assertSame(fooKey, keystore.getKeyNamed("foo"));
+    assertNull(keystore.getKeyNamed("bar"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testReadOnly() {
+    this.newKeystore(null).addKey(new Key("newKey", "123456789012345"));
+  }
+
+  private HttpKeystore newKeystore(File cacheFile) {
+    HttpKeystore keystore = new HttpKeystore();
+    keystore.setUrl(this.url);
+    keystore.setCacheFile(cacheFile);
+    keystore.setPollInterval(0);
+    keystore.afterPropertiesSet();
+    return keystore;
+  }
+}
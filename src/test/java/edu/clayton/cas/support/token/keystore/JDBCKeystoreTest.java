@@ -0,0 +1,219 @@
+package edu.clayton.cas.support.token.keystore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class JDBCKeystoreTest {
+  private static final String URL = "jdbc:hsqldb:mem:keystoretest";
+
+  private Connection connection;
+  private JDBCKeystore keystore;
+
+  @Before
+  public void createTable() throws Exception {
+    boolean haveDriver;
+    try {
+      Class.forName("org.hsqldb.jdbc.JDBCDriver");
+      haveDriver = true;
+    } catch (ClassNotFoundException e) {
+      haveDriver = false;
+    }
+    assumeTrue(haveDriver);
+
+    // Holding a connection keeps the in-memory database alive.
+    this.connection = DriverManager.getConnection(URL, "SA", "");
+    this.execute(
+        "CREATE TABLE token_keys (name VARCHAR(255) NOT NULL, key_id VARCHAR(255), " +
+        "data VARCHAR(255) NOT NULL, not_before BIGINT, not_after BIGINT, " +
+        "rate_limit INTEGER, burst INTEGER, updated BIGINT NOT NULL)"
+    );
+    this.execute("INSERT INTO token_keys (name, data, updated) VALUES ('foo', '123456789012345', 1)");
+    this.execute(
+        "INSERT INTO token_keys (name, data, rate_limit, burst, updated) " +
+        "VALUES ('bar', '098765432109876', 10, 20, 2)"
+    );
+
+    this.keystore = new JDBCKeystore();
+    this.keystore.setDataSource(new DriverManagerDataSource());
+    this.keystore.setRefreshInterval(0);
+    this.keystore.afterPropertiesSet();
+  }
+
+  @After
+  public void dropTable() throws Exception {
+    if (this.connection != null) {
+      this.keystore.destroy();
+      this.execute("DROP TABLE token_keys IF EXISTS");
+      this.connection.close();
+    }
+  }
+
+  @Test
+  public void testBulkLoad() {
+    assertEquals(2, this.keystore.keys().size());
+    assertEquals("123456789012345", new String(this.keystore.getKeyNamed("foo").data()));
+    assertEquals(10, this.keystore.getKeyNamed("bar").rateLimit());
+    assertEquals(20, this.keystore.getKeyNamed("bar").burst());
+    assertEquals(1, this.keystore.getRefreshCount());
+  }
+
+  @Test
+  public void testReadThrough() throws Exception {
+    this.execute("INSERT INTO token_keys (name, data, updated) VALUES ('baz', 'abcdefghijklmno', 3)");
+
+    assertNull(this.keystore.getKeyNamed("missing"));
+    // A missing name is not looked up again until the next refresh.
+    assertNull(this.keystore.getKeyNamed("missing"));
+    assertEquals(1, this.keystore.getReadThroughCount());
+
+    assertEquals("abcdefghijklmno", new String(this.keystore.getKeyNamed("baz").data()));
+    assertEquals(2, this.keystore.getReadThroughCount());
+    assertNotNull(this.keystore.getKeyNamed("baz"));
+    assertEquals(2, this.keystore.getReadThroughCount());
+  }
+
+  @Test
+  public void testMissingNamesDropOldest() {
+    for (int i = 0; i < 5000; i += 1) {
+      assertNull(this.keystore.getKeyNamed("missing-" + i));
+    }
+    long count = this.keystore.getReadThroughCount();
+
+    // The newest missing names are still remembered; the oldest are not.
+    assertNull(this.keystore.getKeyNamed("missing-4999"));
+    assertEquals(count, this.keystore.getReadThroughCount());
+    assertNull(this.keystore.getKeyNamed("missing-0"));
+    assertEquals(count + 1, this.keystore.getReadThroughCount());
+  }
+
+  @Test
+  public void testReadThroughFoldedIntoRefresh() throws Exception {
+    this.execute("INSERT INTO token_keys (name, data, updated) VALUES ('baz', 'abcdefghijklmno', 3)");
+
+    assertNotNull(this.keystore.getKeyNamed("baz"));
+    // A read-through does not copy the snapshot.
+    assertEquals(2, this.keystore.size());
+
+    this.keystore.setFullRefreshEvery(1);
+    assertTrue(this.keystore.refresh());
+    assertEquals(3, this.keystore.size());
+    assertEquals("abcdefghijklmno", new String(this.keystore.getKeyNamed("baz").data()));
+  }
+
+  @Test
+  public void testDeltaRefresh() throws Exception {
+    this.keystore.setFullRefreshEvery(100);
+    this.execute("UPDATE token_keys SET data = 'zyxwvutsrqponml', updated = 5 WHERE name = 'foo'");
+    this.execute("DELETE FROM token_keys WHERE name = 'bar'");
+
+    assertTrue(this.keystore.refresh());
+    assertEquals("zyxwvutsrqponml", new String(this.keystore.getKeyNamed("foo").data()));
+    // Deletes are only seen by a full refresh.
+    assertNotNull(this.keystore.getKeyNamed("bar"));
+
+    this.keystore.setFullRefreshEvery(1);
+    assertTrue(this.keystore.refresh());
+    assertNull(this.keystore.getKeyNamed("bar"));
+  }
+
+  @Test
+  public void testDeltaRefreshSeesLateRows() throws Exception {
+    this.keystore.setFullRefreshEvery(100);
+    Key fooKey = this.keystore.getKeyNamed("foo");
+
+    // Written by a node whose clock is behind, after "bar" was read.
+    this.execute("INSERT INTO token_keys (name, data, updated) VALUES ('late', 'abcdefghijklmno', 1)");
+
+    assertTrue(this.keystore.refresh());
+    assertEquals(3, this.keystore.size());
+    // Rows read again unchanged keep their keys.
+    assertSame(fooKey, this.keystore.getKeyNamed("foo"));
+    assertFalse(fooKey.isDestroyed());
+  }
+
+  @Test
+  public void testKeepsLastGoodSnapshot() throws Exception {
+    this.execute("DROP TABLE token_keys");
+
+    assertFalse(this.keystore.refresh());
+    assertEquals(1, this.keystore.getRefreshFailures());
+    assertNotNull(this.keystore.getKeyNamed("foo"));
+    assertNotNull(this.keystore.getKeyNamed("bar"));
+  }
+
+  @Test
+  public void testAddKey() {
+    Key key = new Key("baz", "abcdefghijklmno");
+    key.setId("2");
+    this.keystore.addKey(key);
+    this.keystore.addKey(new Key("foo", "zyxwvutsrqponml"));
+
+    JDBCKeystore reloaded = new JDBCKeystore();
+    reloaded.setDataSource(new DriverManagerDataSource());
+    reloaded.setRefreshInterval(0);
+    reloaded.afterPropertiesSet();
+
+    assertEquals(3, reloaded.keys().size());
+    assertEquals("zyxwvutsrqponml", new String(reloaded.getKeyNamed("foo").data()));
+    assertEquals("abcdefghijklmno", new String(reloaded.getKey("baz", "2").data()));
+    assertNull(reloaded.getKey("baz", "1"));
+  }
+
+  private void execute(String sql) throws SQLException {
+    Statement statement = this.connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static class DriverManagerDataSource implements DataSource {
+    public Connection getConnection() throws SQLException {
+      return DriverManager.getConnection(URL, "SA", "");
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+      return DriverManager.getConnection(URL, username, password);
+    }
+
+    public PrintWriter getLogWriter() {
+      return null;
+    }
+
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    public void setLoginTimeout(int seconds) {
+    }
+
+    public int getLoginTimeout() {
+      return 0;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+    }
+
+    public <T> T unwrap(Class<T> type) throws SQLException {
+      throw new SQLException("Not a wrapper");
+    }
+
+    public boolean isWrapperFor(Class<?> type) {
+      return false;
+    }
+  }
+}
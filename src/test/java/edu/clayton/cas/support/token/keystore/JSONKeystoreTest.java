@@ -1,11 +1,16 @@
 package edu.clayton.cas.support.token.keystore;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 
 import static org.junit.Assert.*;
 
@@ -18,6 +23,12 @@ public class JSONKeystoreTest {
     URL url = this.getClass().getClassLoader().getResource("testStore.json");
     this.keystoreFile = new File(url.toURI());
     this.keystore = new JSONKeystore(this.keystoreFile);
+    Key.retirementDelay = 50L;
+  }
+
+  @After
+  public void restoreRetirementDelay() {
+    Key.retirementDelay = Key.DEFAULT_RETIREMENT_DELAY;
   }
 
   @Test
@@ -37,7 +48,17 @@ public class JSONKeystoreTest {
   }
 
   @Test
-  public void testAddRemoveKey() {
+  public void testRateLimits() {
+    Key fooKey = this.keystore.getKeyNamed("foo");
+    Key barKey = this.keystore.getKeyNamed("bar");
+
+    assertEquals(0, fooKey.rateLimit());
+    assertEquals(10, barKey.rateLimit());
+    assertEquals(20, barKey.burst());
+  }
+
+  @Test
+  public void testAddRemoveKey() throws Exception {
     this.keystore.addKey(new Key("newKey", "123456789012345"));
     Key newKey = this.keystore.getKeyNamed("newKey");
 
@@ -47,6 +68,45 @@ public class JSONKeystoreTest {
 
     this.keystore.removeKeyNamed("newKey");
     assertNull(this.keystore.getKeyNamed("newKey"));
+    // Logins that already hold the key can still use it for a while.
+    assertFalse(newKey.isDestroyed());
+    awaitDestroyed(newKey);
+  }
+
+  @Test
+  public void testSnapshotAndBulkChanges() {
+    int size = this.keystore.size();
+    Collection<Key> before = this.keystore.snapshot();
+    assertEquals(size, before.size());
+    assertSame(before, this.keystore.snapshot());
+
+    Key first = new Key("rotated", "123456789012345");
+    first.setId("1");
+    Key second = new Key("rotated", "abcdefghijklmno");
+    second.setId("2");
+    this.keystore.addKeys(Arrays.asList(first, second, new Key("newKey", "098765432109876")));
+
+    assertEquals(size + 3, this.keystore.size());
+    assertEquals(size, before.size());
+    assertEquals(size + 3, this.keystore.snapshot().size());
+
+    final ArrayList<String> visited = new ArrayList<String>();
+    this.keystore.forEachKey(new KeyVisitor() {
+      public void visit(Key key) {
+        visited.add(key.qualifiedName());
+      }
+    });
+    assertEquals(size + 3, visited.size());
+    assertTrue(visited.contains("rotated#2"));
+
+    this.keystore.removeKeys(Arrays.asList("rotated", "newKey", "missing"));
+    assertEquals(size, this.keystore.size());
+    assertNull(this.keystore.getKey("rotated", "1"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSnapshotIsUnmodifiable() {
+    this.keystore.snapshot().clear();
   }
 
   /**
@@ -64,4 +124,183 @@ public class JSONKeystoreTest {
     assertEquals("foo", fooKey.name());
     assertTrue(new String(fooKey.data()).equals("123456789012345"));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testKeyIds() throws Exception {
+    File file = File.createTempFile("keystore", ".json");
+    file.deleteOnExit();
+    this.writeStore(file, "[{\"name\": \"foo\", \"id\": \"1\", \"data\": \"123456789012345\", \"notAfter\": 1000}, " +
+        "{\"name\": \"foo\", \"id\": \"2\", \"data\": \"abcdefghijklmno\"}]");
+
+    JSONKeystore jsonKeystore = new JSONKeystore(file);
+    assertEquals(2, jsonKeystore.keys().size());
+
+    Key first = jsonKeystore.getKey("foo", "1");
+    Key second = jsonKeystore.getKey("foo", "2");
+    assertEquals("foo#1", first.qualifiedName());
+    assertFalse(first.isValidAt(System.currentTimeMillis()));
+    assertTrue(new String(second.data()).equals("abcdefghijklmno"));
+    assertTrue(second.isValidAt(System.currentTimeMillis()));
+    assertSame(first, jsonKeystore.getKeyNamed("foo"));
+    assertNull(jsonKeystore.getKey("foo", "3"));
+
+    jsonKeystore.removeKeyNamed("foo");
+    assertNull(jsonKeystore.getKey("foo", "2"));
+  }
+
+  @Test
+  public void testReloadKeepsKeysOnParseError() throws Exception {
+    File file = File.createTempFile("keystore", ".json");
+    file.deleteOnExit();
+    this.writeStore(file, "[{\"name\": \"foo\", \"data\": \"123456789012345\"}]");
+
+    JSONKeystore jsonKeystore = new JSONKeystore(file);
+    Key fooKey = jsonKeystore.getKeyNamed("foo");
+    assertNotNull(fooKey);
+
+    this.writeStore(file, "[{\"name\": \"foo\", ");
+    assertFalse(jsonKeystore.loadStoreFile());
+    assertSame(fooKey, jsonKeystore.getKeyNamed("foo"));
+    assertEquals(1L, jsonKeystore.getReloadFailures());
+
+    this.writeStore(file, "[{\"name\": \"bar\", \"data\": \"098765432109876\"}]");
+    assertTrue(jsonKeystore.loadStoreFile());
+    assertNull(jsonKeystore.getKeyNamed("foo"));
+    awaitDestroyed(fooKey);
+    assertNotNull(jsonKeystore.getKeyNamed("bar"));
+    assertEquals(2L, jsonKeystore.getReloadCount());
+  }
+
+  @Test
+  public void testWatchedReload() throws Exception {
+    File file = File.createTempFile("keystore", ".json");
+    file.deleteOnExit();
+    this.writeStore(file, "[{\"name\": \"foo\", \"data\": \"123456789012345\"}]");
+
+    JSONKeystore jsonKeystore = new JSONKeystore(file);
+    jsonKeystore.setWatchInterval(1);
+    try {
+      this.writeStore(file, "[{\"name\": \"foo\", \"data\": \"123456789012345\"}, " +
+          "{\"name\": \"bar\", \"data\": \"098765432109876\"}]");
+
+      long deadline = System.currentTimeMillis() + 10000L;
+      while (jsonKeystore.getKeyNamed("bar") == null && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+
+      assertNotNull(jsonKeystore.getKeyNamed("bar"));
+      assertTrue(jsonKeystore.getLastReloadNanos() > 0);
+    } finally {
+      jsonKeystore.stopWatching();
+    }
+  }
+
+  @Test
+  public void testJournal() throws Exception {
+    File file = File.createTempFile("keystore", ".json");
+    File journalFile = new File(file.getPath() + ".journal");
+    file.deleteOnExit();
+    journalFile.deleteOnExit();
+    this.writeStore(file, "[{\"name\": \"foo\", \"data\": \"123456789012345\"}]");
+
+    JSONKeystore jsonKeystore = new JSONKeystore(file);
+    jsonKeystore.setJournalFile(journalFile);
+    Key newKey = new Key("newKey", "abcdefghijklmno");
+    newKey.setId("1");
+    newKey.setRateLimit(5, 10);
+    jsonKeystore.addKey(newKey);
+    jsonKeystore.removeKeyNamed("foo");
+    assertEquals(2L, jsonKeystore.getJournalSyncs());
+
+    // The store file is untouched until the journal is compacted.
+    assertNotNull(new JSONKeystore(file).getKeyNamed("foo"));
+
+    JSONKeystore replayed = new JSONKeystore(file);
+    replayed.setJournalFile(journalFile);
+    assertNull(replayed.getKeyNamed("foo"));
+    Key replayedKey = replayed.getKey("newKey", "1");
+    assertTrue(new String(replayedKey.data()).equals("abcdefghijklmno"));
+    assertEquals(5, replayedKey.rateLimit());
+    assertEquals(10, replayedKey.burst());
+
+    jsonKeystore.saveStoreFile();
+    assertEquals(0L, journalFile.length());
+    JSONKeystore compacted = new JSONKeystore(file);
+    assertNull(compacted.getKeyNamed("foo"));
+    assertNotNull(compacted.getKey("newKey", "1"));
+  }
+
+  @Test
+  public void testJournalIgnoresIncompleteRecord() throws Exception {
+    File file = File.createTempFile("keystore", ".json");
+    File journalFile = new File(file.getPath() + ".journal");
+    file.deleteOnExit();
+    journalFile.deleteOnExit();
+    this.writeStore(file, "[]");
+    this.writeStore(journalFile, "{\"op\": \"add\", \"key\": {\"name\": \"foo\", \"data\": \"123456789012345\"}}\n" +
+        "{\"op\": \"add\", \"key\": {\"name\": \"ba");
+
+    JSONKeystore jsonKeystore = new JSONKeystore(file);
+    jsonKeystore.setJournalFile(journalFile);
+    assertNotNull(jsonKeystore.getKeyNamed("foo"));
+    assertEquals(1, jsonKeystore.keys().size());
+
+    // New records are not appended to the incomplete one.
+    jsonKeystore.addKey(new Key("bar", "098765432109876"));
+    JSONKeystore replayed = new JSONKeystore(file);
+    replayed.setJournalFile(journalFile);
+    assertNotNull(replayed.getKeyNamed("foo"));
+    assertNotNull(replayed.getKeyNamed("bar"));
+  }
+
+  @Test
+  public void testJournalGroupCommitAndCompaction() throws Exception {
+    File file = File.createTempFile("keystore", ".json");
+    File journalFile = new File(file.getPath() + ".journal");
+    file.deleteOnExit();
+    journalFile.deleteOnExit();
+    this.writeStore(file, "[]");
+
+    final JSONKeystore jsonKeystore = new JSONKeystore(file);
+    jsonKeystore.setJournalFile(journalFile);
+    jsonKeystore.setCompactThreshold(50);
+
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i += 1) {
+      final int thread = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 10; j += 1) {
+            jsonKeystore.addKey(new Key("key" + thread + "-" + j, "123456789012345"));
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(80, jsonKeystore.keys().size());
+    assertTrue(jsonKeystore.getJournalSyncs() <= 80L);
+
+    JSONKeystore replayed = new JSONKeystore(file);
+    replayed.setJournalFile(journalFile);
+    assertEquals(80, replayed.keys().size());
+    // The journal was compacted into the store file at least once.
+    assertTrue(new JSONKeystore(file).keys().size() >= 50);
+  }
+
+  private static void awaitDestroyed(Key key) throws InterruptedException {
+    for (int i = 0; i < 200 && !key.isDestroyed(); i += 1) {
+      Thread.sleep(10);
+    }
+    assertTrue(key.isDestroyed());
+  }
+
+  private void writeStore(File file, String json) throws Exception {
+    FileWriter writer = new FileWriter(file);
+    writer.write(json);
+    writer.close();
+  }
+}
@@ -1,9 +1,11 @@
 package edu.clayton.cas.support.token.keystore;
 
+import edu.clayton.cas.support.token.util.Crypto;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 public class KeyTest {
@@ -28,4 +30,76 @@ public class KeyTest {
     assertTrue(key1.equals(key2));
     assertFalse(key1.equals(key3));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testDataIsCopied() {
+    byte[] data = "123456789012345".getBytes();
+    Key key = new Key("test", data);
+
+    data[0] = 'x';
+    assertTrue(new String(key.data()).equals("123456789012345"));
+
+    key.data()[0] = 'x';
+    assertTrue(new String(key.data()).equals("123456789012345"));
+    assertNotSame(key.data(), key.data());
+    assertEquals(15, key.length());
+  }
+
+  @Test
+  public void testDestroy() {
+    Key key = new Key("test", "123456789012345");
+    Key copy = new Key("test", "123456789012345");
+    assertTrue(key.dataEquals(copy));
+
+    key.destroy();
+    assertTrue(key.isDestroyed());
+    assertEquals(15, key.length());
+    for (byte b : key.data()) {
+      assertEquals(0, b);
+    }
+    assertFalse(key.dataEquals(copy));
+    assertFalse(copy.dataEquals(key));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDestroyedKeyHasNoSpec() {
+    Key key = new Key("test", "1234567890123456");
+    assertEquals("AES", key.secretKeySpec("AES").getAlgorithm());
+
+    key.destroy();
+    key.secretKeySpec("AES");
+  }
+
+  @Test
+  public void testDestroyDropsCipherState() throws Exception {
+    Key key = new Key("test", "1234567890123456");
+    Crypto.encryptWithKeyUsingGcm("{}", key);
+    int cached = Crypto.cachedKeys();
+
+    key.destroy();
+    assertEquals(cached - 1, Crypto.cachedKeys());
+  }
+
+  @Test
+  public void testRetire() throws Exception {
+    Key.retirementDelay = 50L;
+    try {
+      Key key = new Key("test", "1234567890123456");
+      String encrypted = Crypto.encryptWithKeyUsingGcm("{}", key);
+      int cached = Crypto.cachedKeys();
+
+      key.retire();
+      assertEquals(cached - 1, Crypto.cachedKeys());
+      // A login that holds the key can still finish with it.
+      assertFalse(key.isDestroyed());
+      assertEquals("{}", Crypto.decryptEncodedStringWithKey(encrypted, key));
+
+      for (int i = 0; i < 200 && !key.isDestroyed(); i += 1) {
+        Thread.sleep(10);
+      }
+      assertTrue(key.isDestroyed());
+    } finally {
+      Key.retirementDelay = Key.DEFAULT_RETIREMENT_DELAY;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package edu.clayton.cas.support.token.keystore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MappedKeystoreTest {
+  private File storeFile;
+
+  @Before
+  public void buildStore() throws Exception {
+    URL url = this.getClass().getClassLoader().getResource("testStore.json");
+    JSONKeystore jsonKeystore = new JSONKeystore(new File(url.toURI()));
+
+    this.storeFile = File.createTempFile("keystore", ".bin");
+    this.storeFile.deleteOnExit();
+    MappedKeystore.write(jsonKeystore.keys(), this.storeFile);
+  }
+
+  @Test
+  public void testKeys() {
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+
+    Key fooKey = keystore.getKeyNamed("foo");
+    Key barKey = keystore.getKeyNamed("bar");
+
+    assertEquals("foo", fooKey.name());
+    assertTrue(new String(fooKey.data()).equals("123456789012345"));
+    assertEquals(0, fooKey.rateLimit());
+
+    assertEquals("bar", barKey.name());
+    assertTrue(new String(barKey.data()).equals("098765432109876"));
+    assertEquals(10, barKey.rateLimit());
+    assertEquals(20, barKey.burst());
+
+    assertNull(keystore.getKeyNamed("baz"));
+
+    ArrayList<Key> keys = keystore.keys();
+    assertEquals(3, keys.size());
+    assertEquals("bar", keys.get(0).name());
+    assertEquals("foobar", keys.get(2).name());
+  }
+
+  @Test
+  public void testLargeStore() throws Exception {
+    ArrayList<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < 5000; i += 1) {
+      keys.add(new Key("service-" + i, String.format("%016d", i)));
+    }
+    MappedKeystore.write(keys, this.storeFile);
+
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+    for (int i = 0; i < 5000; i += 1) {
+      Key key = keystore.getKeyNamed("service-" + i);
+      assertNotNull(key);
+      assertEquals(String.format("%016d", i), new String(key.data()));
+    }
+    assertNull(keystore.getKeyNamed("service-5000"));
+  }
+
+  @Test
+  public void testBadFileKeepsStore() throws Exception {
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+
+    File badFile = File.createTempFile("keystore", ".json");
+    badFile.deleteOnExit();
+    FileWriter writer = new FileWriter(badFile);
+    writer.write("[{\"name\": \"foo\", \"data\": \"123456789012345\"}]");
+    writer.close();
+
+    keystore.setStoreFile(badFile);
+    assertNotNull(keystore.getKeyNamed("foo"));
+  }
+
+  @Test
+  public void testTruncatedFileKeepsStore() throws Exception {
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+
+    byte[] contents = Files.readAllBytes(this.storeFile.toPath());
+    File badFile = File.createTempFile("keystore", ".bin");
+    badFile.deleteOnExit();
+    Files.write(badFile.toPath(), Arrays.copyOf(contents, contents.length - 20));
+
+    keystore.setStoreFile(badFile);
+    assertFalse(keystore.loadStoreFile());
+    assertEquals(3, keystore.snapshot().size());
+  }
+
+  @Test
+  public void testBadIndexKeepsStore() throws Exception {
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+
+    byte[] contents = Files.readAllBytes(this.storeFile.toPath());
+    ByteBuffer buffer = ByteBuffer.wrap(contents);
+    for (int offset = 16; ; offset += 4) {
+      if (buffer.getInt(offset) != 0) {
+        // Point a slot into the middle of its entry.
+        buffer.putInt(offset, buffer.getInt(offset) + 1);
+        break;
+      }
+    }
+    File badFile = File.createTempFile("keystore", ".bin");
+    badFile.deleteOnExit();
+    Files.write(badFile.toPath(), contents);
+
+    keystore.setStoreFile(badFile);
+    assertFalse(keystore.loadStoreFile());
+    assertEquals(3, keystore.snapshot().size());
+  }
+
+  @Test
+  public void testSizeAndVisitor() {
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+
+    final ArrayList<String> names = new ArrayList<String>();
+    keystore.forEachKey(new KeyVisitor() {
+      public void visit(Key key) {
+        names.add(key.name());
+      }
+    });
+
+    assertEquals(3, keystore.size());
+    assertEquals(3, names.size());
+    assertEquals("bar", names.get(0));
+    assertEquals(3, keystore.snapshot().size());
+  }
+
+  @Test
+  public void testLookupsShareKey() {
+    MappedKeystore keystore = new MappedKeystore(this.storeFile);
+
+    Key fooKey = keystore.getKeyNamed("foo");
+    assertSame(fooKey, keystore.getKeyNamed("foo"));
+    assertSame(fooKey, keystore.getKey("foo", null));
+  }
+
+  @Test
+  public void testRewriteWhileMapped() throws Exception {
+    long delay = Key.retirementDelay;
+    Key.retirementDelay = 50L;
+    try {
+      MappedKeystore keystore = new MappedKeystore(this.storeFile);
+      Key fooKey = keystore.getKeyNamed("foo");
+
+      ArrayList<Key> keys = new ArrayList<Key>();
+      keys.add(new Key("foo", "abcdefghijklmno"));
+      MappedKeystore.write(keys, this.storeFile);
+
+      // The old mapping is untouched until the file is mapped again.
+      assertSame(fooKey, keystore.getKeyNamed("foo"));
+      assertEquals("123456789012345", new String(fooKey.data()));
+      assertNotNull(keystore.getKeyNamed("bar"));
+
+      assertTrue(keystore.loadStoreFile());
+      assertEquals("abcdefghijklmno", new String(keystore.getKeyNamed("foo").data()));
+      assertNull(keystore.getKeyNamed("bar"));
+
+      for (int i = 0; i < 200 && !fooKey.isDestroyed(); i += 1) {
+        Thread.sleep(10);
+      }
+      assertTrue(fooKey.isDestroyed());
+    } finally {
+      Key.retirementDelay = delay;
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testReadOnly() {
+    new MappedKeystore(this.storeFile).addKey(new Key("newKey", "123456789012345"));
+  }
+}
@@ -0,0 +1,194 @@
+package edu.clayton.cas.support.token.keystore;
+
+import edu.clayton.cas.support.token.util.Crypto;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class TieredKeystoreTest {
+  private MappedKeystore coldKeystore;
+
+  @Before
+  public void buildStore() throws Exception {
+    ArrayList<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < 1000; i += 1) {
+      keys.add(new Key("service" + i, "123456789012345"));
+    }
+
+    File storeFile = File.createTempFile("keystore", ".bin");
+    storeFile.deleteOnExit();
+    MappedKeystore.write(keys, storeFile);
+    this.coldKeystore = new MappedKeystore(storeFile);
+  }
+
+  @Test
+  public void testHitsAndMisses() {
+    TieredKeystore keystore = this.newKeystore(10);
+
+    Key key = keystore.getKeyNamed("service1");
+    assertEquals("service1", key.name());
+    assertSame(key, keystore.getKeyNamed("service1"));
+
+    assertEquals(1L, keystore.getHits());
+    assertEquals(1L, keystore.getMisses());
+    assertEquals(0.5, keystore.getHitRatio(), 0.0);
+    assertEquals(1000, keystore.size());
+  }
+
+  @Test
+  public void testFilterAnswersUnknownServices() {
+    TieredKeystore keystore = this.newKeystore(10);
+
+    for (int i = 0; i < 1000; i += 1) {
+      assertNull(keystore.getKeyNamed("unknown" + i));
+    }
+
+    // About 1% of unknown names get past the filter.
+    assertTrue(keystore.getFilteredMisses() > 950);
+    assertEquals(1000L, keystore.getMisses());
+  }
+
+  @Test(timeout = 10000)
+  public void testUnknownServicesDoNotTakeTheLock() throws Exception {
+    TieredKeystore keystore = this.newKeystore(10);
+    keystore.getKeyNamed("service1");
+
+    Field field = TieredKeystore.class.getDeclaredField("lock");
+    field.setAccessible(true);
+    final ReentrantLock lock = (ReentrantLock) field.get(keystore);
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread holder = new Thread() {
+      public void run() {
+        lock.lock();
+        try {
+          locked.countDown();
+          done.await();
+        } catch (InterruptedException e) {
+          // Let the lock go.
+        } finally {
+          lock.unlock();
+        }
+      }
+    };
+    holder.start();
+    locked.await();
+
+    try {
+      for (int i = 0; i < 1000; i += 1) {
+        assertNull(keystore.getKeyNamed("unknown" + i));
+      }
+      assertNotNull(keystore.getKeyNamed("service1"));
+    } finally {
+      done.countDown();
+      holder.join();
+    }
+  }
+
+  @Test
+  public void testFrequentKeysStayCached() {
+    TieredKeystore keystore = this.newKeystore(10);
+
+    for (int round = 0; round < 5; round += 1) {
+      for (int i = 0; i < 10; i += 1) {
+        keystore.getKeyNamed("service" + i);
+      }
+    }
+    assertEquals(10, keystore.getCachedKeys());
+
+    // A scan of keys asked for once does not flush the popular ones.
+    for (int i = 100; i < 140; i += 1) {
+      assertNotNull(keystore.getKeyNamed("service" + i));
+    }
+    assertTrue(keystore.getRejections() >= 35);
+
+    long hits = keystore.getHits();
+    for (int i = 0; i < 10; i += 1) {
+      keystore.getKeyNamed("service" + i);
+    }
+    assertEquals(hits + 10, keystore.getHits());
+  }
+
+  @Test
+  public void testChangesPassThrough() {
+    JSONKeystore jsonKeystore = new JSONKeystore();
+    jsonKeystore.addKey(new Key("foo", "123456789012345"));
+
+    TieredKeystore keystore = new TieredKeystore();
+    keystore.setKeystore(jsonKeystore);
+    assertNotNull(keystore.getKeyNamed("foo"));
+    assertNull(keystore.getKeyNamed("bar"));
+
+    keystore.addKey(new Key("bar", "098765432109876"));
+    keystore.addKey(new Key("foo", "abcdefghijklmno"));
+    assertNotNull(keystore.getKeyNamed("bar"));
+    assertEquals("abcdefghijklmno", new String(keystore.getKeyNamed("foo").data()));
+    assertNotNull(jsonKeystore.getKeyNamed("bar"));
+  }
+
+  @Test
+  public void testEvictionDropsCipherState() throws Exception {
+    JSONKeystore jsonKeystore = new JSONKeystore();
+    jsonKeystore.addKey(new Key("foo", "1234567890123456"));
+    jsonKeystore.addKey(new Key("bar", "abcdefghijklmnop"));
+    TieredKeystore keystore = new TieredKeystore();
+    keystore.setCacheSize(1);
+    keystore.setKeystore(jsonKeystore);
+
+    Crypto.encryptWithKeyUsingGcm("{}", keystore.getKeyNamed("foo"));
+    int cached = Crypto.cachedKeys();
+
+    // "bar" takes the place of "foo" once it is asked for more often.
+    for (int i = 0; i < 3; i += 1) {
+      keystore.getKeyNamed("bar");
+    }
+    assertEquals(1, keystore.getCachedKeys());
+    assertEquals(cached - 1, Crypto.cachedKeys());
+  }
+
+  @Test
+  public void testConcurrentHits() throws Exception {
+    final TieredKeystore keystore = this.newKeystore(100);
+    final int lookups = 20000;
+    final AtomicInteger wrong = new AtomicInteger();
+
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t += 1) {
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < lookups; i += 1) {
+            String name = "service" + (i % 50);
+            Key key = keystore.getKeyNamed(name);
+            if (key == null || !key.name().equals(name)) {
+              wrong.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(0, wrong.get());
+    assertEquals(50, keystore.getCachedKeys());
+    assertEquals(threads.length * lookups, keystore.getHits() + keystore.getMisses());
+    assertTrue(keystore.getMisses() < threads.length * 50);
+  }
+
+  private TieredKeystore newKeystore(int cacheSize) {
+    TieredKeystore keystore = new TieredKeystore();
+    keystore.setCacheSize(cacheSize);
+    keystore.setKeystore(this.coldKeystore);
+    return keystore;
+  }
+}
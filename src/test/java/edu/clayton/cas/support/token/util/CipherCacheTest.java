@@ -0,0 +1,116 @@
+package edu.clayton.cas.support.token.util;
+
+import edu.clayton.cas.support.token.keystore.Key;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class CipherCacheTest {
+  private IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+
+  @Test
+  public void testCipherReused() throws Exception {
+    CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding");
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+
+    Cipher first = cache.init(key, Cipher.DECRYPT_MODE, this.iv);
+    Cipher second = cache.init(key, Cipher.DECRYPT_MODE, this.iv);
+
+    assertSame(first, second);
+    assertSame(cache.keySpecFor(key), cache.keySpecFor(key));
+  }
+
+  @Test
+  public void testReplacedKey() throws Exception {
+    CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding");
+    Key oldKey = new Key("alphabet_key", "abcdefghijklmnop");
+    Key newKey = new Key("alphabet_key", "1234567890123456");
+
+    Cipher first = cache.init(oldKey, Cipher.DECRYPT_MODE, this.iv);
+    Cipher second = cache.init(newKey, Cipher.DECRYPT_MODE, this.iv);
+
+    assertNotSame(first, second);
+    assertArrayEquals(newKey.data(), cache.keySpecFor(newKey).getEncoded());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding");
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+
+    Cipher first = cache.init(key, Cipher.DECRYPT_MODE, this.iv);
+    cache.invalidate(key.name());
+    Cipher second = cache.init(key, Cipher.DECRYPT_MODE, this.iv);
+
+    assertNotSame(first, second);
+  }
+
+  @Test
+  public void testCiphersAreThreadConfined() throws Exception {
+    final CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding");
+    final Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    final Cipher[] other = new Cipher[1];
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          other[0] = cache.init(key, Cipher.DECRYPT_MODE, iv);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+
+    assertNotNull(other[0]);
+    assertNotSame(other[0], cache.init(key, Cipher.DECRYPT_MODE, this.iv));
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding", 8);
+    Key hot = new Key("hot_key", "abcdefghijklmnop");
+    SecretKeySpec hotSpec = cache.keySpecFor(hot);
+
+    for (int i = 0; i < 100; i += 1) {
+      cache.init(hot, Cipher.DECRYPT_MODE, this.iv);
+      cache.init(new Key("key" + i, "abcdefghijklmnop"), Cipher.DECRYPT_MODE, this.iv);
+    }
+
+    assertEquals(8, cache.size());
+    // The key in use all along always had a second chance.
+    assertSame(hotSpec, cache.keySpecFor(hot));
+  }
+
+  @Test
+  public void testInvalidateOneKey() throws Exception {
+    CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding");
+    Key current = new Key("alphabet_key", "abcdefghijklmnop");
+    current.setId("2");
+    Key previous = new Key("alphabet_key", "1234567890123456");
+    previous.setId("1");
+
+    SecretKeySpec currentSpec = cache.keySpecFor(current);
+    SecretKeySpec previousSpec = cache.keySpecFor(previous);
+    cache.invalidate(previous);
+
+    assertEquals(1, cache.size());
+    assertSame(currentSpec, cache.keySpecFor(current));
+    assertNotSame(previousSpec, cache.keySpecFor(previous));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDestroyedKey() throws Exception {
+    CipherCache cache = new CipherCache("AES/CBC/PKCS5Padding");
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+
+    cache.keySpecFor(key);
+    key.destroy();
+    cache.keySpecFor(key);
+  }
+}
@@ -1,15 +1,25 @@
 package edu.clayton.cas.support.token.util;
 
+import ch.qos.logback.classic.Level;
+import edu.clayton.cas.support.token.keystore.Key;
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertNotNull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class CryptoTest {
   private final static Logger log = LoggerFactory.getLogger(CryptoTest.class);
 
+  /** Bytes that may be allocated per decrypted token, regardless of its size. **/
+  private final static long DECRYPT_ALLOCATION_BUDGET = 1024;
+
   @Test
   public void testGenerateAes128KeyWithSeed() {
     log.info("testGenerateAes128KeyWithSeed()");
@@ -22,4 +32,195 @@ public class CryptoTest {
 
     log.info("Generated key is `{}`", key);
   }
+
+  @Test
+  public void testHkdfSha256() throws Exception {
+    log.info("testHkdfSha256()");
+
+    // RFC 5869, test cases 1 and 3.
+    byte[] inputKey = new byte[22];
+    Arrays.fill(inputKey, (byte) 0x0b);
+    byte[] salt = new byte[13];
+    for (int i = 0; i < salt.length; i += 1) {
+      salt[i] = (byte) i;
+    }
+    byte[] info = new byte[10];
+    for (int i = 0; i < info.length; i += 1) {
+      info[i] = (byte) (0xf0 + i);
+    }
+
+    assertEquals(
+        "3CB25F25FAACD57A90434F64D0362F2A2D2D0A90CF1A5A4C5DB02D56ECC4C5BF34007208D5B887185865",
+        Crypto.toHex(Crypto.hkdfSha256(inputKey, salt, info, 42))
+    );
+    assertEquals(
+        "8DA4E775A563C18F715F802A063C5A31B8A11F5C5EE1879EC3454E5F3C738D2D9D201395FAA4B61A96C8",
+        Crypto.toHex(Crypto.hkdfSha256(inputKey, null, new byte[0], 42))
+    );
+  }
+
+  @Test
+  public void testDeriveAes128Key() throws Exception {
+    log.info("testDeriveAes128Key()");
+
+    byte[] master = "a master key of some length".getBytes("UTF-8");
+    String key = Crypto.deriveAes128Key(master, "foo");
+
+    assertEquals(16, key.length());
+    assertTrue(key.matches("[A-Za-z0-9_-]+"));
+    assertEquals(key, Crypto.deriveAes128Key(master, "foo"));
+    assertFalse(key.equals(Crypto.deriveAes128Key(master, "foo#2")));
+    assertFalse(key.equals(Crypto.deriveAes128Key("another master key".getBytes("UTF-8"), "foo")));
+  }
+
+  @Test
+  public void testDecodeBase64() {
+    log.info("testDecodeBase64()");
+
+    byte[] data = new byte[100];
+    for (int i = 0; i < data.length; i += 1) {
+      data[i] = (byte) (i * 7);
+    }
+
+    // Chunked, with padding.
+    for (int length = 0; length < data.length; length += 1) {
+      byte[] expected = new byte[length];
+      System.arraycopy(data, 0, expected, 0, length);
+
+      String encoded = new String(Base64.encodeBase64Chunked(expected));
+      byte[] decoded = new byte[encoded.length()];
+      int decodedLength = Crypto.decodeBase64(encoded, decoded);
+
+      assertEquals(length, decodedLength);
+      for (int i = 0; i < length; i += 1) {
+        assertEquals(expected[i], decoded[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testEncryptDecrypt() throws Exception {
+    log.info("testEncryptDecrypt()");
+
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    String plainText = "{\"generated\":1,\"credentials\":{\"username\":\"\u00e9ric\"}}";
+    String encrypted = Crypto.encryptWithKey(plainText, "abcdefghijklmnop");
+
+    assertEquals(plainText, Crypto.decryptEncodedStringWithKey(encrypted, key));
+  }
+
+  @Test
+  public void testGcmEncryptDecrypt() throws Exception {
+    log.info("testGcmEncryptDecrypt()");
+
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    String plainText = "{\"generated\":1,\"credentials\":{\"username\":\"auser\"}}";
+    String encrypted = Crypto.encryptWithKeyUsingGcm(plainText, key);
+
+    assertEquals(Crypto.VERSIONED_TOKEN_PREFIX, encrypted.charAt(0));
+    assertEquals(Crypto.VERSION_AES_GCM, Crypto.versionOf(encrypted));
+    assertEquals(plainText, Crypto.decryptEncodedStringWithKey(encrypted, key));
+
+    String legacy = Crypto.encryptWithKey(plainText, "abcdefghijklmnop");
+    assertEquals(Crypto.VERSION_AES_CBC, Crypto.versionOf(legacy));
+  }
+
+  @Test
+  public void testGcmKeyId() throws Exception {
+    log.info("testGcmKeyId()");
+
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    key.setId("2014-06");
+    String plainText = "{\"generated\":1,\"credentials\":{\"username\":\"auser\"}}";
+    String encrypted = Crypto.encryptWithKeyUsingGcm(plainText, key);
+
+    assertEquals(Crypto.VERSION_AES_GCM_KEY_ID, Crypto.versionOf(encrypted));
+    assertEquals("2014-06", Crypto.keyIdOf(encrypted));
+    assertTrue(Crypto.isWellFormed(encrypted));
+    assertEquals(plainText, Crypto.decryptEncodedStringWithKey(encrypted, key));
+
+    assertNull(Crypto.keyIdOf(Crypto.encryptWithKeyUsingGcm(plainText, new Key("alphabet_key", "abcdefghijklmnop"))));
+    assertNull(Crypto.keyIdOf(Crypto.encryptWithKey(plainText, "abcdefghijklmnop")));
+  }
+
+  @Test
+  public void testIsWellFormed() throws Exception {
+    log.info("testIsWellFormed()");
+
+    String key = "abcdefghijklmnop";
+    String legacy = Crypto.encryptWithKey("{\"generated\": 0}", key);
+    String versioned = Crypto.encryptWithKeyUsingGcm("{\"generated\": 0}", new Key("alphabet_key", key));
+
+    assertTrue(Crypto.isWellFormed(legacy));
+    assertTrue(Crypto.isWellFormed(versioned));
+    assertTrue(Crypto.isWellFormed(legacy.replace('+', '-').replace('/', '_')));
+
+    assertFalse(Crypto.isWellFormed(""));
+    assertFalse(Crypto.isWellFormed("not a token!"));
+    assertFalse(Crypto.isWellFormed(legacy.substring(4)));
+    assertFalse(Crypto.isWellFormed(Base64.encodeBase64String(new byte[16])));
+    assertFalse(Crypto.isWellFormed(versioned.substring(0, 20)));
+    assertFalse(Crypto.isWellFormed("$" + Base64.encodeBase64String(new byte[64])));
+  }
+
+  @Test(expected = javax.crypto.AEADBadTagException.class)
+  public void testGcmTamperedToken() throws Exception {
+    log.info("testGcmTamperedToken()");
+
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    String encrypted = Crypto.encryptWithKeyUsingGcm("{\"generated\":1}", key);
+
+    // Flip a bit in the last cipher text byte before the tag.
+    byte[] envelope = Base64.decodeBase64(encrypted.substring(1));
+    envelope[envelope.length - 17] ^= 1;
+    String tampered = Crypto.VERSIONED_TOKEN_PREFIX + Base64.encodeBase64String(envelope);
+
+    Crypto.decryptEncodedStringWithKey(tampered, key);
+  }
+
+  @Test
+  public void testDecryptAllocationBudget() throws Exception {
+    log.info("testDecryptAllocationBudget()");
+
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+    ch.qos.logback.classic.Logger cryptoLog =
+        (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Crypto.class);
+    Level level = cryptoLog.getLevel();
+    cryptoLog.setLevel(Level.INFO);
+
+    try {
+      Key key = new Key("alphabet_key", "abcdefghijklmnop");
+      StringBuilder plainText = new StringBuilder("{\"generated\":1,\"credentials\":{");
+      for (int i = 0; i < 30; i += 1) {
+        plainText.append(String.format("\"attribute%d\":\"value number %d\",", i, i));
+      }
+      plainText.append("\"username\":\"auser\"}}");
+      String encrypted = Crypto.encryptWithKey(plainText.toString(), "abcdefghijklmnop");
+
+      // Warm up the cipher cache and the thread's buffers.
+      for (int i = 0; i < 1000; i += 1) {
+        Crypto.decryptEncodedStringIntoBuffer(encrypted, key);
+      }
+
+      int iterations = 1000;
+      long threadId = Thread.currentThread().getId();
+      long before = allocationBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < iterations; i += 1) {
+        Crypto.decryptEncodedStringIntoBuffer(encrypted, key);
+      }
+      long perToken = (allocationBean.getThreadAllocatedBytes(threadId) - before) / iterations;
+
+      log.info("Decrypting a {} byte token allocated {} bytes", encrypted.length(), perToken);
+      // The JCE provider still copies the IV and the key on every
+      // init, but the token itself must not be copied.
+      assertTrue(perToken < DECRYPT_ALLOCATION_BUDGET);
+    } finally {
+      cryptoLog.setLevel(level);
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import edu.clayton.cas.support.token.keystore.Key;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServiceRateLimiterTest {
+  @Test
+  public void testUnlimited() {
+    ServiceRateLimiter limiter = new ServiceRateLimiter();
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+
+    for (int i = 0; i < 1000; i += 1) {
+      assertTrue(limiter.tryAcquire(key, 0L));
+    }
+    assertEquals(0L, limiter.getRejections());
+  }
+
+  @Test
+  public void testBurstAndRefill() {
+    ServiceRateLimiter limiter = new ServiceRateLimiter();
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    key.setRateLimit(10, 5);
+    long now = 1000000000000L;
+
+    for (int i = 0; i < 5; i += 1) {
+      assertTrue(limiter.tryAcquire(key, now));
+    }
+    assertFalse(limiter.tryAcquire(key, now));
+    assertEquals(1L, limiter.getRejections());
+
+    // One token is added every 100ms.
+    assertTrue(limiter.tryAcquire(key, now + 100000000L));
+    assertFalse(limiter.tryAcquire(key, now + 100000000L));
+  }
+
+  @Test
+  public void testServicesAreIndependent() {
+    ServiceRateLimiter limiter = new ServiceRateLimiter();
+    Key limited = new Key("alphabet_key", "abcdefghijklmnop");
+    limited.setRateLimit(1, 1);
+    Key other = new Key("number_key", "1234567890123456");
+    other.setRateLimit(1, 1);
+
+    assertTrue(limiter.tryAcquire(limited, 0L));
+    assertFalse(limiter.tryAcquire(limited, 0L));
+    assertTrue(limiter.tryAcquire(other, 0L));
+  }
+
+  @Test
+  public void testKeysOfOneServiceAreIndependent() {
+    ServiceRateLimiter limiter = new ServiceRateLimiter();
+    Key current = new Key("alphabet_key", "abcdefghijklmnop");
+    current.setId("2");
+    current.setRateLimit(1, 1);
+    Key previous = new Key("alphabet_key", "ponmlkjihgfedcba");
+    previous.setId("1");
+    previous.setRateLimit(2, 2);
+
+    // Alternating between the keys must not reset either bucket.
+    assertTrue(limiter.tryAcquire(current, 0L));
+    assertTrue(limiter.tryAcquire(previous, 0L));
+    assertFalse(limiter.tryAcquire(current, 0L));
+    assertTrue(limiter.tryAcquire(previous, 0L));
+    assertFalse(limiter.tryAcquire(previous, 0L));
+    assertFalse(limiter.tryAcquire(current, 0L));
+  }
+}
@@ -1,16 +1,27 @@
 package edu.usf.cims.cas.support.token.authentication.handler.support;
 
+import edu.clayton.cas.support.token.Token;
 import edu.clayton.cas.support.token.keystore.JSONKeystore;
+import edu.clayton.cas.support.token.keystore.Key;
+import edu.clayton.cas.support.token.keystore.Keystore;
+import edu.clayton.cas.support.token.util.Crypto;
 import edu.usf.cims.cas.support.token.authentication.principal.TokenCredentials;
+import org.apache.commons.codec.binary.Base64;
 import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class TokenAuthenticationHandlerTest {
   private String b64Token =
@@ -66,4 +77,224 @@ public class TokenAuthenticationHandlerTest {
 
     assertFalse(this.handler.doAuthentication(this.invalidCredentials));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testAuthExpired() throws Exception {
+    URL url = this.getClass().getClassLoader().getResource("testHandlerStoreWithGoodKey.json");
+    File keystoreFile = new File(url.toURI());
+    JSONKeystore jsonKeystore = new JSONKeystore(keystoreFile);
+
+    this.handler.setKeystore(jsonKeystore);
+    this.handler.setMaxDrift(60);
+
+    try {
+      this.handler.doAuthentication(this.validCredentials);
+      fail("Expected the token to be expired");
+    } catch (BadCredentialsAuthenticationException e) {
+      assertEquals("error.authentication.credentials.bad.token.expired", e.getCode());
+    }
+  }
+
+  @Test
+  public void testAuthReplayed() throws Exception {
+    URL url = this.getClass().getClassLoader().getResource("testHandlerStoreWithGoodKey.json");
+    File keystoreFile = new File(url.toURI());
+    JSONKeystore jsonKeystore = new JSONKeystore(keystoreFile);
+
+    this.handler.setKeystore(jsonKeystore);
+    this.handler.setMaxDrift(Integer.MAX_VALUE);
+    this.handler.setReplayCacheCapacity(1024);
+
+    assertTrue(this.handler.doAuthentication(this.validCredentials));
+
+    TokenCredentials replayed = new TokenCredentials("jsumners", this.b64Token.replace("\n", ""), "alphabet_key");
+    try {
+      this.handler.doAuthentication(replayed);
+      fail("Expected the token to be rejected as replayed");
+    } catch (BadCredentialsAuthenticationException e) {
+      assertEquals("error.authentication.credentials.bad.token.replayed", e.getCode());
+    }
+    assertNull(replayed.getUserAttributes());
+    assertFalse(replayed.isCompacted());
+    assertEquals(1L, this.handler.getReplayCache().getHits());
+  }
+
+  @Test
+  public void testAuthReplayedWithAppendedBlocks() throws Exception {
+    URL url = this.getClass().getClassLoader().getResource("testHandlerStoreWithGoodKey.json");
+    File keystoreFile = new File(url.toURI());
+    JSONKeystore jsonKeystore = new JSONKeystore(keystoreFile);
+
+    this.handler.setKeystore(jsonKeystore);
+    this.handler.setMaxDrift(Integer.MAX_VALUE);
+    this.handler.setReplayCacheCapacity(1024);
+
+    assertTrue(this.handler.doAuthentication(this.validCredentials));
+
+    // Repeating the last two CBC blocks keeps the padding valid but
+    // changes the cipher text.
+    byte[] data = Base64.decodeBase64(this.b64Token);
+    byte[] extended = Arrays.copyOf(data, data.length + 32);
+    System.arraycopy(data, data.length - 32, extended, data.length, 32);
+
+    TokenCredentials replayed = new TokenCredentials(
+        "jsumners", Base64.encodeBase64String(extended), "alphabet_key"
+    );
+    try {
+      this.handler.doAuthentication(replayed);
+      fail("Expected the extended token to be rejected");
+    } catch (BadCredentialsAuthenticationException e) {
+      assertNull(replayed.getUserAttributes());
+    }
+  }
+
+  @Test
+  public void testAuthMalformed() throws Exception {
+    URL url = this.getClass().getClassLoader().getResource("testHandlerStoreWithGoodKey.json");
+    File keystoreFile = new File(url.toURI());
+    JSONKeystore jsonKeystore = new JSONKeystore(keystoreFile);
+
+    this.handler.setKeystore(jsonKeystore);
+    this.handler.setMaxDrift(Integer.MAX_VALUE);
+
+    TokenCredentials malformed = new TokenCredentials("jsumners", "not a token!", "alphabet_key");
+    for (int i = 0; i < 2; i += 1) {
+      try {
+        this.handler.doAuthentication(malformed);
+        fail("Expected the token to be rejected");
+      } catch (BadCredentialsAuthenticationException e) {
+        assertEquals(TokenAuthenticationHandler.ERROR_KEY, e.getCode());
+      }
+    }
+    assertEquals(1L, this.handler.getNegativeCache().getHits());
+
+    // A good token is not affected by the failures.
+    assertTrue(this.handler.doAuthentication(this.validCredentials));
+  }
+
+  @Test
+  public void testKeyRotation() throws Exception {
+    Key retired = new Key("alphabet_key", "abcdefghijklmnop");
+    retired.setId("1");
+    Key current = new Key("alphabet_key", "ponmlkjihgfedcba");
+    current.setId("2");
+
+    JSONKeystore jsonKeystore = new JSONKeystore();
+    jsonKeystore.addKey(retired);
+    jsonKeystore.addKey(current);
+    this.handler.setKeystore(jsonKeystore);
+    this.handler.setMaxDrift(60);
+
+    String json = "{\"generated\": " + System.currentTimeMillis() + ", \"credentials\": {\"username\": \"jsumners\"}}";
+    assertTrue(this.handler.doAuthentication(
+        new TokenCredentials("jsumners", Crypto.encryptWithKeyUsingGcm(json, current), "alphabet_key")
+    ));
+    assertTrue(this.handler.doAuthentication(
+        new TokenCredentials("jsumners", Crypto.encryptWithKeyUsingGcm(json, retired), "alphabet_key")
+    ));
+    assertEquals(Long.valueOf(1L), this.handler.getKeyUsage().get("alphabet_key#2"));
+    assertEquals(Long.valueOf(1L), this.handler.getKeyUsage().get("alphabet_key#1"));
+
+    // Once retired, the old key is refused.
+    retired.setValidity(0L, System.currentTimeMillis() - 1000L);
+    try {
+      this.handler.doAuthentication(
+          new TokenCredentials("jsumners", Crypto.encryptWithKeyUsingGcm(json, retired), "alphabet_key")
+      );
+      fail("Expected the retired key to be refused");
+    } catch (BadCredentialsAuthenticationException e) {
+      assertEquals(TokenAuthenticationHandler.ERROR_APIKEY, e.getCode());
+    }
+  }
+
+  @Test
+  public void testKeyRetiredDuringLogin() throws Exception {
+    final Key live = new Key("alphabet_key", "abcdefghijklmnop");
+    final Key retired = new Key("alphabet_key", "abcdefghijklmnop");
+    retired.destroy();
+
+    // The first lookup finds a key that is destroyed before it is used.
+    Keystore keystore = (Keystore) Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {Keystore.class},
+        new InvocationHandler() {
+          private int lookups = 0;
+
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getKeyNamed")) {
+              this.lookups += 1;
+              return (this.lookups == 1) ? retired : live;
+            }
+            return null;
+          }
+        }
+    );
+    this.handler.setKeystore(keystore);
+    this.handler.setMaxDrift(60);
+
+    String json = "{\"generated\": " + System.currentTimeMillis() + ", \"credentials\": {\"username\": \"user0\"}}";
+    String data = Crypto.encryptWithKeyUsingGcm(json, live);
+    assertTrue(this.handler.doAuthentication(new TokenCredentials("user0", data, "alphabet_key")));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    Key key = new Key("alphabet_key", "abcdefghijklmnop");
+    JSONKeystore jsonKeystore = new JSONKeystore();
+    jsonKeystore.addKey(key);
+    this.handler.setKeystore(jsonKeystore);
+    this.handler.setMaxDrift(60);
+
+    int count = 1000;
+    TokenCredentials[] credentials = new TokenCredentials[count];
+    List<WeakReference<Token>> tokens = new ArrayList<WeakReference<Token>>(count);
+    for (int i = 0; i < count; i += 1) {
+      String json = "{\"generated\": " + System.currentTimeMillis() +
+          ", \"credentials\": {\"username\": \"user" + i + "\", \"email\": \"user" + i + "@example.com\"}}";
+      String data = Crypto.encryptWithKeyUsingGcm(json, key);
+      credentials[i] = new TokenCredentials("user" + i, data, "alphabet_key");
+      tokens.add(new WeakReference<Token>(credentials[i].getToken()));
+      assertTrue(this.handler.doAuthentication(credentials[i]));
+    }
+
+    TokenCredentials credential = credentials[0];
+    assertTrue(credential.isCompacted());
+    assertNull(credential.getToken());
+    assertEquals("user0@example.com", credential.getUserAttributes().get("email"));
+    try {
+      credential.getUserAttributes().put("email", "other@example.com");
+      fail("Expected the attributes to be unmodifiable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      this.handler.doAuthentication(credential);
+      fail("Expected a compacted credential to be refused");
+    } catch (BadCredentialsAuthenticationException e) {
+      assertEquals(TokenAuthenticationHandler.ERROR_AUTHENTICATED, e.getCode());
+    }
+
+    // The credentials are still reachable; their tokens must not be.
+    for (int i = 0; i < count; i += 1) {
+      assertTrue("Token " + i + " is still reachable", isCollected(tokens.get(i)));
+    }
+    assertEquals(count, credentials.length);
+  }
+
+  /**
+   * Wait for a weakly reachable object to be collected. Allocating, rather
+   * than only asking for a collection, works even when explicit collections
+   * are disabled.
+   */
+  private static boolean isCollected(WeakReference<?> reference) {
+    List<byte[]> garbage = new ArrayList<byte[]>();
+    for (int i = 0; i < 1000 && reference.get() != null; i += 1) {
+      System.gc();
+      garbage.add(new byte[1024 * 1024]);
+      if (garbage.size() == 16) {
+        garbage.clear();
+      }
+    }
+    return reference.get() == null;
+  }
+}
@@ -0,0 +1,184 @@
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import edu.clayton.cas.support.token.keystore.JSONKeystore;
+import edu.clayton.cas.support.token.keystore.Key;
+import edu.clayton.cas.support.token.util.Crypto;
+import edu.usf.cims.cas.support.token.authentication.principal.TokenCredentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TokenBatchVerifierTest {
+  private static final Logger log = LoggerFactory.getLogger(TokenBatchVerifierTest.class);
+
+  private Key key = new Key("alphabet_key", "abcdefghijklmnop");
+  private TokenAuthenticationHandler handler;
+  private TokenBatchVerifier verifier;
+
+  @Before
+  public void setup() {
+    JSONKeystore keystore = new JSONKeystore();
+    keystore.addKey(this.key);
+
+    this.handler = new TokenAuthenticationHandler();
+    this.handler.setKeystore(keystore);
+    this.handler.setMaxDrift(60);
+    this.handler.setReplayCacheCapacity(1024);
+
+    this.verifier = new TokenBatchVerifier();
+    this.verifier.setAuthenticationHandler(this.handler);
+    this.verifier.setThreads(4);
+    this.verifier.afterPropertiesSet();
+  }
+
+  @After
+  public void teardown() {
+    this.verifier.destroy();
+  }
+
+  @Test
+  public void testOutcomes() throws Exception {
+    long now = System.currentTimeMillis();
+    List<TokenVerification> items = new ArrayList<TokenVerification>();
+    items.add(new TokenVerification("alphabet_key", "user0", this.newToken("user0", now)));
+    items.add(new TokenVerification("alphabet_key", "user1", this.newToken("someone", now)));
+    items.add(new TokenVerification("number_key", "user2", this.newToken("user2", now)));
+    items.add(new TokenVerification("alphabet_key", "user3", "not a token!"));
+    items.add(new TokenVerification("alphabet_key", "user4", this.newToken("user4", now - 3600000L)));
+
+    this.verifier.verify(items);
+
+    assertTrue(items.get(0).isValid());
+    assertEquals("user0", items.get(0).getAttributes().getUsername());
+    assertEquals(TokenAuthenticationHandler.ERROR_USERNAME, items.get(1).getCode());
+    assertEquals(TokenAuthenticationHandler.ERROR_APIKEY, items.get(2).getCode());
+    assertEquals(TokenAuthenticationHandler.ERROR_KEY, items.get(3).getCode());
+    assertEquals(TokenAuthenticationHandler.ERROR_EXPIRED, items.get(4).getCode());
+    assertEquals(4L, this.verifier.getRejected());
+
+    // Verifying a token does not use it up.
+    this.verifier.verify(items.subList(0, 1));
+    assertTrue(items.get(0).isValid());
+  }
+
+  @Test
+  public void testBatchSizes() throws Exception {
+    long now = System.currentTimeMillis();
+    List<TokenVerification> tokens = new ArrayList<TokenVerification>();
+    for (int i = 0; i < 10000; i += 1) {
+      tokens.add(new TokenVerification("alphabet_key", "user" + i, this.newToken("user" + i, now)));
+    }
+
+    for (int size = 1; size <= tokens.size(); size *= 10) {
+      List<TokenVerification> batch = tokens.subList(0, size);
+      long start = System.nanoTime();
+      this.verifier.verify(batch);
+      long elapsed = System.nanoTime() - start;
+
+      for (TokenVerification item : batch) {
+        assertTrue(item.getUsername(), item.isValid());
+      }
+      log.info("Verified a batch of {} tokens in {} us", size, elapsed / 1000);
+    }
+    assertEquals(11111L, this.verifier.getVerified());
+  }
+
+  @Test(timeout = 60000)
+  public void testDestroyDuringBatch() throws Exception {
+    long now = System.currentTimeMillis();
+    final List<TokenVerification> tokens = new ArrayList<TokenVerification>();
+    for (int i = 0; i < 10000; i += 1) {
+      tokens.add(new TokenVerification("alphabet_key", "user" + i, this.newToken("user" + i, now)));
+    }
+
+    // Keep the queue full, so that slices are queued when the pool stops.
+    final List<List<TokenVerification>> batches = new ArrayList<List<TokenVerification>>();
+    for (int i = 0; i < 8; i += 1) {
+      batches.add(tokens.subList(i * 1250, (i + 1) * 1250));
+    }
+    Thread[] callers = new Thread[batches.size()];
+    for (int i = 0; i < callers.length; i += 1) {
+      final List<TokenVerification> batch = batches.get(i);
+      callers[i] = new Thread(new Runnable() {
+        public void run() {
+          TokenBatchVerifierTest.this.verifier.verify(batch);
+        }
+      });
+      callers[i].start();
+    }
+    while (this.verifier.getVerified() == 0) {
+      Thread.sleep(1);
+    }
+    this.verifier.destroy();
+
+    for (Thread caller : callers) {
+      caller.join();
+    }
+    for (TokenVerification item : tokens) {
+      assertTrue(item.getUsername(), item.isValid());
+    }
+
+    // Once stopped, batches are verified on the calling thread.
+    List<TokenVerification> again = tokens.subList(0, 100);
+    this.verifier.verify(again);
+    assertEquals(10100L, this.verifier.getVerified());
+  }
+
+  @Test(timeout = 60000)
+  public void testLoginsDuringLargeBatch() throws Exception {
+    this.handler.setMaxConcurrentAuthentications(1);
+    this.verifier.setMaxConcurrentVerifications(2);
+
+    long now = System.currentTimeMillis();
+    final List<TokenVerification> tokens = new ArrayList<TokenVerification>();
+    for (int i = 0; i < 10000; i += 1) {
+      tokens.add(new TokenVerification("alphabet_key", "user" + i, this.newToken("user" + i, now)));
+    }
+    Thread caller = new Thread(new Runnable() {
+      public void run() {
+        TokenBatchVerifierTest.this.verifier.verify(tokens);
+      }
+    });
+    caller.start();
+    while (this.verifier.getVerified() == 0) {
+      Thread.sleep(1);
+    }
+
+    // The batch holds verification permits the whole time; none of them
+    // are the handler's.
+    int logins = 0;
+    while (caller.isAlive() || logins == 0) {
+      String username = "login" + logins;
+      TokenCredentials credentials = new TokenCredentials(username, this.newToken(username, now), "alphabet_key");
+      assertTrue(this.handler.doAuthentication(credentials));
+      logins += 1;
+    }
+    caller.join();
+
+    for (TokenVerification item : tokens) {
+      assertTrue(item.getUsername(), item.isValid());
+    }
+    log.info("{} logins succeeded during a batch of {} tokens", logins, tokens.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxBatchSize() throws Exception {
+    this.verifier.setMaxBatchSize(1);
+    List<TokenVerification> items = new ArrayList<TokenVerification>();
+    items.add(new TokenVerification("alphabet_key", "user0", "a"));
+    items.add(new TokenVerification("alphabet_key", "user1", "b"));
+    this.verifier.verify(items);
+  }
+
+  private String newToken(String username, long generated) throws Exception {
+    String json = "{\"generated\": " + generated + ", \"credentials\": {\"username\": \"" + username + "\"}}";
+    return Crypto.encryptWithKeyUsingGcm(json, this.key);
+  }
+}
@@ -0,0 +1,50 @@
+package edu.usf.cims.cas.support.token.authentication.handler.support;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenReplayCacheTest {
+  @Test
+  public void testReplayDetected() {
+    TokenReplayCache cache = new TokenReplayCache(1024, 120000L);
+    long now = System.currentTimeMillis();
+
+    assertTrue(cache.add(42L, now));
+    assertFalse(cache.add(42L, now + 1000L));
+    assertTrue(cache.contains(42L, now + 1000L));
+    assertTrue(cache.add(43L, now));
+
+    assertEquals(1L, cache.getHits());
+    assertEquals(2L, cache.getMisses());
+    assertEquals(0L, cache.getEvictions());
+  }
+
+  @Test
+  public void testExpiry() {
+    TokenReplayCache cache = new TokenReplayCache(1024, 120000L);
+    long now = 1000000000000L;
+
+    assertTrue(cache.add(42L, now));
+    assertTrue(cache.contains(42L, now + cache.getHorizonMillis()));
+    assertTrue(cache.getHorizonMillis() >= 120000L);
+
+    long later = now + cache.getHorizonMillis() + 2 * (cache.getHorizonMillis() / (TokenReplayCache.BUCKETS - 1));
+    assertFalse(cache.contains(42L, later));
+    assertTrue(cache.add(42L, later));
+  }
+
+  @Test
+  public void testCapacityIsBounded() {
+    TokenReplayCache cache = new TokenReplayCache(1024, 120000L);
+    long now = System.currentTimeMillis();
+
+    for (long i = 1; i <= 10000; i += 1) {
+      cache.add(i * 0x9E3779B97F4A7C15L, now);
+    }
+
+    assertEquals(1024, cache.getCapacity());
+    assertTrue(cache.getEvictions() > 0);
+    assertEquals(10000L, cache.getMisses());
+  }
+}
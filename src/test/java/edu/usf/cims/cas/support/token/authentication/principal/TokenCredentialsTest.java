@@ -0,0 +1,62 @@
+package edu.usf.cims.cas.support.token.authentication.principal;
+
+import edu.clayton.cas.support.token.TokenAttributes;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class TokenCredentialsTest {
+  private String json =
+      "{\"username\": \"auser\", \"firstname\": \"Foo\", \"lastname\": \"Bar\", " +
+      "\"email\": \"foobar@example.com\", \"groups\": [\"staff\", \"faculty\"]}";
+
+  @Test
+  public void testCompactedRoundTrip() throws Exception {
+    TokenCredentials credentials = new TokenCredentials("auser", "not decrypted here", "alphabet_key");
+    credentials.setUserAttributes(new TokenAttributes(this.json));
+    credentials.compact();
+
+    byte[] compact = serialize(credentials);
+    TokenCredentials copy = (TokenCredentials) deserialize(compact);
+    assertEquals("auser", copy.getUsername());
+    assertEquals("alphabet_key", copy.getTokenService());
+    assertTrue(copy.isCompacted());
+    assertEquals(credentials.getUserAttributes(), copy.getUserAttributes());
+    assertEquals("foobar@example.com", ((TokenAttributes) copy.getUserAttributes()).getEmail());
+
+    // What default serialization of the same fields ships.
+    byte[] hashed = serialize(new Object[] {
+        "auser", "alphabet_key", new ConcurrentHashMap<String, Object>(credentials.getUserAttributes())
+    });
+    assertTrue("compact form is " + compact.length + " bytes, default form " + hashed.length,
+        compact.length < hashed.length / 2);
+  }
+
+  @Test
+  public void testUnauthenticatedRoundTrip() throws Exception {
+    TokenCredentials credentials = new TokenCredentials("auser", "encoded token", "alphabet_key");
+
+    TokenCredentials copy = (TokenCredentials) deserialize(serialize(credentials));
+    assertFalse(copy.isCompacted());
+    assertEquals("encoded token", copy.getToken().getData());
+    assertNull(copy.getUserAttributes());
+  }
+
+  private static byte[] serialize(Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes) throws Exception {
+    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+  }
+}
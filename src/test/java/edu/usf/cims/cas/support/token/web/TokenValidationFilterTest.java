@@ -0,0 +1,188 @@
+package edu.usf.cims.cas.support.token.web;
+
+import edu.clayton.cas.support.token.Token;
+import edu.clayton.cas.support.token.keystore.JSONKeystore;
+import edu.clayton.cas.support.token.keystore.Key;
+import edu.clayton.cas.support.token.util.Crypto;
+import edu.usf.cims.cas.support.token.authentication.handler.support.TokenAuthenticationHandler;
+import edu.usf.cims.cas.support.token.authentication.principal.TokenCredentials;
+import org.jasig.cas.authentication.handler.BadCredentialsAuthenticationException;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TokenValidationFilterTest {
+  private Key key = new Key("alphabet_key", "abcdefghijklmnop");
+  private TokenAuthenticationHandler handler;
+  private TokenValidationFilter filter;
+
+  private Map<String, Object> attributes;
+  private int passed;
+  private Integer status;
+  private String message;
+
+  @Before
+  public void setup() {
+    JSONKeystore keystore = new JSONKeystore();
+    keystore.addKey(this.key);
+
+    this.handler = new TokenAuthenticationHandler();
+    this.handler.setKeystore(keystore);
+    this.handler.setMaxDrift(60);
+
+    this.filter = new TokenValidationFilter();
+    this.filter.setAuthenticationHandler(this.handler);
+  }
+
+  @Test
+  public void testValidToken() throws Exception {
+    String data = this.newToken("jsumners", System.currentTimeMillis());
+    this.doFilter(data, "jsumners", "alphabet_key");
+
+    assertEquals(1, this.passed);
+    assertNull(this.status);
+    Token token = (Token) this.attributes.get(TokenValidationFilter.TOKEN_ATTRIBUTE);
+    assertEquals("jsumners", token.getAttributes().getUsername());
+    assertEquals(1L, this.filter.getAccepted());
+
+    // The handler accepts the decrypted token as it is.
+    TokenCredentials credentials = new TokenCredentials("jsumners", data, "alphabet_key");
+    credentials.setToken(token);
+    assertTrue(this.handler.authenticate(credentials));
+  }
+
+  @Test
+  public void testRejectedTokens() throws Exception {
+    long now = System.currentTimeMillis();
+
+    this.doFilter("not a token!", "jsumners", "alphabet_key");
+    assertRejected(TokenAuthenticationHandler.ERROR_KEY);
+
+    this.doFilter(this.newToken("jsumners", now), "jsumners", "number_key");
+    assertRejected(TokenAuthenticationHandler.ERROR_APIKEY);
+
+    this.doFilter(this.newToken("jsumners", now - 3600000L), "jsumners", "alphabet_key");
+    assertRejected(TokenAuthenticationHandler.ERROR_EXPIRED);
+
+    this.doFilter(this.newToken("someone", now), "jsumners", "alphabet_key");
+    assertRejected(TokenAuthenticationHandler.ERROR_USERNAME);
+
+    assertEquals(4L, this.filter.getRejected());
+  }
+
+  @Test
+  public void testNegativeCache() throws Exception {
+    String data = this.newToken("jsumners", System.currentTimeMillis() - 3600000L);
+    this.doFilter(data, "jsumners", "alphabet_key");
+    assertRejected(TokenAuthenticationHandler.ERROR_EXPIRED);
+    assertEquals(0L, this.handler.getNegativeCache().getHits());
+
+    // The failure is remembered for the filter and for logins alike.
+    this.doFilter(data, "jsumners", "alphabet_key");
+    assertRejected(TokenAuthenticationHandler.ERROR_EXPIRED);
+    assertEquals(1L, this.handler.getNegativeCache().getHits());
+    try {
+      this.handler.authenticate(new TokenCredentials("jsumners", data, "alphabet_key"));
+      fail("Expected the login to be rejected from the negative cache");
+    } catch (BadCredentialsAuthenticationException e) {
+      assertEquals(TokenAuthenticationHandler.ERROR_EXPIRED, e.getCode());
+    }
+    assertEquals(2L, this.handler.getNegativeCache().getHits());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    this.key.setRateLimit(1, 1);
+    long now = System.currentTimeMillis();
+
+    this.doFilter(this.newToken("jsumners", now), "jsumners", "alphabet_key");
+    assertEquals(1, this.passed);
+    String data = this.newToken("jsumners", now);
+    this.doFilter(data, "jsumners", "alphabet_key");
+    assertEquals(0, this.passed);
+    assertEquals(Integer.valueOf(429), this.status);
+    assertEquals(TokenAuthenticationHandler.ERROR_RATE_LIMITED, this.message);
+    assertEquals(1L, this.handler.getVerifyRateLimiter().getRejections());
+
+    // A token that was checked by the filter is not counted again at login.
+    assertTrue(this.handler.authenticate(new TokenCredentials("jsumners", data, "alphabet_key")));
+  }
+
+  @Test
+  public void testPassesOtherRequests() throws Exception {
+    this.doFilter(null, null, null);
+
+    assertEquals(1, this.passed);
+    assertNull(this.status);
+    assertTrue(this.attributes.isEmpty());
+  }
+
+  private void assertRejected(String code) {
+    assertEquals(0, this.passed);
+    assertEquals(Integer.valueOf(HttpServletResponse.SC_UNAUTHORIZED), this.status);
+    assertEquals(code, this.message);
+  }
+
+  private String newToken(String username, long generated) throws Exception {
+    String json = "{\"generated\": " + generated + ", \"credentials\": {\"username\": \"" + username + "\"}}";
+    return Crypto.encryptWithKeyUsingGcm(json, this.key);
+  }
+
+  private void doFilter(String data, String username, String tokenService) throws Exception {
+    final Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("auth_token", data);
+    parameters.put("username", username);
+    parameters.put("token_service", tokenService);
+    this.attributes = new HashMap<String, Object>();
+    this.passed = 0;
+    this.status = null;
+    this.message = null;
+
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {HttpServletRequest.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getParameter")) {
+              return parameters.get(args[0]);
+            }
+            if (method.getName().equals("setAttribute")) {
+              attributes.put((String) args[0], args[1]);
+            }
+            return null;
+          }
+        }
+    );
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {HttpServletResponse.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("sendError")) {
+              status = (Integer) args[0];
+              message = (String) args[1];
+            }
+            return null;
+          }
+        }
+    );
+
+    this.filter.doFilter(request, response, new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        passed += 1;
+      }
+    });
+  }
+}
@@ -0,0 +1,137 @@
+package edu.usf.cims.cas.support.token.web.flow;
+
+import org.jasig.cas.CentralAuthenticationService;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.web.support.WebUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.test.MockRequestContext;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TokenAuthActionTest {
+  private static final int LOGINS = 10000;
+
+  private TokenAuthAction action;
+  private int sessionsCreated;
+
+  @Before
+  public void setup() {
+    this.action = new TokenAuthAction();
+    this.action.setCentralAuthenticationService((CentralAuthenticationService) Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {CentralAuthenticationService.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return "TGT-1";
+          }
+        }
+    ));
+  }
+
+  @Test
+  public void testSessionPerLogin() throws Exception {
+    for (int i = 0; i < LOGINS; i += 1) {
+      assertEquals("success", this.action.execute(this.newContext(null)).getId());
+    }
+    assertEquals(LOGINS, this.sessionsCreated);
+  }
+
+  @Test
+  public void testStatelessLogins() throws Exception {
+    this.action.setStateless(true);
+
+    for (int i = 0; i < LOGINS; i += 1) {
+      MockRequestContext context = this.newContext(null);
+      assertEquals("success", this.action.execute(context).getId());
+      assertEquals("TGT-1", WebUtils.getTicketGrantingTicketId(context));
+      assertNotNull(context.getRequestScope().get("service"));
+    }
+    assertEquals(0, this.sessionsCreated);
+  }
+
+  @Test
+  public void testStatelessKeepsExistingSession() throws Exception {
+    this.action.setStateless(true);
+    Map<String, Object> attributes = new HashMap<String, Object>();
+
+    this.action.execute(this.newContext(this.newSession(attributes)));
+    assertNotNull(attributes.get("service"));
+    assertEquals(0, this.sessionsCreated);
+  }
+
+  private MockRequestContext newContext(final HttpSession existing) {
+    final Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("auth_token", "token");
+    parameters.put("token_service", "alphabet_key");
+    parameters.put("username", "jsumners");
+
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {HttpServletRequest.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getParameter")) {
+              return parameters.get(args[0]);
+            }
+            if (method.getName().equals("getSession")) {
+              boolean create = (args == null) || (Boolean) args[0];
+              if (existing == null && create) {
+                TokenAuthActionTest.this.sessionsCreated += 1;
+                return TokenAuthActionTest.this.newSession(new HashMap<String, Object>());
+              }
+              return existing;
+            }
+            return null;
+          }
+        }
+    );
+
+    MockRequestContext context = new MockRequestContext();
+    context.setExternalContext(new ServletExternalContext(
+        (ServletContext) this.newProxy(ServletContext.class),
+        request,
+        (HttpServletResponse) this.newProxy(HttpServletResponse.class)
+    ));
+    context.getFlowScope().put("service", new SimpleWebApplicationServiceImpl("https://example.com/"));
+    return context;
+  }
+
+  private Object newProxy(Class type) {
+    return Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {type},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+          }
+        }
+    );
+  }
+
+  private HttpSession newSession(final Map<String, Object> attributes) {
+    return (HttpSession) Proxy.newProxyInstance(
+        this.getClass().getClassLoader(),
+        new Class[] {HttpSession.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("setAttribute")) {
+              attributes.put((String) args[0], args[1]);
+            }
+            return null;
+          }
+        }
+    );
+  }
+}